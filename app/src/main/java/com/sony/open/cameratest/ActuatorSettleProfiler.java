@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2019, Sony Mobile Communications Inc.
+ * Licensed under the LICENSE.
+ */
+package com.sony.open.cameratest;
+
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.Locale;
+
+/**
+ * Measures how long the lens takes to settle after a step.
+ *
+ * The focus range is split into evenly spaced positions, 0 diopters
+ * being infinity. For every (start, target) pair the lens is first
+ * settled at start, then commanded to target through the scheduler of a
+ * running preview. From the first frame requesting target, frames are
+ * counted until LENS_STATE is stationary and the reported focus distance
+ * is within tolerance of target. Reported distances past target in the
+ * direction of travel are overshoot.
+ *
+ * Results form a matrix over (start, target): mean settle time in ms
+ * and frames, and the largest overshoot. Steps towards macro and towards
+ * infinity of the same size are compared, since actuators often move
+ * faster one way than the other.
+ *
+ * Frames arrive on the camera thread, the listener is called there too.
+ */
+public class ActuatorSettleProfiler implements LensCommandScheduler.FrameListener {
+    public interface Listener {
+        void onProgress(ActuatorSettleProfiler profiler, int step, int numSteps);
+        void onFinished(ActuatorSettleProfiler profiler);
+    }
+
+    private static final int   timeoutFrames = 90;
+    private static final float tolerance     = 0.02f;   // of the focus range
+
+    private final String name;
+    private final LensCommandScheduler scheduler;
+    private final Listener listener;
+    private final float[]  positions;
+    private final int      repeats;
+
+    // steps in order, start and target as position index
+    private final int[] stepStart, stepTarget;
+
+    // per (start, target)
+    private final int[][]    numRuns, numSettled;
+    private final long[][]   sumNanos, sumFrames, maxNanos;
+    private final float[][]  maxOvershoot;
+
+    // camera thread once started
+    private int     step = -1;
+    private boolean isSettlingStart;
+    private float   commanded;
+    private int     frames;
+    private long    firstTs;
+    private float   overshoot;
+    private volatile boolean isRunning = false;
+
+    // positions evenly spaced from infinity to minFocusDistance in diopters
+    public ActuatorSettleProfiler(String name, LensCommandScheduler scheduler, float minFocusDistance,
+                                  int numPositions, int repeats, Listener listener) {
+        if(numPositions < 2) {
+            throw new IllegalArgumentException("need at least 2 positions, got " + numPositions);
+        }
+        this.name      = name;
+        this.scheduler = scheduler;
+        this.listener  = listener;
+        this.repeats   = repeats;
+
+        int n = numPositions;
+        positions = new float[n];
+        for(int i = 0; i < n; i++) {
+            positions[i] = minFocusDistance * i / (n - 1);
+        }
+
+        int numSteps = n * (n - 1) * repeats;
+        stepStart  = new int[numSteps];
+        stepTarget = new int[numSteps];
+        int s = 0;
+        for(int r = 0; r < repeats; r++) {
+            for(int a = 0; a < n; a++) {
+                for(int b = 0; b < n; b++) {
+                    if(a != b) {
+                        stepStart[s]  = a;
+                        stepTarget[s] = b;
+                        s++;
+                    }
+                }
+            }
+        }
+
+        numRuns      = new int[n][n];
+        numSettled   = new int[n][n];
+        sumNanos     = new long[n][n];
+        sumFrames    = new long[n][n];
+        maxNanos     = new long[n][n];
+        maxOvershoot = new float[n][n];
+    }
+
+    // the scheduler must run a repeating request
+    public void start() {
+        isRunning = true;
+        scheduler.addFrameListener(this);
+        nextStep();
+    }
+
+    public void cancel() {
+        isRunning = false;
+        scheduler.removeFrameListener(this);
+    }
+
+    public boolean isRunning() {
+        return isRunning;
+    }
+
+    @Override
+    public void onFrame(CaptureRequest request, TotalCaptureResult result) {
+        Float requested = request.get(CaptureRequest.LENS_FOCUS_DISTANCE);
+        if(!isRunning || requested == null || requested != commanded) {
+            // frame of an earlier command
+            return;
+        }
+        Integer state    = result.get(CaptureResult.LENS_STATE);
+        Float   reported = result.get(CaptureResult.LENS_FOCUS_DISTANCE);
+        Long    ts       = result.get(CaptureResult.SENSOR_TIMESTAMP);
+        boolean isSettled = state != null && state == CameraMetadata.LENS_STATE_STATIONARY
+                && (reported == null || Math.abs(reported - commanded) <= tolerance * positions[positions.length - 1]);
+
+        if(isSettlingStart) {
+            if(isSettled || ++frames >= timeoutFrames) {
+                isSettlingStart = false;
+                command(positions[stepTarget[step]]);
+            }
+            return;
+        }
+
+        if(frames == 0) {
+            firstTs = ts != null ? ts : 0;
+        }
+        if(reported != null) {
+            float direction = Math.signum(positions[stepTarget[step]] - positions[stepStart[step]]);
+            overshoot = Math.max(overshoot, (reported - commanded) * direction);
+        }
+        if(isSettled || frames >= timeoutFrames) {
+            record(isSettled, ts != null ? ts - firstTs : 0);
+            nextStep();
+        } else {
+            frames++;
+        }
+    }
+
+    /* ============================================================== */
+
+    private void command(float distance) {
+        commanded = distance;
+        frames    = 0;
+        overshoot = 0;
+        scheduler.submit(distance);
+    }
+
+    private void nextStep() {
+        step++;
+        if(step >= stepStart.length) {
+            cancel();
+            listener.onFinished(this);
+            return;
+        }
+        listener.onProgress(this, step, stepStart.length);
+        isSettlingStart = true;
+        command(positions[stepStart[step]]);
+    }
+
+    private void record(boolean isSettled, long nanos) {
+        int a = stepStart[step], b = stepTarget[step];
+        numRuns[a][b]++;
+        if(isSettled) {
+            numSettled[a][b]++;
+            sumNanos[a][b]  += nanos;
+            sumFrames[a][b] += frames;
+            maxNanos[a][b]   = Math.max(maxNanos[a][b], nanos);
+        }
+        maxOvershoot[a][b] = Math.max(maxOvershoot[a][b], overshoot);
+    }
+
+    /* ============================================================== */
+
+    // mean settle time in ms, NaN if it never settled
+    public double getSettleMs(int start, int target) {
+        return numSettled[start][target] == 0 ? Double.NaN : sumNanos[start][target] / 1000000.0 / numSettled[start][target];
+    }
+
+    public double getSettleFrames(int start, int target) {
+        return numSettled[start][target] == 0 ? Double.NaN : (double)sumFrames[start][target] / numSettled[start][target];
+    }
+
+    public String getSummary() {
+        int n = positions.length;
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "ACTUATOR: %d positions, %d repeats, mean settle ms (frames) from row to column in diopters\n%8s", n, repeats, ""));
+        for(float p : positions) {
+            sb.append(String.format(Locale.US, "%16.2f", p));
+        }
+        for(int a = 0; a < n; a++) {
+            sb.append(String.format(Locale.US, "\n%8.2f", positions[a]));
+            for(int b = 0; b < n; b++) {
+                if(a == b) {
+                    sb.append(String.format(Locale.US, "%16s", "-"));
+                } else if(numSettled[a][b] == 0) {
+                    sb.append(String.format(Locale.US, "%16s", "timeout"));
+                } else {
+                    sb.append(String.format(Locale.US, "%9.1f (%4.1f)", getSettleMs(a, b), getSettleFrames(a, b)));
+                }
+            }
+        }
+
+        sb.append("\n\tmax overshoot in diopters");
+        for(int a = 0; a < n; a++) {
+            sb.append(String.format(Locale.US, "\n%8.2f", positions[a]));
+            for(int b = 0; b < n; b++) {
+                sb.append(a == b ? String.format(Locale.US, "%16s", "-") : String.format(Locale.US, "%16.3f", maxOvershoot[a][b]));
+            }
+        }
+
+        // same step size, towards macro (increasing diopters) and towards infinity
+        sb.append("\n\tasymmetry per step size");
+        for(int d = 1; d < n; d++) {
+            double macro = 0, inf = 0;
+            int numMacro = 0, numInf = 0;
+            for(int a = 0; a + d < n; a++) {
+                if(numSettled[a][a + d] > 0) {
+                    macro += getSettleMs(a, a + d);
+                    numMacro++;
+                }
+                if(numSettled[a + d][a] > 0) {
+                    inf += getSettleMs(a + d, a);
+                    numInf++;
+                }
+            }
+            macro = numMacro > 0 ? macro / numMacro : Double.NaN;
+            inf   = numInf > 0 ? inf / numInf : Double.NaN;
+            sb.append(String.format(Locale.US, "\n\t%.2f dpt: to macro %.1f ms, to infinity %.1f ms, ratio %.2f",
+                    positions[d], macro, inf, inf / macro));
+        }
+        return sb.toString();
+    }
+
+    // one row per (start, target)
+    public File export(File dir) throws IOException {
+        Calendar now = Calendar.getInstance();
+        String fileName = String.format(Locale.US, "actuator_%s_%04d%02d%02d_%02d%02d%02d.csv",
+                name,
+                now.get(Calendar.YEAR), now.get(Calendar.MONTH) + 1, now.get(Calendar.DAY_OF_MONTH),
+                now.get(Calendar.HOUR_OF_DAY), now.get(Calendar.MINUTE), now.get(Calendar.SECOND));
+        File f = new File(dir, fileName);
+
+        try(FileWriter w = new FileWriter(f)) {
+            w.write("start_dpt,target_dpt,runs,settled,mean_ms,max_ms,mean_frames,max_overshoot_dpt\n");
+            int n = positions.length;
+            for(int a = 0; a < n; a++) {
+                for(int b = 0; b < n; b++) {
+                    if(a == b) {
+                        continue;
+                    }
+                    w.write(String.format(Locale.US, "%.3f,%.3f,%d,%d,%.3f,%.3f,%.2f,%.4f\n",
+                            positions[a], positions[b], numRuns[a][b], numSettled[a][b],
+                            getSettleMs(a, b), maxNanos[a][b] / 1000000.0, getSettleFrames(a, b), maxOvershoot[a][b]));
+                }
+            }
+        }
+        return f;
+    }
+}
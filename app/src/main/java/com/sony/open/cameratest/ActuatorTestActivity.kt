@@ -2,13 +2,17 @@ package com.sony.open.cameratest
 
 import android.app.Activity
 import android.content.Context
+import android.graphics.ImageFormat
 import android.hardware.camera2.*
 import android.os.Bundle
+import android.util.Log
 import android.util.Size
 import android.view.Surface
 import android.view.View
 import android.widget.SeekBar
 import android.widget.Toast
+import java.io.IOException
+import java.util.Locale
 import kotlinx.android.synthetic.main.activity_actuator_test.*
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.GlobalScope
@@ -18,13 +22,22 @@ import kotlinx.coroutines.launch
 class ActuatorTestActivity : Activity() {
     private val cameraManager by lazy { getSystemService(Context.CAMERA_SERVICE) as CameraManager }
     private val cameraHelper by lazy { CameraHelper(cameraManager) }
+    private val cameraInfoCache by lazy { CameraInfoCache.get(this) }
 
     private var cameraDevice : CameraDevice? = null
+    private var cameraThread : CameraThread? = null
     private var cameraSession : CameraCaptureSession? = null
     private var cameraId : String? = null
     private var previewSurface : Surface? = null
+    private var lensScheduler : LensCommandScheduler? = null
+    private var settleProfiler : ActuatorSettleProfiler? = null
+    private var focusSweep : FocusSweep? = null
+    private var contrastAf : ContrastAutofocus? = null
 
     private val size = Size(1280, 720)
+    private val sweepSteps = 50
+    private val sweepFramesPerStep = 0   // wait for the lens to settle at every step
+    private val sharpnessMinWidth = 320
 
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
@@ -32,17 +45,11 @@ class ActuatorTestActivity : Activity() {
 
         // find all camera devices with manual auto-focus control
         val ids = ArrayList<String>()
-        for (id in cameraManager.cameraIdList) {
-            val cc = cameraManager.getCameraCharacteristics(id)
-            val caps = cc[CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES]
-            if(caps != null && caps.contains(CameraMetadata.REQUEST_AVAILABLE_CAPABILITIES_MANUAL_SENSOR)) {
-                val mfd = cc[CameraCharacteristics.LENS_INFO_MINIMUM_FOCUS_DISTANCE]
-                if(mfd != null && mfd > 0) {
-                    val modes = cc[CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES]
-                    if(modes != null && modes.contains(CameraMetadata.CONTROL_AF_MODE_OFF)) {
-                        ids.add(id)
-                    }
-                }
+        for (id in cameraInfoCache.cameraIds) {
+            val info = cameraInfoCache.getInfo(id) ?: continue
+            if(info.hasCapability(CameraMetadata.REQUEST_AVAILABLE_CAPABILITIES_MANUAL_SENSOR) &&
+                    info.minFocusDistance > 0 && info.hasAfMode(CameraMetadata.CONTROL_AF_MODE_OFF)) {
+                ids.add(id)
             }
         }
         if(ids.size <= 0) {
@@ -87,17 +94,13 @@ class ActuatorTestActivity : Activity() {
     // close camera on exit
     override fun onDestroy() {
         super.onDestroy()
-        cameraSession?.close()
-        cameraSession = null
-        cameraHelper.closeCamera(cameraDevice)
+        closeSession()
     }
 
     // close camera if application paused
     override fun onPause() {
         super.onPause()
-        cameraSession?.close()
-        cameraSession = null
-        cameraHelper.closeCamera(cameraDevice)
+        closeSession()
     }
 
     // restore preview if it was active before pausing
@@ -115,8 +118,10 @@ class ActuatorTestActivity : Activity() {
             return
         }
 
-        // open camera device
-        val device = cameraHelper.openCamera(cameraId!!)
+        // open camera device, callbacks are handled on a camera thread
+        val thread = cameraThread ?: CameraThread(cameraId!!)
+        cameraThread = thread
+        val device = cameraHelper.openCamera(cameraId!!, thread.cameraHandler)
         if(device == null) {
             Toast.makeText(this@ActuatorTestActivity, "Failed to open camera $cameraId.", Toast.LENGTH_LONG).show()
             return
@@ -135,39 +140,70 @@ class ActuatorTestActivity : Activity() {
             return
         }
 
+        // small YUV stream to measure sharpness on, same aspect ratio as the preview if possible
+        if(chkActuatorTestSharpness.isChecked) {
+            val sizes = cameraInfoCache.getInfo(cameraId!!)?.getOutputSizes(ImageFormat.YUV_420_888)
+                    ?.filter { it.width >= sharpnessMinWidth }?.sortedBy { it.width * it.height } ?: listOf()
+            val yuvSize = sizes.firstOrNull { it.width * size.height == it.height * size.width } ?: sizes.firstOrNull()
+            if(yuvSize != null) {
+                contrastAf = ContrastAutofocus(yuvSize.width, yuvSize.height, SharpnessEngine.LAPLACIAN,
+                        2 * sweepSteps + 1, thread.imageHandler)
+            } else {
+                Toast.makeText(this@ActuatorTestActivity, "No YUV size to measure sharpness on.", Toast.LENGTH_LONG).show()
+            }
+        }
+        val surfaces = listOfNotNull(previewSurface, contrastAf?.surface)
+
         // create capture session
-        cameraSession = cameraHelper.createCaptureSession(device, listOf(previewSurface!!))
+        val session = cameraHelper.createCaptureSession(device, surfaces, thread.cameraHandler) ?: return
+        cameraSession = session
+
+        // lens commands reuse one request builder with fixed lens position
+        val builder = device.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW)
+        for(s in surfaces) {
+            builder.addTarget(s)
+        }
+        builder[CaptureRequest.CONTROL_AF_MODE] = CaptureRequest.CONTROL_AF_MODE_OFF
+        val scheduler = LensCommandScheduler(session, builder, thread.cameraHandler, chkActuatorTestPreview.isChecked)
+        contrastAf?.let { scheduler.addFrameListener(it) }
+        lensScheduler = scheduler
     }
 
-    // move lens position
-    private fun moveLens(newValue : Int) {
-        // compute focus distance
-        val mfd = cameraManager.getCameraCharacteristics(cameraId!!)[CameraCharacteristics.LENS_INFO_MINIMUM_FOCUS_DISTANCE] ?: 0.0f
+    private fun closeSession() {
+        settleProfiler?.let {
+            it.cancel()
+            setControlsEnabled(true)
+        }
+        settleProfiler = null
+        focusSweep?.let {
+            it.cancel()
+            setControlsEnabled(true)
+        }
+        focusSweep = null
+        lensScheduler?.let {
+            it.stop()
+            Log.d("CameraTest", it.summary)
+        }
+        lensScheduler = null
+        cameraSession?.close()
+        cameraSession = null
+        contrastAf?.release()
+        contrastAf = null
+        cameraHelper.closeCamera(cameraDevice)
+        cameraThread?.release()
+        cameraThread = null
+    }
 
+    // move lens position, newer positions replace ones not sent yet
+    private fun moveLens(newValue : Int) {
         // return if no session active
-        if(cameraSession == null) {
-            return
-        }
+        val scheduler = lensScheduler ?: return
 
-        // create capture request with fixed lens position
-        val builder = cameraDevice!!.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW)
-        builder.addTarget(previewSurface!!)
-        builder[CaptureRequest.CONTROL_AF_MODE] = CaptureRequest.CONTROL_AF_MODE_OFF
-        builder[CaptureRequest.LENS_FOCUS_DISTANCE] = (newValue * mfd) / 100
-        val req = builder.build()
+        // compute focus distance
+        val mfd = cameraInfoCache.getInfo(cameraId!!)?.minFocusDistance ?: 0.0f
 
-        // send request
-        if(chkActuatorTestPreview.isChecked) {
-            // update repeating request if preview is active
-            cameraSession?.setRepeatingRequest(req, object : CameraCaptureSession.CaptureCallback() {
-                // nothing to override
-            }, null)
-        } else {
-            // single-shot if no preview
-            cameraSession?.capture(req, object : CameraCaptureSession.CaptureCallback() {
-                // nothing to override
-            }, null)
-        }
+        // repeating request with preview, single-shot otherwise
+        scheduler.submit((newValue * mfd) / 100)
     }
 
     // when checkbox is clicked
@@ -180,19 +216,27 @@ class ActuatorTestActivity : Activity() {
             }
 
             // enable or disable preview
+            lensScheduler?.setRepeating(chkActuatorTestPreview.isChecked)
             if(chkActuatorTestPreview.isChecked) {
                 moveLens(seekActuatorTestPosition.progress)
-            } else {
-                cameraSession?.stopRepeating()
-
             }
         }
     }
 
+    // when checkbox is clicked, reopen the session with or without the sharpness stream
+    @Suppress("UNUSED_PARAMETER")
+    fun chkActuatorTestSharpnessClick(v : View) {
+        closeSession()
+        if(chkActuatorTestPreview.isChecked) {
+            chkActuatorTestPreviewClick(chkActuatorTestPreview)
+        }
+    }
+
     // when seek bar value is changed, move lens
     @Suppress("UNUSED_PARAMETER")
     fun seekActuatorTestPositionChange(newValue : Int, fromUser : Boolean) {
-        GlobalScope.launch(Dispatchers.Main) {
+        // a running sweep moves the lens itself
+        if(focusSweep == null) {
             moveLens(newValue)
         }
     }
@@ -206,28 +250,125 @@ class ActuatorTestActivity : Activity() {
                 openSession()
             }
 
+            val scheduler = lensScheduler ?: return@launch
+            val mfd = cameraInfoCache.getInfo(cameraId!!)?.minFocusDistance ?: 0.0f
+
             // disable UI
-            btnActuatorTestSweep.isEnabled = false
-            chkActuatorTestPreview.isEnabled = false
-
-            // sweep forward (inf->macro) and backward (macro->inf)
-            val bar = seekActuatorTestPosition
-            val top = 50
-            bar.isEnabled = false
-            for(i in 0..top) {
-                bar.progress = (100* i)/top
-                delay(50)
+            setControlsEnabled(false)
+
+            // sweep forward (inf->macro) and backward (macro->inf), stepping with the frames
+            scheduler.setRepeating(true)
+            contrastAf?.start()
+            val positions = FocusSweep.backAndForth(0.0f, mfd, sweepSteps)
+            val sweep = FocusSweep("cam$cameraId", scheduler, positions, sweepFramesPerStep, object : FocusSweep.Listener {
+                override fun onPosition(sweep: FocusSweep, step: Int) {
+                    val progress = if (mfd > 0) Math.round(100 * sweep.getPosition(step) / mfd) else 0
+                    runOnUiThread { seekActuatorTestPosition.progress = progress }
+                }
+
+                override fun onFinished(sweep: FocusSweep) {
+                    runOnUiThread { sweepFinished(sweep) }
+                }
+            })
+            focusSweep = sweep
+            sweep.start()
+        }
+    }
+
+    private fun sweepFinished(sweep : FocusSweep) {
+        // session closed in the meantime
+        if(focusSweep !== sweep) {
+            return
+        }
+        focusSweep = null
+
+        Log.d("CameraTest", sweep.summary)
+        try {
+            Log.d("CameraTest", "sweep trace saved as ${sweep.export(getExternalFilesDir(null))}")
+        } catch(e : IOException) {
+            Log.e("CameraTest", "Failed to save sweep trace: ${e.localizedMessage}")
+        }
+
+        // move to the sharpest position found on the way
+        contrastAf?.let {
+            it.stop()
+            Log.d("CameraTest", it.summary)
+            val peak = it.curve.peakDistance
+            val mfd = cameraInfoCache.getInfo(cameraId!!)?.minFocusDistance ?: 0.0f
+            if(!peak.isNaN() && mfd > 0) {
+                seekActuatorTestPosition.progress = Math.round(100 * peak / mfd).toInt()
+                Toast.makeText(this, String.format(Locale.US, "Sharpest at %.2f dpt.", peak), Toast.LENGTH_SHORT).show()
             }
-            for(i in top downTo 0) {
-                bar.progress = (100 * i)/top
-                delay(50)
+        }
+
+        // restore preview state and UI
+        lensScheduler?.setRepeating(chkActuatorTestPreview.isChecked)
+        moveLens(seekActuatorTestPosition.progress)
+        setControlsEnabled(true)
+    }
+
+    // when profile button is clicked, measure settle times between lens positions
+    @Suppress("UNUSED_PARAMETER")
+    fun btnActuatorTestProfileClick(v : View) {
+        GlobalScope.launch(Dispatchers.Main) {
+            // open session if needed
+            if(cameraSession == null) {
+                openSession()
+            }
+            val scheduler = lensScheduler ?: return@launch
+            val mfd = cameraInfoCache.getInfo(cameraId!!)?.minFocusDistance ?: 0.0f
+            if(mfd <= 0) {
+                Toast.makeText(this@ActuatorTestActivity, "Lens has a fixed focus, nothing to profile.", Toast.LENGTH_LONG).show()
+                return@launch
             }
 
-            // restore UI
-            bar.isEnabled = true
-            chkActuatorTestPreview.isEnabled = true
-            btnActuatorTestSweep.isEnabled = true
+            // disable UI
+            setControlsEnabled(false)
+
+            // lens state is reported per frame, so keep a repeating request running
+            scheduler.setRepeating(true)
+            val profiler = ActuatorSettleProfiler("cam$cameraId", scheduler, mfd, 5, 3, object : ActuatorSettleProfiler.Listener {
+                override fun onProgress(profiler: ActuatorSettleProfiler, step: Int, numSteps: Int) {
+                    runOnUiThread { txtActuatorTestCamera.text = "Profiling: step ${step + 1} of $numSteps" }
+                }
+
+                override fun onFinished(profiler: ActuatorSettleProfiler) {
+                    runOnUiThread { profileFinished(profiler) }
+                }
+            })
+            settleProfiler = profiler
+            profiler.start()
         }
     }
 
+    private fun profileFinished(profiler : ActuatorSettleProfiler) {
+        // session closed in the meantime
+        if(settleProfiler !== profiler) {
+            return
+        }
+        settleProfiler = null
+
+        Log.d("CameraTest", profiler.summary)
+        val text = try {
+            "Settle times saved as ${profiler.export(getExternalFilesDir(null))}."
+        } catch(e : IOException) {
+            "Failed to save settle times: ${e.localizedMessage}"
+        }
+        Toast.makeText(this, text, Toast.LENGTH_LONG).show()
+
+        // back to the preview state and lens position of the UI
+        lensScheduler?.setRepeating(chkActuatorTestPreview.isChecked)
+        moveLens(seekActuatorTestPosition.progress)
+        txtActuatorTestCamera.text = "Camera: $cameraId (${size.width}x${size.height})"
+        setControlsEnabled(true)
+    }
+
+    private fun setControlsEnabled(isEnabled : Boolean) {
+        btnActuatorTestSweep.isEnabled = isEnabled
+        btnActuatorTestProfile.isEnabled = isEnabled
+        chkActuatorTestPreview.isEnabled = isEnabled
+        chkActuatorTestSharpness.isEnabled = isEnabled
+        seekActuatorTestPosition.isEnabled = isEnabled
+    }
+
 }
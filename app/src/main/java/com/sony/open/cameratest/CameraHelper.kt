@@ -10,13 +10,18 @@ import android.hardware.camera2.CameraCaptureSession
 import android.hardware.camera2.CameraConstrainedHighSpeedCaptureSession
 import android.hardware.camera2.CameraDevice
 import android.hardware.camera2.CameraManager
+import android.hardware.camera2.params.InputConfiguration
+import android.os.Handler
 import android.view.Surface
 import kotlin.coroutines.resume
 import kotlin.coroutines.suspendCoroutine
 
 class CameraHelper(private val cameraManager : CameraManager) {
     // open camera - returns CameraDevice or null on failure
-    suspend fun openCamera(cameraId : String): CameraDevice? = suspendCoroutine { cont ->
+    // callbacks run on handler, or on the calling thread's looper if null
+    // onLost is called with the error (0 when disconnected) if the camera goes away after it was opened
+    suspend fun openCamera(cameraId : String, handler : Handler? = null,
+                           onLost : ((CameraDevice, Int) -> Unit)? = null): CameraDevice? = suspendCoroutine { cont ->
         val cb = object : CameraDevice.StateCallback() {
             var isDone = false
 
@@ -31,6 +36,8 @@ class CameraHelper(private val cameraManager : CameraManager) {
                 if(!isDone) {
                     isDone = true
                     cont.resume(null)
+                } else {
+                    onLost?.invoke(camera, 0)
                 }
             }
 
@@ -38,12 +45,14 @@ class CameraHelper(private val cameraManager : CameraManager) {
                 if(!isDone) {
                     isDone = true
                     cont.resume(null)
+                } else {
+                    onLost?.invoke(camera, error)
                 }
             }
         }
 
         try {
-            cameraManager.openCamera(cameraId, cb, null)
+            cameraManager.openCamera(cameraId, cb, handler)
         } catch(e: SecurityException) {
             cont.resume(null)
         }
@@ -55,7 +64,7 @@ class CameraHelper(private val cameraManager : CameraManager) {
     }
 
     // create CaptureSession - returns CameraCaptureSession or null on failure
-    suspend fun createCaptureSession(device : CameraDevice, surfaces : List<Surface>): CameraCaptureSession? = suspendCoroutine { cont ->
+    suspend fun createCaptureSession(device : CameraDevice, surfaces : List<Surface>, handler : Handler? = null): CameraCaptureSession? = suspendCoroutine { cont ->
         val cb = object : CameraCaptureSession.StateCallback() {
             override fun onConfigured(session: CameraCaptureSession) {
                 cont.resume(session)
@@ -65,11 +74,25 @@ class CameraHelper(private val cameraManager : CameraManager) {
                 cont.resume(null)
             }
         }
-        device.createCaptureSession(surfaces, cb, null)
+        device.createCaptureSession(surfaces, cb, handler)
+    }
+
+    // create reprocessable CaptureSession - returns CameraCaptureSession or null on failure
+    suspend fun createReprocessableSession(device : CameraDevice, input : InputConfiguration, surfaces : List<Surface>, handler : Handler? = null): CameraCaptureSession? = suspendCoroutine { cont ->
+        val cb = object : CameraCaptureSession.StateCallback() {
+            override fun onConfigured(session: CameraCaptureSession) {
+                cont.resume(session)
+            }
+
+            override fun onConfigureFailed(session: CameraCaptureSession) {
+                cont.resume(null)
+            }
+        }
+        device.createReprocessableCaptureSession(input, surfaces, cb, handler)
     }
 
     // create ConstrainedHighSpeedCaptureSession - returns CameraConstrainedHighSpeedCaptureSession or null on failure
-    suspend fun createHighSpeedSession(device : CameraDevice, surfaces : List<Surface>): CameraConstrainedHighSpeedCaptureSession? = suspendCoroutine { cont ->
+    suspend fun createHighSpeedSession(device : CameraDevice, surfaces : List<Surface>, handler : Handler? = null): CameraConstrainedHighSpeedCaptureSession? = suspendCoroutine { cont ->
         val cb = object : CameraCaptureSession.StateCallback() {
             override fun onConfigured(session: CameraCaptureSession) {
                 cont.resume(session as CameraConstrainedHighSpeedCaptureSession)
@@ -79,7 +102,7 @@ class CameraHelper(private val cameraManager : CameraManager) {
                 cont.resume(null)
             }
         }
-        device.createConstrainedHighSpeedCaptureSession(surfaces, cb, null)
+        device.createConstrainedHighSpeedCaptureSession(surfaces, cb, handler)
     }
 
     // show AlertDialog - return selection index or null on failure
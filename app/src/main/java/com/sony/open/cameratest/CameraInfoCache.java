@@ -0,0 +1,486 @@
+/*
+ * Copyright (c) 2019, Sony Mobile Communications Inc.
+ * Licensed under the LICENSE.
+ */
+package com.sony.open.cameratest;
+
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.Range;
+import android.util.Size;
+
+import androidx.annotation.NonNull;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Camera characteristics, loaded once for all cameras.
+ *
+ * Every getCameraCharacteristics() call goes to the camera service. This
+ * cache queries each camera once per process and keeps an index of what
+ * the activities look at: capabilities, AF and scene modes, focus range,
+ * output and input sizes per format with their minimum frame and stall
+ * durations, and high speed video configurations.
+ *
+ * The index is written to a snapshot file, so a cold start only asks
+ * for the list of camera ids. The snapshot is used while the build
+ * fingerprint and the camera ids stay the same. Cameras appearing or
+ * external ones going away while the app runs drop the cache and the
+ * snapshot; the next access loads everything again.
+ *
+ * Methods may be called from any thread.
+ */
+public class CameraInfoCache {
+    private static final String snapshotName = "camera_info.txt";
+
+    private static CameraInfoCache instance = null;
+
+    // index of one camera
+    public static class Info {
+        String  id;
+        int     facing = -1, hardwareLevel = -1, timestampSource = -1;
+        int[]   capabilities = {}, afModes = {}, sceneModes = {};
+        float   minFocusDistance = 0, hyperfocalDistance = 0;
+        int     activeWidth = 0, activeHeight = 0;
+        final List<long[]> outputs   = new ArrayList<>();   // format, width, height, min frame duration, stall duration
+        final List<int[]>  inputs    = new ArrayList<>();   // format, width, height
+        final List<int[]>  highSpeed = new ArrayList<>();   // width, height, min fps, max fps
+
+        public String getId() {
+            return id;
+        }
+
+        public int getFacing() {
+            return facing;
+        }
+
+        public int getHardwareLevel() {
+            return hardwareLevel;
+        }
+
+        public boolean isRealtimeTimestamp() {
+            return timestampSource == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
+        }
+
+        public boolean hasCapability(int capability) {
+            return contains(capabilities, capability);
+        }
+
+        public boolean hasAfMode(int mode) {
+            return contains(afModes, mode);
+        }
+
+        public boolean hasSceneMode(int mode) {
+            return contains(sceneModes, mode);
+        }
+
+        // diopters, 0 for fixed focus
+        public float getMinFocusDistance() {
+            return minFocusDistance;
+        }
+
+        public float getHyperfocalDistance() {
+            return hyperfocalDistance;
+        }
+
+        public Size getActiveArraySize() {
+            return new Size(activeWidth, activeHeight);
+        }
+
+        public Size[] getOutputSizes(int format) {
+            List<Size> sizes = new ArrayList<>();
+            for(long[] o : outputs) {
+                if(o[0] == format) {
+                    sizes.add(new Size((int)o[1], (int)o[2]));
+                }
+            }
+            return sizes.toArray(new Size[0]);
+        }
+
+        public Size[] getInputSizes(int format) {
+            List<Size> sizes = new ArrayList<>();
+            for(int[] i : inputs) {
+                if(i[0] == format) {
+                    sizes.add(new Size(i[1], i[2]));
+                }
+            }
+            return sizes.toArray(new Size[0]);
+        }
+
+        // ns, 0 if the size is not supported
+        public long getMinFrameDuration(int format, Size size) {
+            long[] o = findOutput(format, size);
+            return o == null ? 0 : o[3];
+        }
+
+        // ns, 0 if the size is not supported or never stalls
+        public long getStallDuration(int format, Size size) {
+            long[] o = findOutput(format, size);
+            return o == null ? 0 : o[4];
+        }
+
+        public List<Range<Integer>> getHighSpeedVideoFpsRanges() {
+            List<Range<Integer>> ranges = new ArrayList<>();
+            for(int[] h : highSpeed) {
+                Range<Integer> r = new Range<>(h[2], h[3]);
+                if(!ranges.contains(r)) {
+                    ranges.add(r);
+                }
+            }
+            return ranges;
+        }
+
+        public Size[] getHighSpeedVideoSizesFor(Range<Integer> fpsRange) {
+            List<Size> sizes = new ArrayList<>();
+            for(int[] h : highSpeed) {
+                if(h[2] == fpsRange.getLower() && h[3] == fpsRange.getUpper()) {
+                    sizes.add(new Size(h[0], h[1]));
+                }
+            }
+            return sizes.toArray(new Size[0]);
+        }
+
+        private long[] findOutput(int format, Size size) {
+            for(long[] o : outputs) {
+                if(o[0] == format && o[1] == size.getWidth() && o[2] == size.getHeight()) {
+                    return o;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final CameraManager manager;
+    private final File          snapshot;
+
+    // guarded by this, ids is null until loaded
+    private String[] ids = null;
+    private final Map<String, Info> infos = new HashMap<>();
+    private final Map<String, CameraCharacteristics> characteristics = new HashMap<>();
+
+    private CameraInfoCache(CameraManager manager, File snapshot) {
+        this.manager  = manager;
+        this.snapshot = snapshot;
+        manager.registerAvailabilityCallback(availabilityCallback, new Handler(Looper.getMainLooper()));
+    }
+
+    public static synchronized CameraInfoCache get(Context context) {
+        if(instance == null) {
+            Context app = context.getApplicationContext();
+            instance = new CameraInfoCache((CameraManager)app.getSystemService(Context.CAMERA_SERVICE),
+                    new File(app.getFilesDir(), snapshotName));
+        }
+        return instance;
+    }
+
+    // all camera ids, empty if the camera service failed
+    public synchronized String[] getCameraIds() {
+        return load() ? ids.clone() : new String[0];
+    }
+
+    // index of camera, or null if there is no such camera
+    public synchronized Info getInfo(String id) {
+        return load() ? infos.get(id) : null;
+    }
+
+    // full characteristics for keys not in the index, fetched once; null on failure
+    public synchronized CameraCharacteristics getCharacteristics(String id) {
+        CameraCharacteristics cc = characteristics.get(id);
+        if(cc == null) {
+            try {
+                cc = manager.getCameraCharacteristics(id);
+                characteristics.put(id, cc);
+            } catch(CameraAccessException | IllegalArgumentException e) {
+                Log.w("CameraTest", "camera info: failed to get characteristics of " + id + ": " + e.getMessage());
+            }
+        }
+        return cc;
+    }
+
+    // forget everything, e.g. after a camera was added or removed
+    public synchronized void invalidate(String reason) {
+        Log.d("CameraTest", "camera info: invalidated, " + reason);
+        ids = null;
+        infos.clear();
+        characteristics.clear();
+        if(snapshot.exists() && !snapshot.delete()) {
+            Log.w("CameraTest", "camera info: failed to delete snapshot");
+        }
+    }
+
+    /* ============================================================== */
+
+    private final CameraManager.AvailabilityCallback availabilityCallback = new CameraManager.AvailabilityCallback() {
+        @Override
+        public void onCameraAvailable(@NonNull String cameraId) {
+            synchronized(CameraInfoCache.this) {
+                if(ids != null && !infos.containsKey(cameraId)) {
+                    invalidate("camera " + cameraId + " appeared");
+                }
+            }
+        }
+
+        @Override
+        public void onCameraUnavailable(@NonNull String cameraId) {
+            // opening a camera makes it unavailable too, but only external ones can go away
+            synchronized(CameraInfoCache.this) {
+                Info info = ids != null ? infos.get(cameraId) : null;
+                if(info != null && info.facing == CameraCharacteristics.LENS_FACING_EXTERNAL) {
+                    invalidate("external camera " + cameraId + " unavailable");
+                }
+            }
+        }
+    };
+
+    // fill the cache from the snapshot or the camera service, returns false on failure
+    private boolean load() {
+        if(ids != null) {
+            return true;
+        }
+
+        long then = System.nanoTime();
+        String[] current;
+        try {
+            current = manager.getCameraIdList();
+        } catch(CameraAccessException e) {
+            Log.w("CameraTest", "camera info: failed to get camera ids: " + e.getMessage());
+            return false;
+        }
+
+        List<Info> list = read(snapshot, current);
+        boolean isSnapshot = list != null;
+        if(list == null) {
+            list = new ArrayList<>();
+            for(String id : current) {
+                CameraCharacteristics cc = getCharacteristics(id);
+                if(cc == null) {
+                    return false;
+                }
+                list.add(index(id, cc));
+            }
+            try {
+                write(snapshot, current, list);
+            } catch(IOException e) {
+                Log.w("CameraTest", "camera info: failed to write snapshot: " + e.getMessage());
+            }
+        }
+
+        for(Info info : list) {
+            infos.put(info.id, info);
+        }
+        ids = current;
+        Log.d("CameraTest", String.format(Locale.US, "camera info: %d cameras from %s in %.2f ms",
+                ids.length, isSnapshot ? "snapshot" : "camera service", (System.nanoTime() - then) / 1000000.0));
+        return true;
+    }
+
+    private static Info index(String id, CameraCharacteristics cc) {
+        Info info = new Info();
+        info.id                 = id;
+        info.facing             = orDefault(cc.get(CameraCharacteristics.LENS_FACING), -1);
+        info.hardwareLevel      = orDefault(cc.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL), -1);
+        info.timestampSource    = orDefault(cc.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE), -1);
+        info.capabilities       = orDefault(cc.get(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES));
+        info.afModes            = orDefault(cc.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES));
+        info.sceneModes         = orDefault(cc.get(CameraCharacteristics.CONTROL_AVAILABLE_SCENE_MODES));
+        info.minFocusDistance   = orDefault(cc.get(CameraCharacteristics.LENS_INFO_MINIMUM_FOCUS_DISTANCE), 0f);
+        info.hyperfocalDistance = orDefault(cc.get(CameraCharacteristics.LENS_INFO_HYPERFOCAL_DISTANCE), 0f);
+
+        Rect active = cc.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
+        if(active != null) {
+            info.activeWidth  = active.width();
+            info.activeHeight = active.height();
+        }
+
+        StreamConfigurationMap map = cc.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        if(map == null) {
+            return info;
+        }
+
+        // PRIVATE is not always listed among the output formats
+        int[] formats = map.getOutputFormats();
+        if(!contains(formats, ImageFormat.PRIVATE)) {
+            formats = Arrays.copyOf(formats, formats.length + 1);
+            formats[formats.length - 1] = ImageFormat.PRIVATE;
+        }
+        for(int format : formats) {
+            Size[] sizes = map.getOutputSizes(format);
+            if(sizes == null) {
+                continue;
+            }
+            for(Size s : sizes) {
+                info.outputs.add(new long[] { format, s.getWidth(), s.getHeight(),
+                        map.getOutputMinFrameDuration(format, s), map.getOutputStallDuration(format, s) });
+            }
+        }
+        for(int format : map.getInputFormats()) {
+            for(Size s : map.getInputSizes(format)) {
+                info.inputs.add(new int[] { format, s.getWidth(), s.getHeight() });
+            }
+        }
+        if(info.hasCapability(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES_CONSTRAINED_HIGH_SPEED_VIDEO)) {
+            for(Range<Integer> r : map.getHighSpeedVideoFpsRanges()) {
+                for(Size s : map.getHighSpeedVideoSizesFor(r)) {
+                    info.highSpeed.add(new int[] { s.getWidth(), s.getHeight(), r.getLower(), r.getUpper() });
+                }
+            }
+        }
+        return info;
+    }
+
+    private static int orDefault(Integer value, int def) {
+        return value != null ? value : def;
+    }
+
+    private static float orDefault(Float value, float def) {
+        return value != null ? value : def;
+    }
+
+    private static int[] orDefault(int[] value) {
+        return value != null ? value : new int[0];
+    }
+
+    private static boolean contains(int[] arr, int val) {
+        for(int elem : arr) {
+            if(elem == val) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* ============================================================== */
+
+    // one line per entry, the first lines are the build fingerprint and the camera ids
+    private static void write(File f, String[] ids, List<Info> list) throws IOException {
+        try(PrintWriter w = new PrintWriter(new FileWriter(f))) {
+            w.println("fingerprint " + Build.FINGERPRINT);
+            w.println("cameras " + join(ids));
+            for(Info info : list) {
+                w.println("camera " + info.id + " " + info.facing + " " + info.hardwareLevel + " " + info.timestampSource + " "
+                        + info.minFocusDistance + " " + info.hyperfocalDistance + " " + info.activeWidth + " " + info.activeHeight);
+                w.println("caps" + join(info.capabilities));
+                w.println("af" + join(info.afModes));
+                w.println("scenes" + join(info.sceneModes));
+                for(long[] o : info.outputs) {
+                    w.println("output " + o[0] + " " + o[1] + " " + o[2] + " " + o[3] + " " + o[4]);
+                }
+                for(int[] i : info.inputs) {
+                    w.println("input " + i[0] + " " + i[1] + " " + i[2]);
+                }
+                for(int[] h : info.highSpeed) {
+                    w.println("highspeed " + h[0] + " " + h[1] + " " + h[2] + " " + h[3]);
+                }
+            }
+            if(w.checkError()) {
+                throw new IOException("write failed");
+            }
+        }
+    }
+
+    // null if missing, unreadable, from another build or for other cameras
+    private static List<Info> read(File f, String[] ids) {
+        if(!f.exists()) {
+            return null;
+        }
+
+        List<Info> list = new ArrayList<>();
+        try(BufferedReader r = new BufferedReader(new FileReader(f))) {
+            String line = r.readLine();
+            if(line == null || !line.equals("fingerprint " + Build.FINGERPRINT)) {
+                Log.d("CameraTest", "camera info: snapshot is from another build");
+                return null;
+            }
+            line = r.readLine();
+            if(line == null || !line.equals("cameras " + join(ids))) {
+                Log.d("CameraTest", "camera info: snapshot is for other cameras");
+                return null;
+            }
+
+            Info info = null;
+            while((line = r.readLine()) != null) {
+                String[] t = line.split(" ");
+                if(t[0].equals("camera")) {
+                    info = new Info();
+                    info.id                 = t[1];
+                    info.facing             = Integer.parseInt(t[2]);
+                    info.hardwareLevel      = Integer.parseInt(t[3]);
+                    info.timestampSource    = Integer.parseInt(t[4]);
+                    info.minFocusDistance   = Float.parseFloat(t[5]);
+                    info.hyperfocalDistance = Float.parseFloat(t[6]);
+                    info.activeWidth        = Integer.parseInt(t[7]);
+                    info.activeHeight       = Integer.parseInt(t[8]);
+                    list.add(info);
+                } else if(info == null) {
+                    continue;
+                } else if(t[0].equals("caps")) {
+                    info.capabilities = parseInts(t);
+                } else if(t[0].equals("af")) {
+                    info.afModes = parseInts(t);
+                } else if(t[0].equals("scenes")) {
+                    info.sceneModes = parseInts(t);
+                } else if(t[0].equals("output")) {
+                    info.outputs.add(new long[] { Long.parseLong(t[1]), Long.parseLong(t[2]), Long.parseLong(t[3]),
+                            Long.parseLong(t[4]), Long.parseLong(t[5]) });
+                } else if(t[0].equals("input")) {
+                    info.inputs.add(new int[] { Integer.parseInt(t[1]), Integer.parseInt(t[2]), Integer.parseInt(t[3]) });
+                } else if(t[0].equals("highspeed")) {
+                    info.highSpeed.add(new int[] { Integer.parseInt(t[1]), Integer.parseInt(t[2]),
+                            Integer.parseInt(t[3]), Integer.parseInt(t[4]) });
+                }
+            }
+        } catch(IOException | RuntimeException e) {
+            Log.w("CameraTest", "camera info: failed to read snapshot: " + e.getMessage());
+            return null;
+        }
+        return list.size() == ids.length ? list : null;
+    }
+
+    private static String join(String[] values) {
+        StringBuilder sb = new StringBuilder();
+        for(String v : values) {
+            if(sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append(v);
+        }
+        return sb.toString();
+    }
+
+    // values with a leading space each
+    private static String join(int[] values) {
+        StringBuilder sb = new StringBuilder();
+        for(int v : values) {
+            sb.append(' ').append(v);
+        }
+        return sb.toString();
+    }
+
+    private static int[] parseInts(String[] t) {
+        int[] values = new int[t.length - 1];
+        for(int i = 1; i < t.length; i++) {
+            values[i - 1] = Integer.parseInt(t[i]);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2019, Sony Mobile Communications Inc.
+ * Licensed under the LICENSE.
+ */
+package com.sony.open.cameratest
+
+import android.hardware.camera2.CameraCaptureSession
+import android.hardware.camera2.CameraDevice
+import android.hardware.camera2.params.InputConfiguration
+import android.os.Handler
+import android.os.Looper
+import android.util.Log
+import android.view.Surface
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.launch
+
+// Opens a camera and configures a capture session on its own CameraThread.
+// Opening another camera closes the current one first, also while it is still opening.
+// Every session records SessionTimings; the app reports its first capture start and image.
+// All methods must be called on the main thread, the listener is called on the main thread.
+class CameraSessionController(private val cameraHelper : CameraHelper, private val listener : Listener) {
+    interface Listener {
+        // camera opened - return session outputs, or null to close it again
+        fun onCreateOutputs(device : CameraDevice, thread : CameraThread) : List<Surface>?
+
+        // return input configuration for a reprocessable session, or null
+        fun onCreateInputConfiguration(device : CameraDevice) : InputConfiguration?
+
+        // session configured - start repeating requests here
+        fun onSessionReady(device : CameraDevice, session : CameraCaptureSession, thread : CameraThread)
+
+        // camera closed, error is null when closed on request or for switching cameras
+        // the camera thread stops afterwards, work posted to it now runs after the queued callbacks
+        fun onSessionClosed(error : String?)
+
+        // a start-up milestone was reached
+        fun onSessionTimings(timings : SessionTimings)
+    }
+
+    enum class State { CLOSED, OPENING, CONFIGURING, READY }
+
+    var state = State.CLOSED
+        private set
+    var device : CameraDevice? = null
+        private set
+    var session : CameraCaptureSession? = null
+        private set
+    var thread : CameraThread? = null
+        private set
+    @Volatile var timings : SessionTimings? = null
+        private set
+
+    // camera that should be open, null if none
+    private var wantedId : String? = null
+    private val mainHandler = Handler(Looper.getMainLooper())
+
+    // open camera, closing the current one first
+    fun open(cameraId : String) {
+        wantedId = cameraId
+        when(state) {
+            State.CLOSED -> openWanted()
+            State.READY -> {
+                closeCurrent(null)
+                openWanted()
+            }
+            // the running start-up notices the switch
+            else -> {}
+        }
+    }
+
+    fun close() {
+        wantedId = null
+        if(state == State.READY) {
+            closeCurrent(null)
+        }
+    }
+
+    // any thread - call from onCaptureStarted of any request
+    fun onCaptureStarted() {
+        val t = timings ?: return
+        if(t.onCaptureStarted()) {
+            report(t)
+        }
+    }
+
+    // any thread - call when a preview image or result arrives, not for stills the user asked for
+    fun onImageAvailable() {
+        val t = timings ?: return
+        if(t.onImageAvailable()) {
+            report(t)
+        }
+    }
+
+    /* ============================================================== */
+
+    private fun openWanted() {
+        val cameraId = wantedId ?: return
+        val t = SessionTimings(cameraId)
+        val th = CameraThread(cameraId)
+        thread = th
+        timings = t
+        state = State.OPENING
+        t.onOpenRequested()
+
+        GlobalScope.launch(Dispatchers.Main) {
+            val dev = cameraHelper.openCamera(cameraId, th.cameraHandler) { lost, error ->
+                th.runOnMain(Runnable { onLost(lost, error) })
+            }
+            // this start-up was given up meanwhile
+            if(thread !== th) {
+                cameraHelper.closeCamera(dev)
+                return@launch
+            }
+            if(dev == null) {
+                abort(cameraId, "Failed to open camera $cameraId.")
+                return@launch
+            }
+            t.onOpened()
+            listener.onSessionTimings(t)
+            device = dev
+
+            // switched or closed while opening
+            if(wantedId != cameraId) {
+                restart()
+                return@launch
+            }
+
+            state = State.CONFIGURING
+            val ses = try {
+                val outputs = listener.onCreateOutputs(dev, th)
+                if(outputs == null) {
+                    null
+                } else {
+                    val input = listener.onCreateInputConfiguration(dev)
+                    if(input != null) {
+                        cameraHelper.createReprocessableSession(dev, input, outputs, th.cameraHandler)
+                    } else {
+                        cameraHelper.createCaptureSession(dev, outputs, th.cameraHandler)
+                    }
+                }
+            } catch(e : Exception) {
+                Log.w("CameraTest", "session: failed to create session: " + e.message)
+                null
+            }
+            // camera lost while configuring
+            if(thread !== th) {
+                ses?.close()
+                return@launch
+            }
+            if(ses == null) {
+                abort(cameraId, "Failed to configure session for camera $cameraId.")
+                return@launch
+            }
+            t.onConfigured()
+            listener.onSessionTimings(t)
+            session = ses
+
+            if(wantedId != cameraId) {
+                restart()
+                return@launch
+            }
+
+            state = State.READY
+            listener.onSessionReady(dev, ses, th)
+        }
+    }
+
+    // close the camera that finished opening and open the wanted one, if any
+    private fun restart() {
+        closeCurrent(null)
+        openWanted()
+    }
+
+    // start-up failed; only an error if the camera is still wanted
+    private fun abort(cameraId : String, error : String) {
+        if(wantedId == cameraId) {
+            wantedId = null
+            closeCurrent(error)
+        } else {
+            restart()
+        }
+    }
+
+    private fun onLost(lost : CameraDevice, error : Int) {
+        if(lost !== device) {
+            return
+        }
+        wantedId = null
+        closeCurrent(if(error == 0) "Camera disconnected." else "Camera failed, error $error.")
+    }
+
+    private fun closeCurrent(error : String?) {
+        val th = thread
+        session?.close()
+        session = null
+        cameraHelper.closeCamera(device)
+        device = null
+        thread = null
+        timings = null
+        state = State.CLOSED
+        listener.onSessionClosed(error)
+        th?.release()
+    }
+
+    private fun report(t : SessionTimings) {
+        mainHandler.post {
+            // skip milestones of a session closed meanwhile
+            if(timings === t) {
+                listener.onSessionTimings(t)
+            }
+        }
+    }
+}
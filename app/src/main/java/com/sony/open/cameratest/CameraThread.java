@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2019, Sony Mobile Communications Inc.
+ * Licensed under the LICENSE.
+ */
+package com.sony.open.cameratest;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * Threads used by a single camera device.
+ *
+ * Device, session and capture callbacks are delivered on the camera thread,
+ * ImageReader callbacks that do heavy work on the image thread. Anything
+ * touching views has to be posted to the main thread.
+ */
+public class CameraThread {
+    private static final int reportInterval = 300;
+
+    private final String        name;
+    private final HandlerThread cameraThread, imageThread;
+    private final Handler       cameraHandler, imageHandler;
+    private final Handler       mainHandler = new Handler(Looper.getMainLooper());
+
+    // callback dispatch latency, only touched on the camera thread
+    private boolean isRealtimeTimestamp = false;
+    private long dispatchN = 0, dispatchMax = 0;
+    private double dispatchSum = 0;
+
+    public CameraThread(String cameraId) {
+        name = "Camera" + cameraId;
+
+        cameraThread = new HandlerThread(name, Process.THREAD_PRIORITY_DISPLAY);
+        cameraThread.start();
+        cameraHandler = new Handler(cameraThread.getLooper());
+
+        imageThread = new HandlerThread(name + "Image");
+        imageThread.start();
+        imageHandler = new Handler(imageThread.getLooper());
+    }
+
+    public Handler getCameraHandler() {
+        return cameraHandler;
+    }
+
+    public Handler getImageHandler() {
+        return imageHandler;
+    }
+
+    public void runOnCamera(Runnable r) {
+        cameraHandler.post(r);
+    }
+
+    public void runOnMain(Runnable r) {
+        if(Looper.myLooper() == Looper.getMainLooper()) {
+            r.run();
+        } else {
+            mainHandler.post(r);
+        }
+    }
+
+    // stop threads once all queued callbacks have been handled
+    public void release() {
+        cameraThread.quitSafely();
+        imageThread.quitSafely();
+    }
+
+    /* ============================================================== */
+
+    public void setRealtimeTimestamp(boolean isRealtimeTimestamp) {
+        this.isRealtimeTimestamp = isRealtimeTimestamp;
+    }
+
+    // record time from sensor timestamp until a capture callback ran
+    public void onFrameDispatched(long sensorTimestamp) {
+        long now = isRealtimeTimestamp ? SystemClock.elapsedRealtimeNanos() : System.nanoTime();
+        long latency = now - sensorTimestamp;
+        if(sensorTimestamp <= 0 || latency < 0) {
+            return;
+        }
+
+        dispatchN++;
+        dispatchSum += latency;
+        dispatchMax  = Math.max(dispatchMax, latency);
+
+        if(dispatchN >= reportInterval) {
+            Log.d("CameraTest", String.format(Locale.US, "%s: callback %.2f ms after sensor timestamp (max %.2f ms)",
+                    name, dispatchSum / dispatchN / 1000000.0, dispatchMax / 1000000.0));
+            dispatchN   = 0;
+            dispatchSum = 0;
+            dispatchMax = 0;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2019, Sony Mobile Communications Inc.
+ * Licensed under the LICENSE.
+ */
+package com.sony.open.cameratest;
+
+import android.media.Image;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.StandardOpenOption;
+import java.util.Calendar;
+import java.util.Locale;
+
+/**
+ * Saves JPEG images on an I/O thread.
+ *
+ * The plane buffer of the Image is written to a FileChannel directly,
+ * without copying it to the Java heap, and the Image is closed as soon as
+ * the write is done. Every image gets its own file. Write throughput and
+ * the number of queued images are tracked.
+ */
+public class CaptureWriter {
+    public interface Listener {
+        // called on the I/O thread before the image is closed; jpeg is only valid during the call
+        void onImageSaved(int tag, File file, ByteBuffer jpeg, long writeNanos);
+        void onImageFailed(int tag, String reason);
+        // called on the I/O thread after the image is closed, its reader can hand out another one
+        void onImageReleased();
+    }
+
+    private final File     dir;
+    private final String   prefix;
+    private final Listener listener;
+
+    private final HandlerThread thread;
+    private final Handler       handler;
+
+    // statistics, guarded by this
+    private int  queued = 0, maxQueued = 0;
+    private int  numSaved = 0, numFailed = 0;
+    private long bytesSaved = 0, writeNanos = 0, maxWriteNanos = 0;
+
+    // I/O thread only
+    private int sequence = 0;
+
+    public CaptureWriter(File dir, String prefix, Listener listener) {
+        this.dir      = dir;
+        this.prefix   = prefix;
+        this.listener = listener;
+
+        thread = new HandlerThread(prefix + "Writer");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    // queue image for saving, the writer closes it; tag is passed back to the listener
+    public void save(final Image image, final int tag) {
+        synchronized(this) {
+            queued++;
+            maxQueued = Math.max(maxQueued, queued);
+        }
+
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                write(image, tag);
+            }
+        });
+    }
+
+    // finish queued writes, then stop the I/O thread
+    public void release() {
+        thread.quitSafely();
+    }
+
+    /* ============================================================== */
+
+    public synchronized int getQueueDepth() {
+        return queued;
+    }
+
+    public synchronized String getSummary() {
+        double seconds = writeNanos / 1000000000.0;
+        return String.format(Locale.US, "%d saved, %d failed, %.2f MB at %.1f MB/s (%.2f ms avg, %.2f ms max), queue %d (max %d)",
+                numSaved, numFailed,
+                bytesSaved / 1048576.0,
+                seconds > 0 ? bytesSaved / 1048576.0 / seconds : 0,
+                numSaved > 0 ? writeNanos / numSaved / 1000000.0 : 0,
+                maxWriteNanos / 1000000.0,
+                queued, maxQueued);
+    }
+
+    /* ============================================================== */
+
+    private void write(Image image, int tag) {
+        ByteBuffer buf = image.getPlanes()[0].getBuffer();
+        int size = buf.remaining();
+        File f = null;
+
+        long then = System.nanoTime();
+        try {
+            // never overwrite, files may be left over from an earlier run
+            FileChannel ch = null;
+            while(ch == null) {
+                f = nextFile();
+                try {
+                    ch = FileChannel.open(f.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                } catch(FileAlreadyExistsException e) {
+                    // taken, try the next sequence number
+                }
+            }
+            try {
+                while(buf.hasRemaining()) {
+                    ch.write(buf);
+                }
+            } finally {
+                ch.close();
+            }
+        } catch(IOException e) {
+            Log.w("CameraTest", "capture: failed to write " + f + ": " + e.getMessage());
+            synchronized(this) {
+                queued--;
+                numFailed++;
+            }
+            image.close();
+            if(listener != null) {
+                listener.onImageFailed(tag, e.getMessage());
+                listener.onImageReleased();
+            }
+            return;
+        }
+        long elapsed = System.nanoTime() - then;
+
+        synchronized(this) {
+            queued--;
+            numSaved++;
+            bytesSaved   += size;
+            writeNanos   += elapsed;
+            maxWriteNanos = Math.max(maxWriteNanos, elapsed);
+        }
+
+        if(listener != null) {
+            buf.rewind();
+            listener.onImageSaved(tag, f, buf, elapsed);
+        }
+        image.close();
+        if(listener != null) {
+            listener.onImageReleased();
+        }
+    }
+
+    // file named by date, time and sequence number
+    private File nextFile() {
+        Calendar now = Calendar.getInstance();
+        return new File(dir, String.format(Locale.US, "%s_%04d%02d%02d_%02d%02d%02d_%04d.jpg",
+                prefix,
+                now.get(Calendar.YEAR), now.get(Calendar.MONTH) + 1, now.get(Calendar.DAY_OF_MONTH),
+                now.get(Calendar.HOUR_OF_DAY), now.get(Calendar.MINUTE), now.get(Calendar.SECOND),
+                sequence++));
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2019, Sony Mobile Communications Inc.
+ * Licensed under the LICENSE.
+ */
+package com.sony.open.cameratest;
+
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.util.Log;
+import android.view.Surface;
+
+import java.util.Locale;
+
+/**
+ * Contrast-detection autofocus on a low resolution YUV stream.
+ *
+ * The reader's surface is added as an extra output of the lens
+ * scheduler's requests. While running, the sharpness of every frame's Y
+ * plane is measured on the image thread and added to a curve over the
+ * focus distance the frame was taken at. Images and capture results are
+ * matched by sensor timestamp, whichever comes first waits in a small
+ * ring. Frames with the lens still moving are left out.
+ *
+ * The newest image is measured, older ones are dropped, so a slow
+ * measurement skips frames instead of stalling the camera.
+ */
+public class ContrastAutofocus implements LensCommandScheduler.FrameListener {
+    private static final int ringSize = 8;
+    private static final float roiSize = 0.5f;   // centered, fraction of width and height
+
+    private final ImageReader     reader;
+    private final Handler         imageHandler;
+    private final SharpnessEngine engine;
+    private final SharpnessCurve  curve;
+
+    // guarded by this; timestamp 0 is an empty slot
+    private final long[]   frameTs = new long[ringSize], imageTs = new long[ringSize];
+    private final float[]  frameDistance = new float[ringSize];
+    private final double[] imageValue = new double[ringSize];
+    private int     nextFrame = 0, nextImage = 0;
+    private boolean isRunning = false;
+    private long    numImages = 0, numMoving = 0, numUnmatched = 0, measureNanos = 0;
+
+    // method is SharpnessEngine.LAPLACIAN or TENENGRAD; images are measured on imageHandler
+    public ContrastAutofocus(int width, int height, int method, int capacity, Handler imageHandler) {
+        engine = new SharpnessEngine(method, Runtime.getRuntime().availableProcessors());
+        engine.setRoi(0.5f - roiSize / 2, 0.5f - roiSize / 2, 0.5f + roiSize / 2, 0.5f + roiSize / 2);
+        curve  = new SharpnessCurve(capacity);
+        this.imageHandler = imageHandler;
+        reader = ImageReader.newInstance(width, height, ImageFormat.YUV_420_888, 3);
+        reader.setOnImageAvailableListener(imageCallback, imageHandler);
+    }
+
+    public Surface getSurface() {
+        return reader.getSurface();
+    }
+
+    // clear the curve and measure from now on
+    public synchronized void start() {
+        curve.clear();
+        for(int i = 0; i < ringSize; i++) {
+            frameTs[i] = 0;
+            imageTs[i] = 0;
+        }
+        numImages = numMoving = numUnmatched = measureNanos = 0;
+        isRunning = true;
+    }
+
+    public synchronized void stop() {
+        isRunning = false;
+    }
+
+    public SharpnessCurve getCurve() {
+        return curve;
+    }
+
+    public synchronized String getSummary() {
+        return String.format(Locale.US, "AF: %dx%d, %d images, %.2f ms per image, %d while moving, %d unmatched\n%s",
+                reader.getWidth(), reader.getHeight(), numImages,
+                numImages > 0 ? measureNanos / 1000000.0 / numImages : 0.0, numMoving, numUnmatched, curve.getSummary());
+    }
+
+    // once the session is closed; an image being measured is finished first
+    public void release() {
+        stop();
+        imageHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                reader.close();
+                engine.release();
+            }
+        });
+    }
+
+    /* ============================================================== */
+
+    @Override
+    public void onFrame(CaptureRequest request, TotalCaptureResult result) {
+        Long    ts    = result.get(CaptureResult.SENSOR_TIMESTAMP);
+        Integer state = result.get(CaptureResult.LENS_STATE);
+        Float   dist  = result.get(CaptureResult.LENS_FOCUS_DISTANCE);
+        if(dist == null) {
+            dist = request.get(CaptureRequest.LENS_FOCUS_DISTANCE);
+        }
+        if(ts == null || dist == null) {
+            return;
+        }
+        // a moving lens gives no distance to trust
+        boolean isMoving = state != null && state != CameraMetadata.LENS_STATE_STATIONARY;
+
+        synchronized(this) {
+            if(!isRunning) {
+                return;
+            }
+            for(int i = 0; i < ringSize; i++) {
+                if(imageTs[i] == ts) {
+                    imageTs[i] = 0;
+                    add(isMoving ? Float.NaN : dist, imageValue[i]);
+                    return;
+                }
+            }
+            if(frameTs[nextFrame] != 0) {
+                numUnmatched++;
+            }
+            frameTs[nextFrame]       = ts;
+            frameDistance[nextFrame] = isMoving ? Float.NaN : dist;
+            nextFrame = (nextFrame + 1) % ringSize;
+        }
+    }
+
+    private final ImageReader.OnImageAvailableListener imageCallback = new ImageReader.OnImageAvailableListener() {
+        @Override
+        public void onImageAvailable(ImageReader imageReader) {
+            Image image;
+            try {
+                image = imageReader.acquireLatestImage();
+            } catch(IllegalStateException e) {
+                Log.w("CameraTest", "af: failed to acquire image: " + e.getMessage());
+                return;
+            }
+            if(image == null) {
+                return;
+            }
+
+            long ts, then = System.nanoTime();
+            double value;
+            try {
+                synchronized(ContrastAutofocus.this) {
+                    if(!isRunning) {
+                        return;
+                    }
+                }
+                Image.Plane y = image.getPlanes()[0];
+                ts    = image.getTimestamp();
+                value = engine.measure(y.getBuffer(), image.getWidth(), image.getHeight(), y.getRowStride(), y.getPixelStride());
+            } finally {
+                image.close();
+            }
+
+            synchronized(ContrastAutofocus.this) {
+                numImages++;
+                measureNanos += System.nanoTime() - then;
+                for(int i = 0; i < ringSize; i++) {
+                    if(frameTs[i] == ts) {
+                        frameTs[i] = 0;
+                        add(frameDistance[i], value);
+                        return;
+                    }
+                }
+                if(imageTs[nextImage] != 0) {
+                    numUnmatched++;
+                }
+                imageTs[nextImage]    = ts;
+                imageValue[nextImage] = value;
+                nextImage = (nextImage + 1) % ringSize;
+            }
+        }
+    };
+
+    // matched image and frame, holding this
+    private void add(float distance, double value) {
+        if(Float.isNaN(distance)) {
+            numMoving++;
+        } else {
+            curve.add(distance, value);
+        }
+    }
+}
@@ -0,0 +1,396 @@
+/*
+ * Copyright (c) 2019, Sony Mobile Communications Inc.
+ * Licensed under the LICENSE.
+ */
+package com.sony.open.cameratest;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecInfo.CodecProfileLevel;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+import android.util.Range;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Picks encoder parameters from what the video encoders can do.
+ *
+ * Enumerating MediaCodecList is slow, so the capabilities of all H.264
+ * and HEVC encoders are written to a file the first time and read back
+ * while the build fingerprint stays the same. Maximum frame rates are
+ * probed for a set of common sizes. Other sizes are estimated from the
+ * next larger one at the same pixel rate.
+ *
+ * A plan names the codec, profile, the lowest level covering the pixel
+ * rate and bitrate, the bitrate mode and the bitrate. If no encoder can
+ * do what is asked for, the plan says why for every encoder.
+ */
+public class EncoderPlanner {
+    private static final String cacheName = "encoder_caps.txt";
+    private static final String[] mimes = { MediaFormat.MIMETYPE_VIDEO_AVC, MediaFormat.MIMETYPE_VIDEO_HEVC };
+    private static final int[][] probeSizes = {
+            { 640, 480 }, { 1280, 720 }, { 1920, 1080 }, { 2560, 1440 }, { 3840, 2160 } };
+
+    // level limits: level, max macroblocks/luma samples per second, max frame size, max bitrate in kbit/s
+    private static final long[][] avcLevels = {
+            { CodecProfileLevel.AVCLevel1,  1485,    99,     64 },
+            { CodecProfileLevel.AVCLevel11, 3000,    396,    192 },
+            { CodecProfileLevel.AVCLevel12, 6000,    396,    384 },
+            { CodecProfileLevel.AVCLevel13, 11880,   396,    768 },
+            { CodecProfileLevel.AVCLevel2,  11880,   396,    2000 },
+            { CodecProfileLevel.AVCLevel21, 19800,   792,    4000 },
+            { CodecProfileLevel.AVCLevel22, 20250,   1620,   4000 },
+            { CodecProfileLevel.AVCLevel3,  40500,   1620,   10000 },
+            { CodecProfileLevel.AVCLevel31, 108000,  3600,   14000 },
+            { CodecProfileLevel.AVCLevel32, 216000,  5120,   20000 },
+            { CodecProfileLevel.AVCLevel4,  245760,  8192,   20000 },
+            { CodecProfileLevel.AVCLevel41, 245760,  8192,   50000 },
+            { CodecProfileLevel.AVCLevel42, 522240,  8704,   50000 },
+            { CodecProfileLevel.AVCLevel5,  589824,  22080,  135000 },
+            { CodecProfileLevel.AVCLevel51, 983040,  36864,  240000 },
+            { CodecProfileLevel.AVCLevel52, 2073600, 36864,  240000 } };
+    private static final long[][] hevcLevels = {
+            { CodecProfileLevel.HEVCMainTierLevel1,  552960L,     36864,    128 },
+            { CodecProfileLevel.HEVCMainTierLevel2,  3686400L,    122880,   1500 },
+            { CodecProfileLevel.HEVCMainTierLevel21, 7372800L,    245760,   3000 },
+            { CodecProfileLevel.HEVCMainTierLevel3,  16588800L,   552960,   6000 },
+            { CodecProfileLevel.HEVCMainTierLevel31, 33177600L,   983040,   10000 },
+            { CodecProfileLevel.HEVCMainTierLevel4,  66846720L,   2228224,  12000 },
+            { CodecProfileLevel.HEVCMainTierLevel41, 133693440L,  2228224,  20000 },
+            { CodecProfileLevel.HEVCMainTierLevel5,  267386880L,  8912896,  25000 },
+            { CodecProfileLevel.HEVCMainTierLevel51, 534773760L,  8912896,  40000 },
+            { CodecProfileLevel.HEVCMainTierLevel52, 1069547520L, 8912896,  60000 },
+            { CodecProfileLevel.HEVCMainTierLevel6,  1069547520L, 35651584, 60000 },
+            { CodecProfileLevel.HEVCMainTierLevel61, 2139095040L, 35651584, 120000 },
+            { CodecProfileLevel.HEVCMainTierLevel62, 4278190080L, 35651584, 240000 } };
+
+    // capabilities of one encoder for one mime type
+    public static class Codec {
+        String  name, mime;
+        boolean hasSurfaceInput;
+        int     minWidth, maxWidth, widthAlignment;
+        int     minHeight, maxHeight, heightAlignment;
+        int     minBitrate, maxBitrate;
+        boolean hasVbr, hasCbr;
+        final List<int[]> profileLevels = new ArrayList<>();   // profile, level
+        final List<int[]> maxFps        = new ArrayList<>();   // width, height, fps
+
+        // highest level advertised for profile, or -1
+        int getMaxLevel(int profile) {
+            int max = -1;
+            for(int[] pl : profileLevels) {
+                if(pl[0] == profile) {
+                    max = Math.max(max, pl[1]);
+                }
+            }
+            return max;
+        }
+
+        // probed for a common size, or estimated from the next larger one
+        double getMaxFps(int width, int height) {
+            int[] best = null;
+            for(int[] s : maxFps) {
+                if(s[0] == width && s[1] == height) {
+                    return s[2];
+                }
+                if(s[0] >= width && s[1] >= height && (best == null || s[0] * s[1] < best[0] * best[1])) {
+                    best = s;
+                }
+            }
+            return best == null ? 0 : (double)best[2] * best[0] * best[1] / ((double)width * height);
+        }
+    }
+
+    // encoder parameters, or why there are none
+    public static class Plan {
+        public String  codecName, mime;
+        public boolean isFeasible = false;
+        public int     profile, level, bitrateMode, bitrate, iFrameInterval = 10;
+        public final List<String> reasons = new ArrayList<>();
+
+        // set profile, level, bitrate mode, bitrate and I-frame interval
+        public void applyTo(MediaFormat format) {
+            format.setInteger(MediaFormat.KEY_PROFILE, profile);
+            format.setInteger(MediaFormat.KEY_LEVEL, level);
+            format.setInteger(MediaFormat.KEY_BITRATE_MODE, bitrateMode);
+            format.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, iFrameInterval);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            if(isFeasible) {
+                sb.append(String.format(Locale.US, "%s: profile 0x%x, level 0x%x, %s %.2f Mbit/s, I-frame every %d s",
+                        codecName, profile, level,
+                        bitrateMode == MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR ? "VBR" : "CBR",
+                        bitrate / 1000000.0, iFrameInterval));
+            } else {
+                sb.append("no encoder for ").append(mime);
+            }
+            for(String r : reasons) {
+                sb.append("\n\t").append(r);
+            }
+            return sb.toString();
+        }
+    }
+
+    private final List<Codec> codecs;
+
+    private EncoderPlanner(List<Codec> codecs) {
+        this.codecs = codecs;
+    }
+
+    // read cached capabilities from dir, probing and caching them if missing or from another build; slow
+    public static EncoderPlanner load(File dir) {
+        File f = new File(dir, cacheName);
+        List<Codec> codecs = read(f);
+        if(codecs == null) {
+            long then = System.nanoTime();
+            codecs = probe();
+            Log.d("CameraTest", String.format(Locale.US, "encoders: probed %d in %.2f ms",
+                    codecs.size(), (System.nanoTime() - then) / 1000000.0));
+            try {
+                write(f, codecs);
+            } catch(IOException e) {
+                Log.w("CameraTest", "encoders: failed to cache capabilities: " + e.getMessage());
+            }
+        }
+        return new EncoderPlanner(codecs);
+    }
+
+    // encoder parameters for recording from a surface
+    public Plan plan(String mime, int width, int height, int fps, boolean isHdr) {
+        Plan plan = new Plan();
+        plan.mime = mime;
+
+        for(Codec c : codecs) {
+            if(!c.mime.equals(mime)) {
+                continue;
+            }
+            String reason = check(c, plan, width, height, fps, isHdr);
+            if(reason == null) {
+                plan.codecName  = c.name;
+                plan.isFeasible = true;
+                return plan;
+            }
+            plan.reasons.add(c.name + ": " + reason);
+        }
+        return plan;
+    }
+
+    /* ============================================================== */
+
+    // fill plan from codec, returns why it can't be used or null
+    private static String check(Codec c, Plan plan, int width, int height, int fps, boolean isHdr) {
+        if(!c.hasSurfaceInput) {
+            return "no surface input";
+        }
+        if(width < c.minWidth || width > c.maxWidth || width % c.widthAlignment != 0) {
+            return String.format(Locale.US, "width %d not in %d-%d (multiple of %d)", width, c.minWidth, c.maxWidth, c.widthAlignment);
+        }
+        if(height < c.minHeight || height > c.maxHeight || height % c.heightAlignment != 0) {
+            return String.format(Locale.US, "height %d not in %d-%d (multiple of %d)", height, c.minHeight, c.maxHeight, c.heightAlignment);
+        }
+        double maxFps = c.getMaxFps(width, height);
+        if(fps > maxFps) {
+            return String.format(Locale.US, "%dx%d only up to %.0f fps", width, height, maxFps);
+        }
+
+        // profile
+        boolean isHevc = c.mime.equals(MediaFormat.MIMETYPE_VIDEO_HEVC);
+        int[] profiles;
+        if(isHdr) {
+            if(!isHevc) {
+                return "HDR needs HEVC";
+            }
+            // HLG needs no static metadata, Main10HDR10 would be PQ
+            profiles = new int[] { CodecProfileLevel.HEVCProfileMain10 };
+        } else if(isHevc) {
+            profiles = new int[] { CodecProfileLevel.HEVCProfileMain };
+        } else {
+            profiles = new int[] { CodecProfileLevel.AVCProfileHigh, CodecProfileLevel.AVCProfileMain, CodecProfileLevel.AVCProfileBaseline };
+        }
+        int profile = -1, maxLevel = -1;
+        for(int p : profiles) {
+            maxLevel = c.getMaxLevel(p);
+            if(maxLevel >= 0) {
+                profile = p;
+                break;
+            }
+        }
+        if(profile < 0) {
+            return isHdr ? "no Main10 profile" : "no suitable profile";
+        }
+
+        // bitrate shrinks per pixel at high frame rates, neighbouring frames are nearly the same
+        double bitsPerPixel = (isHevc ? 0.06 : 0.08) * Math.sqrt(30.0 / Math.max(30, fps));
+        long bitrate = (long)(bitsPerPixel * width * height * fps);
+        bitrate = Math.max(c.minBitrate, Math.min(c.maxBitrate, bitrate));
+
+        // lowest level covering pixel rate, frame size and bitrate
+        long[] level = requiredLevel(isHevc ? hevcLevels : avcLevels, isHevc, width, height, fps, bitrate);
+        if(level == null) {
+            return String.format(Locale.US, "%dx%d at %d fps exceeds every level", width, height, fps);
+        }
+        if(level[0] > maxLevel) {
+            return String.format(Locale.US, "%dx%d at %d fps needs level 0x%x, codec only has 0x%x", width, height, fps, level[0], maxLevel);
+        }
+        bitrate = Math.min(bitrate, level[3] * 1000);
+
+        if(!c.hasVbr && !c.hasCbr) {
+            return "neither VBR nor CBR";
+        }
+
+        plan.profile     = profile;
+        plan.level       = (int)level[0];
+        plan.bitrateMode = c.hasVbr ? MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR : MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR;
+        plan.bitrate     = (int)bitrate;
+        return null;
+    }
+
+    private static long[] requiredLevel(long[][] levels, boolean isHevc, int width, int height, int fps, long bitrate) {
+        // H.264 counts 16x16 macroblocks, HEVC luma samples
+        long frameSize = isHevc ? (long)width * height : (long)((width + 15) / 16) * ((height + 15) / 16);
+        long rate      = frameSize * fps;
+        for(long[] l : levels) {
+            if(rate <= l[1] && frameSize <= l[2] && bitrate <= l[3] * 1000) {
+                return l;
+            }
+        }
+        return null;
+    }
+
+    /* ============================================================== */
+
+    private static List<Codec> probe() {
+        List<Codec> codecs = new ArrayList<>();
+        for(MediaCodecInfo info : new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos()) {
+            if(!info.isEncoder()) {
+                continue;
+            }
+            for(String type : info.getSupportedTypes()) {
+                for(String mime : mimes) {
+                    if(type.equalsIgnoreCase(mime)) {
+                        codecs.add(probe(info, mime));
+                    }
+                }
+            }
+        }
+        return codecs;
+    }
+
+    private static Codec probe(MediaCodecInfo info, String mime) {
+        MediaCodecInfo.CodecCapabilities caps  = info.getCapabilitiesForType(mime);
+        MediaCodecInfo.VideoCapabilities video = caps.getVideoCapabilities();
+        MediaCodecInfo.EncoderCapabilities enc = caps.getEncoderCapabilities();
+
+        Codec c = new Codec();
+        c.name = info.getName();
+        c.mime = mime;
+        for(int cf : caps.colorFormats) {
+            c.hasSurfaceInput |= cf == MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface;
+        }
+        c.minWidth        = video.getSupportedWidths().getLower();
+        c.maxWidth        = video.getSupportedWidths().getUpper();
+        c.widthAlignment  = video.getWidthAlignment();
+        c.minHeight       = video.getSupportedHeights().getLower();
+        c.maxHeight       = video.getSupportedHeights().getUpper();
+        c.heightAlignment = video.getHeightAlignment();
+        c.minBitrate      = video.getBitrateRange().getLower();
+        c.maxBitrate      = video.getBitrateRange().getUpper();
+        c.hasVbr = enc.isBitrateModeSupported(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR);
+        c.hasCbr = enc.isBitrateModeSupported(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR);
+        for(CodecProfileLevel pl : caps.profileLevels) {
+            c.profileLevels.add(new int[] { pl.profile, pl.level });
+        }
+        for(int[] s : probeSizes) {
+            if(video.isSizeSupported(s[0], s[1])) {
+                Range<Double> r = video.getSupportedFrameRatesFor(s[0], s[1]);
+                c.maxFps.add(new int[] { s[0], s[1], (int)Math.floor(r.getUpper()) });
+            }
+        }
+        return c;
+    }
+
+    /* ============================================================== */
+
+    // one line per entry, the first line is the build fingerprint
+    private static void write(File f, List<Codec> codecs) throws IOException {
+        try(PrintWriter w = new PrintWriter(new FileWriter(f))) {
+            w.println("fingerprint " + Build.FINGERPRINT);
+            for(Codec c : codecs) {
+                w.println(String.format(Locale.US, "codec %s %s %d %d %d %d %d %d %d %d %d %d %d",
+                        c.name, c.mime, c.hasSurfaceInput ? 1 : 0,
+                        c.minWidth, c.maxWidth, c.widthAlignment,
+                        c.minHeight, c.maxHeight, c.heightAlignment,
+                        c.minBitrate, c.maxBitrate, c.hasVbr ? 1 : 0, c.hasCbr ? 1 : 0));
+                for(int[] pl : c.profileLevels) {
+                    w.println("profile " + pl[0] + " " + pl[1]);
+                }
+                for(int[] s : c.maxFps) {
+                    w.println("fps " + s[0] + " " + s[1] + " " + s[2]);
+                }
+            }
+            if(w.checkError()) {
+                throw new IOException("write failed");
+            }
+        }
+    }
+
+    // null if missing, unreadable or from another build
+    private static List<Codec> read(File f) {
+        if(!f.exists()) {
+            return null;
+        }
+
+        List<Codec> codecs = new ArrayList<>();
+        try(BufferedReader r = new BufferedReader(new FileReader(f))) {
+            String line = r.readLine();
+            if(line == null || !line.equals("fingerprint " + Build.FINGERPRINT)) {
+                Log.d("CameraTest", "encoders: cached capabilities are from another build");
+                return null;
+            }
+
+            Codec c = null;
+            while((line = r.readLine()) != null) {
+                String[] t = line.split(" ");
+                if(t[0].equals("codec")) {
+                    c = new Codec();
+                    c.name            = t[1];
+                    c.mime            = t[2];
+                    c.hasSurfaceInput = t[3].equals("1");
+                    c.minWidth        = Integer.parseInt(t[4]);
+                    c.maxWidth        = Integer.parseInt(t[5]);
+                    c.widthAlignment  = Integer.parseInt(t[6]);
+                    c.minHeight       = Integer.parseInt(t[7]);
+                    c.maxHeight       = Integer.parseInt(t[8]);
+                    c.heightAlignment = Integer.parseInt(t[9]);
+                    c.minBitrate      = Integer.parseInt(t[10]);
+                    c.maxBitrate      = Integer.parseInt(t[11]);
+                    c.hasVbr          = t[12].equals("1");
+                    c.hasCbr          = t[13].equals("1");
+                    codecs.add(c);
+                } else if(t[0].equals("profile") && c != null) {
+                    c.profileLevels.add(new int[] { Integer.parseInt(t[1]), Integer.parseInt(t[2]) });
+                } else if(t[0].equals("fps") && c != null) {
+                    c.maxFps.add(new int[] { Integer.parseInt(t[1]), Integer.parseInt(t[2]), Integer.parseInt(t[3]) });
+                }
+            }
+        } catch(IOException | RuntimeException e) {
+            Log.w("CameraTest", "encoders: failed to read cached capabilities: " + e.getMessage());
+            return null;
+        }
+        return codecs;
+    }
+}
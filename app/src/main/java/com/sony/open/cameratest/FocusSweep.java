@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2019, Sony Mobile Communications Inc.
+ * Licensed under the LICENSE.
+ */
+package com.sony.open.cameratest;
+
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.Locale;
+
+/**
+ * Steps the lens through a list of positions in lockstep with frames.
+ *
+ * Each position is commanded through the lens scheduler of a running
+ * preview. The sweep counts the completed frames that request it and
+ * moves on after framesPerStep of them, or, with framesPerStep 0, as
+ * soon as LENS_STATE is stationary and the reported focus distance is
+ * within tolerance of the position. A frame still showing the lens at
+ * rest at the previous position doesn't end the step. The next position
+ * is sent from the frame callback itself, so the sweep takes as long as
+ * the actuator needs and doesn't depend on the UI thread.
+ *
+ * For every position the trace keeps the frame number and sensor
+ * timestamp of its first and last frame, the number of frames and the
+ * reported focus distance and lens state at the last one.
+ */
+public class FocusSweep implements LensCommandScheduler.FrameListener {
+    public interface Listener {
+        // on the camera thread
+        void onPosition(FocusSweep sweep, int step);
+        void onFinished(FocusSweep sweep);
+    }
+
+    private static final int   timeoutFrames = 30;      // per step when waiting for the lens
+    private static final float tolerance     = 0.02f;   // of the swept range
+
+    private final String   name;
+    private final LensCommandScheduler scheduler;
+    private final float[]  positions;
+    private final int      framesPerStep;
+    private final float    maxError;
+    private final Listener listener;
+
+    // trace per step
+    private final long[]    firstFrame, firstTs, lastFrame, lastTs;
+    private final int[]     numFrames, lensState;
+    private final float[]   reported;
+    private final boolean[] isSettled;
+
+    // camera thread once started
+    private int step = -1;
+    private volatile boolean isRunning = false, isDone = false;
+
+    // framesPerStep 0 waits for the lens to settle at every position
+    public FocusSweep(String name, LensCommandScheduler scheduler, float[] positions, int framesPerStep, Listener listener) {
+        this.name          = name;
+        this.scheduler     = scheduler;
+        this.positions     = positions.clone();
+        this.framesPerStep = framesPerStep;
+        this.listener      = listener;
+
+        float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+        for(float p : positions) {
+            min = Math.min(min, p);
+            max = Math.max(max, p);
+        }
+        maxError = positions.length > 0 ? tolerance * (max - min) : 0;
+
+        int n = positions.length;
+        firstFrame = new long[n];
+        firstTs    = new long[n];
+        lastFrame  = new long[n];
+        lastTs     = new long[n];
+        numFrames  = new int[n];
+        lensState  = new int[n];
+        reported   = new float[n];
+        isSettled  = new boolean[n];
+    }
+
+    // positions from a to b and back to a in n steps each way
+    public static float[] backAndForth(float a, float b, int n) {
+        float[] p = new float[2 * n + 1];
+        for(int i = 0; i <= n; i++) {
+            p[i]         = a + (b - a) * i / n;
+            p[2 * n - i] = p[i];
+        }
+        return p;
+    }
+
+    // the scheduler must run a repeating request
+    public void start() {
+        isRunning = true;
+        scheduler.addFrameListener(this);
+        next();
+    }
+
+    public void cancel() {
+        isRunning = false;
+        scheduler.removeFrameListener(this);
+    }
+
+    public float getPosition(int step) {
+        return positions[step];
+    }
+
+    @Override
+    public void onFrame(CaptureRequest request, TotalCaptureResult result) {
+        Float requested = request.get(CaptureRequest.LENS_FOCUS_DISTANCE);
+        if(!isRunning || requested == null || requested != positions[step]) {
+            // frame of the previous position
+            return;
+        }
+
+        Long    ts    = result.get(CaptureResult.SENSOR_TIMESTAMP);
+        Integer state = result.get(CaptureResult.LENS_STATE);
+        Float   dist  = result.get(CaptureResult.LENS_FOCUS_DISTANCE);
+        if(numFrames[step] == 0) {
+            firstFrame[step] = result.getFrameNumber();
+            firstTs[step]    = ts != null ? ts : 0;
+        }
+        numFrames[step]++;
+        lastFrame[step] = result.getFrameNumber();
+        lastTs[step]    = ts != null ? ts : 0;
+        lensState[step] = state != null ? state : -1;
+        reported[step]  = dist != null ? dist : Float.NaN;
+        isSettled[step] = state != null && state == CameraMetadata.LENS_STATE_STATIONARY
+                && (dist == null || Math.abs(dist - positions[step]) <= maxError);
+
+        boolean isStepDone = framesPerStep > 0 ? numFrames[step] >= framesPerStep
+                : isSettled[step] || numFrames[step] >= timeoutFrames;
+        if(isStepDone) {
+            next();
+        }
+    }
+
+    /* ============================================================== */
+
+    private void next() {
+        step++;
+        if(step >= positions.length) {
+            isDone = true;
+            cancel();
+            listener.onFinished(this);
+            return;
+        }
+        scheduler.submit(positions[step]);
+        listener.onPosition(this, step);
+    }
+
+    public String getSummary() {
+        int n = isDone ? positions.length : Math.max(0, step);
+        long frames = 0, timeouts = 0;
+        for(int i = 0; i < n; i++) {
+            frames += numFrames[i];
+            if(framesPerStep == 0 && !isSettled[i]) {
+                timeouts++;
+            }
+        }
+        double ms = n > 0 ? (lastTs[n - 1] - firstTs[0]) / 1000000.0 : 0;
+        return String.format(Locale.US, "SWEEP: %d of %d positions, %s, %d frames in %.1f ms, %.2f frames per position, %d timeouts",
+                n, positions.length, framesPerStep > 0 ? framesPerStep + " frames per position" : "until settled",
+                frames, ms, n > 0 ? (double)frames / n : 0, timeouts);
+    }
+
+    // one row per position
+    public File export(File dir) throws IOException {
+        Calendar now = Calendar.getInstance();
+        String fileName = String.format(Locale.US, "sweep_%s_%04d%02d%02d_%02d%02d%02d.csv",
+                name,
+                now.get(Calendar.YEAR), now.get(Calendar.MONTH) + 1, now.get(Calendar.DAY_OF_MONTH),
+                now.get(Calendar.HOUR_OF_DAY), now.get(Calendar.MINUTE), now.get(Calendar.SECOND));
+        File f = new File(dir, fileName);
+
+        try(FileWriter w = new FileWriter(f)) {
+            w.write("step,commanded_dpt,first_frame,first_ts_ns,last_frame,last_ts_ns,frames,reported_dpt,lens_state,settled\n");
+            for(int i = 0; i < positions.length; i++) {
+                if(numFrames[i] == 0) {
+                    continue;
+                }
+                w.write(String.format(Locale.US, "%d,%.4f,%d,%d,%d,%d,%d,%.4f,%d,%d\n",
+                        i, positions[i], firstFrame[i], firstTs[i], lastFrame[i], lastTs[i],
+                        numFrames[i], reported[i], lensState[i], isSettled[i] ? 1 : 0));
+            }
+        }
+        return f;
+    }
+}
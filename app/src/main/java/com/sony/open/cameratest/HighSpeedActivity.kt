@@ -17,6 +17,9 @@ import android.util.Size
 import android.view.Surface
 import android.view.View
 import android.widget.Toast
+import java.io.File
+import java.io.IOException
+import java.util.Locale
 import kotlinx.android.synthetic.main.activity_highspeed.*
 
 import kotlinx.coroutines.*
@@ -24,29 +27,43 @@ import kotlinx.coroutines.*
 class HighSpeedActivity : Activity() {
     private val cameraManager by lazy { getSystemService(Context.CAMERA_SERVICE) as CameraManager}
     private val cameraHelper by lazy { CameraHelper(cameraManager) }
-    private val mediaRecorder by lazy { MediaRecorder() }
+    private val cameraInfoCache by lazy { CameraInfoCache.get(this) }
 
     private var cameraDevice : CameraDevice? = null
+    private var cameraThread : CameraThread? = null
     private var cameraSession : CameraConstrainedHighSpeedCaptureSession? = null
     private var cameraId : String? = null
-    private var persistentSurface : Surface? = null
+    private var recorder : HighSpeedRecorder? = null
+    private var encoderPlanner : EncoderPlanner? = null
 
     private val fileName = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM).absolutePath + "/CameraTest_HighSpeed.mp4"
 
-    private var lastFrameTs : Long = -1
-    private var avgFps : Long = -1
+    // frame pacing of the running session
+    private var pacing : HighSpeedPacingAnalyzer? = null
+    private val pacingHistory = 256
+    private lateinit var fpsPublisher : StatsPublisher
 
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
         setContentView(R.layout.activity_highspeed)
 
+        // live numbers are shown at most once per display frame
+        fpsPublisher = StatsPublisher(txtHighSpeedFps, StatsPublisher.Renderer { text ->
+            val p = pacing
+            if (p == null) {
+                text.append("FPS: -")
+            } else {
+                text.append(String.format(Locale.US, "FPS: %.1f, %d dropped", p.fps, p.numDropped))
+                recorder?.let { text.append(String.format(Locale.US, ", %d by encoder", it.numDropped)) }
+            }
+        })
+
         GlobalScope.launch(Dispatchers.Main) {
             // find all camera devices with CONSTRAINED_HIGH_SPEED support
             val ids = ArrayList<String>()
-            for (id in cameraManager.cameraIdList) {
-                val cc = cameraManager.getCameraCharacteristics(id)
-                val caps = cc[CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES]
-                if (caps != null && caps.contains(CameraMetadata.REQUEST_AVAILABLE_CAPABILITIES_CONSTRAINED_HIGH_SPEED_VIDEO)) {
+            for (id in cameraInfoCache.cameraIds) {
+                val info = cameraInfoCache.getInfo(id) ?: continue
+                if (info.hasCapability(CameraMetadata.REQUEST_AVAILABLE_CAPABILITIES_CONSTRAINED_HIGH_SPEED_VIDEO)) {
                     ids.add(id)
                 }
             }
@@ -70,8 +87,7 @@ class HighSpeedActivity : Activity() {
             }
 
             // check HDR capability
-            val cc = cameraManager.getCameraCharacteristics(cameraId!!)
-            if (cc[CameraCharacteristics.CONTROL_AVAILABLE_SCENE_MODES]!!.contains(CameraCharacteristics.CONTROL_SCENE_MODE_HDR)) {
+            if (cameraInfoCache.getInfo(cameraId!!)?.hasSceneMode(CameraCharacteristics.CONTROL_SCENE_MODE_HDR) == true) {
                 chkHighSpeedHdr.isEnabled = true
                 chkHighSpeedHdr.tag = true
             } else {
@@ -92,59 +108,83 @@ class HighSpeedActivity : Activity() {
 
     override fun onDestroy() {
         super.onDestroy()
+        fpsPublisher.stop()
+        recorder?.stop()
+        recorder = null
         cameraSession?.close()
-        cameraHelper.closeCamera(cameraDevice)
+        closeCamera()
     }
 
-    fun updateFps(newTs : Long) : Long {
-        val weight = 128
+    // close device and release its thread, also when start-up failed half way
+    private fun closeCamera() {
+        cameraHelper.closeCamera(cameraDevice)
+        cameraDevice = null
+        cameraThread?.release()
+        cameraThread = null
+    }
 
-        // initialize first timestamp
-        if (lastFrameTs < 0) {
-            lastFrameTs = newTs
-            return -1
+    // encoder results arrive on the recorder's threads
+    private val recorderListener = object : HighSpeedRecorder.Listener {
+        override fun onStatistics(recorder: HighSpeedRecorder) {
+            Log.d("CameraTest", recorder.summary)
         }
 
-        // initialize first result
-        val curFps = 1000000000 / (newTs - lastFrameTs)
-        if (avgFps < 0) {
-            avgFps = curFps*weight
-            return curFps
+        override fun onStopped(recorder: HighSpeedRecorder, file: File, error: String?) {
+            Log.d("CameraTest", recorder.summary)
+            if (error != null) {
+                runOnUiThread { Toast.makeText(this@HighSpeedActivity, "Recording failed: $error", Toast.LENGTH_SHORT).show() }
+                return
+            }
+
+            // check what actually ended up in the file
+            GlobalScope.launch(Dispatchers.IO) {
+                val text = try {
+                    val report = Mp4TimingVerifier.verify(file, recorder.frameRate.toDouble())
+                    Log.d("CameraTest", report.toString())
+                    String.format(Locale.US, "Recording saved as %s: %d frames, %.1f fps, %d gaps.",
+                            file.absolutePath, report.numFrames, report.fps, report.numGaps)
+                } catch (e : IOException) {
+                    Log.e("CameraTest", "Failed to verify recording: ${e.localizedMessage}")
+                    "Recording saved as ${file.absolutePath}, but could not be verified."
+                }
+                runOnUiThread { Toast.makeText(this@HighSpeedActivity, text, Toast.LENGTH_SHORT).show() }
+            }
         }
+    }
 
-        // smooth and return value
-        avgFps -= avgFps/weight
-        avgFps += curFps
-        lastFrameTs = newTs
-        return avgFps/weight
+    // position of request in the high speed request list; the callbacks get the submitted objects
+    private fun burstPosition(requests : List<CaptureRequest>, request : CaptureRequest) : Int {
+        for (i in requests.indices) {
+            if (requests[i] === request) {
+                return i
+            }
+        }
+        return -1
     }
 
     @Suppress("UNUSED_PARAMETER")
     fun btnHighSpeedSessionClick(v : View) {
         // if there is an active session, close it and return
         if(cameraSession != null) {
-            // stop recording
-            if(chkHighSpeedRecording.isChecked) {
-                mediaRecorder.stop()
-            }
-
             // close session and camera
             cameraSession?.close()
             cameraSession = null
-            cameraHelper.closeCamera(cameraDevice)
+            closeCamera()
 
-            var text = "Camera closed."
-            if(chkHighSpeedRecording.isChecked) {
-                text += " Recording saved as $fileName."
-            }
-            Toast.makeText(this@HighSpeedActivity, text, Toast.LENGTH_SHORT).show()
+            // stop recording, the file is finished in the background
+            recorder?.stop()
+            recorder = null
+            pacing?.let { Log.d("CameraTest", it.summary) }
+            pacing = null
+            Log.d("CameraTest", "fps label: " + fpsPublisher.summary)
+            fpsPublisher.invalidate()
 
-            // update UI and FPS state
+            Toast.makeText(this@HighSpeedActivity, "Camera closed.", Toast.LENGTH_SHORT).show()
+
+            // update UI
             chkHighSpeedPreview.isEnabled = true
             chkHighSpeedRecording.isEnabled = true
             chkHighSpeedHdr.isEnabled = chkHighSpeedHdr.tag as Boolean
-            lastFrameTs = -1
-            avgFps = -1
             return
         }
 
@@ -154,11 +194,11 @@ class HighSpeedActivity : Activity() {
             val surfaces = ArrayList<Surface>()
 
             // find all possible resolutions for all fixed-fps ranges
-            val map = cameraManager.getCameraCharacteristics(id)[CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP]
+            val info = cameraInfoCache.getInfo(id)
             val sizes = ArrayList<Pair<Size, Range<Int>>>()
-            for (r in map!!.highSpeedVideoFpsRanges) {
+            for (r in info!!.highSpeedVideoFpsRanges) {
                 if (r.lower == r.upper) {
-                    for (s in map.getHighSpeedVideoSizesFor(r)) {
+                    for (s in info.getHighSpeedVideoSizesFor(r)) {
                         sizes.add(Pair(s, r))
                     }
                 }
@@ -180,13 +220,17 @@ class HighSpeedActivity : Activity() {
                 }
             }
 
-            // open camera device
-            val device = cameraHelper.openCamera(id)
+            // open camera device, callbacks are handled on a camera thread
+            val thread = CameraThread(id)
+            thread.setRealtimeTimestamp(info.isRealtimeTimestamp)
+            val device = cameraHelper.openCamera(id, thread.cameraHandler)
             if (device == null) {
                 Toast.makeText(this@HighSpeedActivity, "Failed to open camera $id.", Toast.LENGTH_LONG).show()
+                thread.release()
                 return@launch
             }
             cameraDevice = device
+            cameraThread = thread
 
             // prepare preview surface
             if(chkHighSpeedPreview.isChecked) {
@@ -209,65 +253,47 @@ class HighSpeedActivity : Activity() {
                 surfaces.add(Surface(tvHighSpeedPreview.surfaceTexture))
             }
 
-            // prepare recording surface
-            persistentSurface?.release()
-            if(chkHighSpeedRecording.isChecked && chkHighSpeedHdr.isChecked) {
-                // HDR needs low-level codec configuration
-                persistentSurface = MediaCodec.createPersistentInputSurface()
+            // prepare recording surface, encoded directly with MediaCodec
+            if(chkHighSpeedRecording.isChecked) {
+                // encoder capabilities are probed once per build and cached
+                val planner = encoderPlanner ?: withContext(Dispatchers.Default) { EncoderPlanner.load(filesDir) }
+                encoderPlanner = planner
+
+                val isHdr = chkHighSpeedHdr.isChecked
+                val mime = if (isHdr) MediaFormat.MIMETYPE_VIDEO_HEVC else MediaFormat.MIMETYPE_VIDEO_AVC
+                val plan = planner.plan(mime, size.first.width, size.first.height, size.second.upper, isHdr)
+                Log.d("CameraTest", "encoder plan: $plan")
+                if (!plan.isFeasible) {
+                    Toast.makeText(this@HighSpeedActivity, "Can't record: $plan", Toast.LENGTH_LONG).show()
+                    closeCamera()
+                    return@launch
+                }
 
-                // configure format parameters for HEVC
-                val fmt = MediaFormat.createVideoFormat("video/hevc", size.first.width, size.first.height)
+                val fmt = MediaFormat.createVideoFormat(mime, size.first.width, size.first.height)
                 fmt.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface)
-                fmt.setInteger(MediaFormat.KEY_BIT_RATE, (size.first.width*size.first.height*size.second.lower) / 15)
-                fmt.setInteger(MediaFormat.KEY_FRAME_RATE, size.second.lower)
-                fmt.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 10)
-
-                fmt.setInteger(MediaFormat.KEY_PROFILE, MediaCodecInfo.CodecProfileLevel.HEVCProfileMain10HDR10)
-                fmt.setInteger(MediaFormat.KEY_LEVEL, MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel1)
-                fmt.setInteger(MediaFormat.KEY_COLOR_STANDARD, MediaFormat.COLOR_STANDARD_BT2020)
-                fmt.setInteger(MediaFormat.KEY_COLOR_TRANSFER, MediaFormat.COLOR_TRANSFER_HLG)
-                fmt.setInteger(MediaFormat.KEY_COLOR_RANGE, MediaFormat.COLOR_RANGE_LIMITED)
-
-                val cname = MediaCodecList(MediaCodecList.REGULAR_CODECS).findEncoderForFormat(fmt)
-                if (cname == null) {
-                    Log.e("CameraTest", "No suitable codec available.")
-                    return@launch
+                fmt.setInteger(MediaFormat.KEY_FRAME_RATE, size.second.upper)
+                plan.applyTo(fmt)
+
+                // the encoder has to keep up with the sensor, not with playback
+                fmt.setInteger(MediaFormat.KEY_OPERATING_RATE, size.second.upper)
+                fmt.setInteger(MediaFormat.KEY_PRIORITY, 0)
+
+                if (isHdr) {
+                    fmt.setInteger(MediaFormat.KEY_COLOR_STANDARD, MediaFormat.COLOR_STANDARD_BT2020)
+                    fmt.setInteger(MediaFormat.KEY_COLOR_TRANSFER, MediaFormat.COLOR_TRANSFER_HLG)
+                    fmt.setInteger(MediaFormat.KEY_COLOR_RANGE, MediaFormat.COLOR_RANGE_LIMITED)
                 }
 
-                // configure codec
-                val codec = MediaCodec.createByCodecName(cname)
-                try {
-                    codec.configure(fmt, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE)
-                    codec.setInputSurface(persistentSurface!!)
+                val rec = try {
+                    HighSpeedRecorder(plan.codecName, fmt, File(fileName), info.isRealtimeTimestamp, recorderListener)
                 } catch(e : Exception) {
-                    Log.e("CameraTest", "Failed to configure codec: ${e.localizedMessage}")
+                    Log.e("CameraTest", "Failed to set up recording: ${e.localizedMessage}")
+                    Toast.makeText(this@HighSpeedActivity, "Failed to set up recording.", Toast.LENGTH_LONG).show()
+                    closeCamera()
                     return@launch
                 }
-
-                mediaRecorder.reset()
-                mediaRecorder.setVideoSource(MediaRecorder.VideoSource.SURFACE)
-                mediaRecorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4)
-                mediaRecorder.setVideoEncoder(MediaRecorder.VideoEncoder.HEVC)
-                mediaRecorder.setVideoEncodingProfileLevel(MediaCodecInfo.CodecProfileLevel.HEVCProfileMain10HDR10, MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel1)
-                mediaRecorder.setInputSurface(persistentSurface!!)
-                mediaRecorder.setOutputFile(fileName)
-                mediaRecorder.setVideoFrameRate(size.second.lower)
-                mediaRecorder.setVideoSize(size.first.width, size.first.height)
-                mediaRecorder.setVideoEncodingBitRate((size.first.width*size.first.height*size.second.lower) / 15)
-                surfaces.add(persistentSurface!!)
-
-            } else if(chkHighSpeedRecording.isChecked) {
-                // regular recording uses H.264
-                mediaRecorder.reset()
-                mediaRecorder.setVideoSource(MediaRecorder.VideoSource.SURFACE)
-                mediaRecorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4)
-                mediaRecorder.setVideoEncoder(MediaRecorder.VideoEncoder.H264)
-                mediaRecorder.setOutputFile(fileName)
-                mediaRecorder.setVideoFrameRate(size.second.lower)
-                mediaRecorder.setVideoSize(size.first.width, size.first.height)
-                mediaRecorder.setVideoEncodingBitRate((size.first.width*size.first.height*size.second.lower) / 15)
-                mediaRecorder.prepare()
-                surfaces.add(mediaRecorder.surface)
+                recorder = rec
+                surfaces.add(rec.inputSurface)
 
             } else {
                 // no recording
@@ -277,14 +303,17 @@ class HighSpeedActivity : Activity() {
             // fail if no surfaces enabled
             if(surfaces.size == 0) {
                 Toast.makeText(this@HighSpeedActivity, "No surfaces enabled.", Toast.LENGTH_LONG).show()
-                cameraHelper.closeCamera(cameraDevice)
+                closeCamera()
                 return@launch
             }
 
             // create camera session
-            val session = cameraHelper.createHighSpeedSession(device, surfaces)
+            val session = cameraHelper.createHighSpeedSession(device, surfaces, thread.cameraHandler)
             if (session == null) {
                 Toast.makeText(this@HighSpeedActivity, "Failed to start camera session on camera $id.", Toast.LENGTH_LONG).show()
+                recorder?.stop()
+                recorder = null
+                closeCamera()
                 return@launch
             }
             cameraSession = session
@@ -292,16 +321,9 @@ class HighSpeedActivity : Activity() {
             chkHighSpeedRecording.isEnabled = false
             chkHighSpeedHdr.isEnabled = false
 
-            // for HDR, media recorder must be prepared after the camera session is ready
-            if (chkHighSpeedRecording.isChecked && chkHighSpeedHdr.isChecked) {
-                try {
-                    mediaRecorder.prepare()
-                } catch(e: Exception) {
-                    Log.e("CameraTest", "failed to prepare MediaRecorder")
-                    cameraHelper.closeCamera(device)
-                    return@launch
-                }
-            }
+            // encoder must run before the first frame arrives
+            val rec = recorder
+            rec?.start()
 
             // create repeating high speed request list
             val reqBuilder = device.createCaptureRequest(if (chkHighSpeedRecording.isChecked) CameraDevice.TEMPLATE_PREVIEW else CameraDevice.TEMPLATE_RECORD)
@@ -314,21 +336,30 @@ class HighSpeedActivity : Activity() {
             }
             val baseReq = reqBuilder.build()
             val reqList = session.createHighSpeedRequestList(baseReq)
+
+            // expected frame duration from the fixed fps range
+            val analyzer = HighSpeedPacingAnalyzer(size.second.upper, reqList.size, pacingHistory)
+            pacing = analyzer
             session.setRepeatingBurst(reqList, object : CameraCaptureSession.CaptureCallback() {
                 override fun onCaptureCompleted(session: CameraCaptureSession, request: CaptureRequest, totalResult: TotalCaptureResult) {
                     super.onCaptureCompleted(session, request, totalResult)
 
-                    // use totalResult timestamp for fps
-                    val ts = totalResult[CaptureResult.SENSOR_TIMESTAMP] ?: -1
-                    val fps = updateFps(ts)
-                    txtHighSpeedFps.text = "FPS: $fps"
+                    // use totalResult timestamp for pacing
+                    val ts = totalResult[CaptureResult.SENSOR_TIMESTAMP] ?: return
+                    thread.onFrameDispatched(ts)
+                    rec?.onFrameCaptured(ts)
+                    if (analyzer.onFrame(burstPosition(reqList, request), ts)) {
+                        Log.d("CameraTest", analyzer.summary)
+                    }
+                    fpsPublisher.invalidate()
                 }
-            }, null)
 
-            // start recording
-            if(chkHighSpeedRecording.isChecked) {
-                mediaRecorder.start()
-            }
+                override fun onCaptureFailed(session: CameraCaptureSession, request: CaptureRequest, failure: CaptureFailure) {
+                    super.onCaptureFailed(session, request, failure)
+                    analyzer.onFrameFailed(burstPosition(reqList, request))
+                    fpsPublisher.invalidate()
+                }
+            }, thread.cameraHandler)
 
             Toast.makeText(this@HighSpeedActivity, "Ready: Camera ${device.id}, ${size.first.width}x${size.first.height}, ${size.second.lower} fps.", Toast.LENGTH_SHORT).show()
         }
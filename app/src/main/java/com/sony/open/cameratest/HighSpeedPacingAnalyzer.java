@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2019, Sony Mobile Communications Inc.
+ * Licensed under the LICENSE.
+ */
+package com.sony.open.cameratest;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Frame pacing of a constrained high speed session.
+ *
+ * The expected frame duration follows from the fixed fps range of the
+ * session. Every gap between sensor timestamps is rounded to a whole
+ * number of frame durations: a gap of n durations means n - 1 dropped
+ * frames, a gap below half a duration a duplicated frame. The remainder
+ * is the jitter of the frame.
+ *
+ * Drops, duplicates and jitter are kept per position in the high speed
+ * request list, since each position is a separate request in the
+ * repeating burst. A drop counts against the position of the frame
+ * arriving after the gap. Jitter percentiles use the latest history
+ * frames of every position, kept in preallocated arrays.
+ *
+ * Methods may be called from any thread.
+ */
+public class HighSpeedPacingAnalyzer {
+    private final int  fps;
+    private final long frameDuration;
+    private final int  burstLength;
+
+    // per burst position
+    private final long[]   frames, dropped, duplicated, failed;
+    private final long[][] jitter;
+    private final int[]    numJitter;
+    private final long[]   scratch;
+
+    // whole session
+    private long numFrames = 0, numDropped = 0, numDuplicated = 0, numFailed = 0;
+    private long lastTs = 0;
+
+    // frame rate over about one second of sensor time
+    private long   windowStart = 0;
+    private int    windowFrames = 0;
+    private double measuredFps = 0;
+
+    public HighSpeedPacingAnalyzer(int fps, int burstLength, int history) {
+        this.fps           = fps;
+        this.frameDuration = 1000000000L / fps;
+        this.burstLength   = burstLength;
+
+        frames     = new long[burstLength];
+        dropped    = new long[burstLength];
+        duplicated = new long[burstLength];
+        failed     = new long[burstLength];
+        jitter     = new long[burstLength][history];
+        numJitter  = new int[burstLength];
+        scratch    = new long[history];
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(frames, 0);
+        Arrays.fill(dropped, 0);
+        Arrays.fill(duplicated, 0);
+        Arrays.fill(failed, 0);
+        Arrays.fill(numJitter, 0);
+        numFrames     = 0;
+        numDropped    = 0;
+        numDuplicated = 0;
+        numFailed     = 0;
+        lastTs        = 0;
+        windowStart   = 0;
+        windowFrames  = 0;
+        measuredFps   = 0;
+    }
+
+    /* ============================================================== */
+
+    // frame completed at burst position, or -1 if unknown; returns true about once per second
+    public synchronized boolean onFrame(int position, long timestamp) {
+        boolean isKnown = position >= 0 && position < burstLength;
+        numFrames++;
+        if(isKnown) {
+            frames[position]++;
+        }
+
+        if(lastTs != 0) {
+            long delta = timestamp - lastTs;
+            if(delta < frameDuration / 2) {
+                numDuplicated++;
+                if(isKnown) {
+                    duplicated[position]++;
+                }
+                // keep the reference for timestamps going backwards
+                if(delta <= 0) {
+                    return false;
+                }
+            } else {
+                long n = (delta + frameDuration / 2) / frameDuration;
+                if(n > 1) {
+                    numDropped += n - 1;
+                    if(isKnown) {
+                        dropped[position] += n - 1;
+                    }
+                }
+                if(isKnown) {
+                    jitter[position][numJitter[position]++ % scratch.length] = delta - n * frameDuration;
+                }
+            }
+        }
+        lastTs = timestamp;
+
+        if(windowStart == 0) {
+            windowStart = timestamp;
+            windowFrames = 0;
+            return false;
+        }
+        windowFrames++;
+        if(timestamp - windowStart < 1000000000L) {
+            return false;
+        }
+        measuredFps  = windowFrames * 1000000000.0 / (timestamp - windowStart);
+        windowStart  = timestamp;
+        windowFrames = 0;
+        return true;
+    }
+
+    // request at burst position failed, no frame arrives for it
+    public synchronized void onFrameFailed(int position) {
+        numFailed++;
+        if(position >= 0 && position < burstLength) {
+            failed[position]++;
+        }
+    }
+
+    /* ============================================================== */
+
+    // frame rate over the last second of sensor time, 0 until then
+    public synchronized double getFps() {
+        return measuredFps;
+    }
+
+    public synchronized long getNumDropped() {
+        return numDropped;
+    }
+
+    // absolute jitter percentile at burst position in ns
+    public synchronized long getJitter(int position, double percentile) {
+        int n = Math.min(numJitter[position], scratch.length);
+        if(n == 0) {
+            return 0;
+        }
+        for(int i = 0; i < n; i++) {
+            scratch[i] = Math.abs(jitter[position][i]);
+        }
+        Arrays.sort(scratch, 0, n);
+        int index = (int)Math.ceil(percentile / 100.0 * n) - 1;
+        return scratch[Math.max(0, Math.min(n - 1, index))];
+    }
+
+    public synchronized String getSummary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "PACING: %d fps (%.3f ms) expected, %.1f fps measured, %d frames, %d dropped, %d duplicated, %d failed",
+                fps, frameDuration / 1000000.0, measuredFps, numFrames, numDropped, numDuplicated, numFailed));
+        for(int p = 0; p < burstLength; p++) {
+            sb.append(String.format(Locale.US, "\n\t#%d: %d frames, %d dropped, %d duplicated, %d failed, jitter p50 %d us, p99 %d us, max %d us",
+                    p, frames[p], dropped[p], duplicated[p], failed[p],
+                    getJitter(p, 50) / 1000, getJitter(p, 99) / 1000, getJitter(p, 100) / 1000));
+        }
+        return sb.toString();
+    }
+}
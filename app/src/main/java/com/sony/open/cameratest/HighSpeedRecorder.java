@@ -0,0 +1,367 @@
+/*
+ * Copyright (c) 2019, Sony Mobile Communications Inc.
+ * Licensed under the LICENSE.
+ */
+package com.sony.open.cameratest;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Records a camera stream with MediaCodec and MediaMuxer.
+ *
+ * The camera renders into the encoder's input surface. The codec runs in
+ * async mode on its own thread, and encoded buffers are written to the
+ * muxer on a second thread.
+ *
+ * The camera reports every frame it delivers with its sensor timestamp,
+ * which the encoder keeps as the presentation time. Captured frames that
+ * never come out of the encoder were dropped by it, as opposed to frames
+ * the sensor never produced. The recorder also measures latency from
+ * sensor timestamp to encoded buffer, input and output queue depth, and
+ * the achieved bitrate.
+ */
+public class HighSpeedRecorder {
+    public interface Listener {
+        // about once per second, on the codec thread
+        void onStatistics(HighSpeedRecorder recorder);
+        // file is complete unless error is set, on the muxer thread
+        void onStopped(HighSpeedRecorder recorder, File file, String error);
+    }
+
+    private static final int  ringSize   = 1024;
+    private static final long matchDelay = 100000000L;  // capture callbacks may arrive after the encoded frame
+    private static final long eosTimeout = 2000;        // ms
+
+    private final File     file;
+    private final Listener listener;
+    private final boolean  isRealtimeTimestamp;
+    private final int      frameRate;
+
+    private final MediaCodec codec;
+    private final MediaMuxer muxer;
+    private final Surface    inputSurface;
+    private final HandlerThread codecThread, muxerThread;
+    private final Handler       codecHandler, muxerHandler;
+
+    // muxer thread only
+    private final MediaCodec.BufferInfo writeInfo = new MediaCodec.BufferInfo();
+    private int     track = -1;
+    private boolean isMuxing = false, isFinished = false;
+
+    // frame matching and statistics, guarded by this
+    private final long[] captured = new long[ringSize], encoded = new long[ringSize];
+    private int  capHead = 0, capCount = 0, encHead = 0, encCount = 0;
+    private long numCaptured = 0, numEncoded = 0, numDropped = 0;
+    private long inputDepth = 0, maxInputDepth = 0;
+    private int  outputDepth = 0, maxOutputDepth = 0;
+    private long bytesWritten = 0, firstPts = -1, lastPts = 0;
+    private long lastStatistics = 0;
+
+    private final IntervalHistogram latency;
+    private volatile String latencySummary = "";
+
+    public HighSpeedRecorder(MediaFormat format, File file, boolean isRealtimeTimestamp, Listener listener) throws IOException {
+        this(findEncoder(format), format, file, isRealtimeTimestamp, listener);
+    }
+
+    // use the named encoder, e.g. from EncoderPlanner
+    public HighSpeedRecorder(String name, MediaFormat format, File file, boolean isRealtimeTimestamp, Listener listener) throws IOException {
+        this.file                = file;
+        this.listener            = listener;
+        this.isRealtimeTimestamp = isRealtimeTimestamp;
+
+        frameRate = format.containsKey(MediaFormat.KEY_FRAME_RATE) ? format.getInteger(MediaFormat.KEY_FRAME_RATE) : 30;
+        latency = new IntervalHistogram("encode latency", frameRate, new IntervalHistogram.Listener() {
+            @Override
+            public void onWindow(IntervalHistogram histogram, IntervalHistogram.Window window) {
+                latencySummary = String.format(Locale.US, "sensor to encoded p50 %.2f, p90 %.2f, p99 %.2f, max %.2f ms",
+                        window.p50 / 1000000.0, window.p90 / 1000000.0, window.p99 / 1000000.0, window.max / 1000000.0);
+            }
+        });
+
+        codecThread = new HandlerThread("RecorderCodec");
+        codecThread.start();
+        codecHandler = new Handler(codecThread.getLooper());
+        muxerThread = new HandlerThread("RecorderMuxer");
+        muxerThread.start();
+        muxerHandler = new Handler(muxerThread.getLooper());
+
+        MediaCodec c = null;
+        try {
+            c = MediaCodec.createByCodecName(name);
+            c.setCallback(codecCallback, codecHandler);
+            c.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            inputSurface = c.createInputSurface();
+            muxer = new MediaMuxer(file.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        } catch(IOException | RuntimeException e) {
+            if(c != null) {
+                c.release();
+            }
+            codecThread.quitSafely();
+            muxerThread.quitSafely();
+            throw new IOException("failed to set up " + name + ": " + e.getMessage(), e);
+        }
+        codec = c;
+        Log.d("CameraTest", "recorder: using " + name + " for " + format);
+    }
+
+    private static String findEncoder(MediaFormat format) throws IOException {
+        String name = new MediaCodecList(MediaCodecList.REGULAR_CODECS).findEncoderForFormat(format);
+        if(name == null) {
+            throw new IOException("no encoder for " + format);
+        }
+        return name;
+    }
+
+    // render camera frames here
+    public Surface getInputSurface() {
+        return inputSurface;
+    }
+
+    public void start() {
+        codec.start();
+    }
+
+    // finish encoding, the listener is called once the file is complete
+    public void stop() {
+        try {
+            codec.signalEndOfInputStream();
+        } catch(IllegalStateException e) {
+            Log.w("CameraTest", "recorder: failed to signal end of stream: " + e.getMessage());
+        }
+        muxerHandler.postDelayed(eosTimeoutRunnable, eosTimeout);
+    }
+
+    // camera delivered a frame to the input surface; any thread
+    public synchronized void onFrameCaptured(long sensorTimestamp) {
+        numCaptured++;
+        push(captured, capHead, capCount, sensorTimestamp);
+        if(capCount < ringSize) {
+            capCount++;
+        } else {
+            // oldest frame never matched, count it as dropped
+            capHead = (capHead + 1) % ringSize;
+            numDropped++;
+        }
+        inputDepth    = numCaptured - numEncoded - numDropped;
+        maxInputDepth = Math.max(maxInputDepth, inputDepth);
+    }
+
+    /* ============================================================== */
+
+    public int getFrameRate() {
+        return frameRate;
+    }
+
+    public synchronized long getNumDropped() {
+        return numDropped;
+    }
+
+    public synchronized String getSummary() {
+        double seconds = (lastPts - firstPts) / 1000000000.0;
+        return String.format(Locale.US, "RECORDER: %d captured, %d encoded, %d dropped by encoder, %.2f Mbit/s, input queue %d (max %d), output queue %d (max %d)\n\t%s",
+                numCaptured, numEncoded, numDropped,
+                firstPts >= 0 && seconds > 0 ? bytesWritten * 8 / seconds / 1000000.0 : 0,
+                inputDepth, maxInputDepth, outputDepth, maxOutputDepth,
+                latencySummary);
+    }
+
+    /* ============================================================== */
+
+    private final MediaCodec.Callback codecCallback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec mediaCodec, int index) {
+            // input comes from the surface
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec mediaCodec, final int index, @NonNull MediaCodec.BufferInfo info) {
+            final int  offset = info.offset, size = info.size, flags = info.flags;
+            final long pts    = info.presentationTimeUs;
+
+            synchronized(HighSpeedRecorder.this) {
+                outputDepth++;
+                maxOutputDepth = Math.max(maxOutputDepth, outputDepth);
+            }
+            muxerHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    write(index, offset, size, pts, flags);
+                }
+            });
+
+            if(size > 0 && (flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                onEncoded(pts * 1000);
+            }
+        }
+
+        @Override
+        public void onError(@NonNull MediaCodec mediaCodec, @NonNull MediaCodec.CodecException e) {
+            final String error = "codec error " + e.getDiagnosticInfo();
+            muxerHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    finish(error);
+                }
+            });
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec mediaCodec, @NonNull final MediaFormat format) {
+            muxerHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if(isFinished || isMuxing) {
+                        return;
+                    }
+                    track = muxer.addTrack(format);
+                    muxer.start();
+                    isMuxing = true;
+                }
+            });
+        }
+    };
+
+    private final Runnable eosTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            finish("no end of stream from encoder");
+        }
+    };
+
+    // codec thread
+    private void onEncoded(long pts) {
+        long now = isRealtimeTimestamp ? SystemClock.elapsedRealtimeNanos() : System.nanoTime();
+        latency.recordValue(now - pts);
+
+        boolean isReport = false;
+        synchronized(this) {
+            numEncoded++;
+            if(firstPts < 0) {
+                firstPts = pts;
+            }
+            lastPts = pts;
+
+            push(encoded, encHead, encCount, pts);
+            if(encCount < ringSize) {
+                encCount++;
+            } else {
+                encHead = (encHead + 1) % ringSize;
+            }
+            match(pts - matchDelay);
+            inputDepth = numCaptured - numEncoded - numDropped;
+
+            if(now - lastStatistics >= 1000000000L) {
+                lastStatistics = now;
+                isReport = true;
+            }
+        }
+        if(isReport && listener != null) {
+            listener.onStatistics(this);
+        }
+    }
+
+    // settle captured frames up to limit: encoded ones match, the others were dropped
+    private void match(long limit) {
+        while(capCount > 0 && captured[capHead] <= limit) {
+            long ts = captured[capHead];
+
+            // skip encoded frames whose capture callback never came
+            while(encCount > 0 && encoded[encHead] / 1000 < ts / 1000) {
+                encHead = (encHead + 1) % ringSize;
+                encCount--;
+            }
+
+            // pts keeps microseconds only
+            if(encCount > 0 && encoded[encHead] / 1000 == ts / 1000) {
+                encHead = (encHead + 1) % ringSize;
+                encCount--;
+            } else {
+                numDropped++;
+            }
+            capHead = (capHead + 1) % ringSize;
+            capCount--;
+        }
+    }
+
+    private static void push(long[] ring, int head, int count, long value) {
+        ring[(head + count) % ring.length] = value;
+    }
+
+    // muxer thread
+    private void write(int index, int offset, int size, long pts, int flags) {
+        if(isFinished) {
+            return;
+        }
+
+        try {
+            if(isMuxing && size > 0 && (flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                ByteBuffer buf = codec.getOutputBuffer(index);
+                writeInfo.set(offset, size, pts, flags);
+                muxer.writeSampleData(track, buf, writeInfo);
+                synchronized(this) {
+                    bytesWritten += size;
+                }
+            }
+            codec.releaseOutputBuffer(index, false);
+        } catch(IllegalStateException e) {
+            Log.w("CameraTest", "recorder: failed to write sample: " + e.getMessage());
+        }
+
+        synchronized(this) {
+            outputDepth--;
+        }
+        if((flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            finish(null);
+        }
+    }
+
+    // muxer thread
+    private void finish(String error) {
+        if(isFinished) {
+            return;
+        }
+        isFinished = true;
+        muxerHandler.removeCallbacks(eosTimeoutRunnable);
+
+        try {
+            codec.stop();
+        } catch(IllegalStateException e) {
+            Log.w("CameraTest", "recorder: failed to stop codec: " + e.getMessage());
+        }
+        codec.release();
+        inputSurface.release();
+
+        if(isMuxing) {
+            try {
+                muxer.stop();
+            } catch(IllegalStateException e) {
+                error = "failed to finish file: " + e.getMessage();
+            }
+        } else if(error == null) {
+            error = "nothing was encoded";
+        }
+        muxer.release();
+
+        codecThread.quitSafely();
+        muxerThread.quitSafely();
+        if(listener != null) {
+            listener.onStopped(this, file, error);
+        }
+    }
+}
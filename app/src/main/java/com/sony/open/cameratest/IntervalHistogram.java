@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2019, Sony Mobile Communications Inc.
+ * Licensed under the LICENSE.
+ */
+package com.sony.open.cameratest;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram of frame intervals, published per window.
+ *
+ * Values are kept in microseconds in 32 linear sub-buckets per power of
+ * two, so every value is resolved to about 3% over the whole range. The
+ * bucket array is allocated once. Recording is lock-free and may happen
+ * from several threads. Every windowSize values, the recording thread
+ * that closes the window drains the buckets and reports the percentiles
+ * to the listener, without allocating.
+ */
+public class IntervalHistogram {
+    public interface Listener {
+        // called on the recording thread; window is reused and only valid during the call
+        void onWindow(IntervalHistogram histogram, Window window);
+    }
+
+    // percentiles of one window in ns
+    public static class Window {
+        public long count, min, max;
+        public long p50, p90, p99, p999;
+        public double mean;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d intervals, mean %.2f ms, p50 %.2f, p90 %.2f, p99 %.2f, p99.9 %.2f, max %.2f ms",
+                    count, mean / 1000000.0,
+                    p50 / 1000000.0, p90 / 1000000.0, p99 / 1000000.0, p999 / 1000000.0, max / 1000000.0);
+        }
+    }
+
+    private static final int subBits  = 5;
+    private static final int subCount = 1 << subBits;
+    private static final int maxExp   = 40;   // about 12 days in us
+    private static final int numBuckets = (maxExp - subBits + 2) * subCount;
+
+    private final String   name;
+    private final int      windowSize;
+    private final Listener listener;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(numBuckets);
+    private final AtomicLong count = new AtomicLong(), sum = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE), max = new AtomicLong();
+    private final AtomicLong lastTimestamp = new AtomicLong();
+
+    // owned by the thread closing a window
+    private final AtomicBoolean isClosing = new AtomicBoolean();
+    private final long[] drained = new long[numBuckets];
+    private final Window window  = new Window();
+
+    public IntervalHistogram(String name, int windowSize, Listener listener) {
+        this.name       = name;
+        this.windowSize = windowSize;
+        this.listener   = listener;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // record interval to the previous timestamp, e.g. SENSOR_TIMESTAMP
+    public void recordTimestamp(long timestamp) {
+        long last = lastTimestamp.getAndSet(timestamp);
+        if(last != 0 && timestamp > last) {
+            recordValue(timestamp - last);
+        }
+    }
+
+    // forget the previous timestamp, e.g. when the stream restarts
+    public void resetTimestamp() {
+        lastTimestamp.set(0);
+    }
+
+    // record an interval in ns
+    public void recordValue(long nanos) {
+        buckets.incrementAndGet(indexOf(nanos / 1000));
+        sum.addAndGet(nanos);
+        updateMin(nanos);
+        updateMax(nanos);
+
+        if(count.incrementAndGet() >= windowSize) {
+            closeWindow();
+        }
+    }
+
+    /* ============================================================== */
+
+    private void closeWindow() {
+        if(!isClosing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            // values recorded meanwhile end up in this or the next window
+            long n = count.getAndSet(0);
+            if(n < windowSize) {
+                count.addAndGet(n);
+                return;
+            }
+
+            long total = 0;
+            for(int i = 0; i < numBuckets; i++) {
+                drained[i] = buckets.getAndSet(i, 0);
+                total += drained[i];
+            }
+            if(total == 0) {
+                return;
+            }
+
+            window.count = total;
+            window.mean  = sum.getAndSet(0) / (double)n;
+            window.min   = min.getAndSet(Long.MAX_VALUE);
+            window.max   = max.getAndSet(0);
+            window.p50   = percentile(total, 50);
+            window.p90   = percentile(total, 90);
+            window.p99   = percentile(total, 99);
+            window.p999  = percentile(total, 99.9);
+
+            if(listener != null) {
+                listener.onWindow(this, window);
+            }
+        } finally {
+            isClosing.set(false);
+        }
+    }
+
+    // value at percentile of drained buckets in ns, clamped to the exact min/max
+    private long percentile(long total, double percentile) {
+        long rank = (long)Math.ceil(percentile / 100.0 * total);
+        long seen = 0;
+        for(int i = 0; i < numBuckets; i++) {
+            seen += drained[i];
+            if(seen >= rank) {
+                long v = valueOf(i) * 1000;
+                return Math.max(window.min, Math.min(window.max, v));
+            }
+        }
+        return window.max;
+    }
+
+    private static int indexOf(long value) {
+        if(value < subCount) {
+            return (int)Math.max(0, value);
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        if(exp > maxExp) {
+            return numBuckets - 1;
+        }
+        int sub = (int)(value >> (exp - subBits));
+        return (exp - subBits + 1) * subCount + (sub - subCount);
+    }
+
+    // middle of the bucket's value range
+    private static long valueOf(int index) {
+        if(index < subCount) {
+            return index;
+        }
+        int group = index / subCount;
+        int shift = group - 1;
+        long lower = (long)(subCount + index % subCount) << shift;
+        return lower + ((1L << shift) >> 1);
+    }
+
+    private void updateMin(long v) {
+        long cur;
+        do {
+            cur = min.get();
+        } while(v < cur && !min.compareAndSet(cur, v));
+    }
+
+    private void updateMax(long v) {
+        long cur;
+        do {
+            cur = max.get();
+        } while(v > cur && !max.compareAndSet(cur, v));
+    }
+}
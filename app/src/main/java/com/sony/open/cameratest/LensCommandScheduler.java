@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2019, Sony Mobile Communications Inc.
+ * Licensed under the LICENSE.
+ */
+package com.sony.open.cameratest;
+
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CaptureFailure;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.TotalCaptureResult;
+import android.os.Handler;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Sends lens positions to a session, the newest position wins.
+ *
+ * Positions may be submitted at any rate, e.g. from a seek bar. Only one
+ * request is in flight at a time; until its first frame completes, new
+ * positions replace the pending one instead of queuing session updates.
+ * The request is rebuilt from one prebuilt builder and completions go to
+ * one callback, so a command allocates nothing but the request itself.
+ *
+ * With preview the position replaces the repeating request, without it
+ * a single capture is issued.
+ */
+public class LensCommandScheduler {
+    public interface FrameListener {
+        // every completed frame of the scheduler's requests, on the handler thread
+        void onFrame(CaptureRequest request, TotalCaptureResult result);
+    }
+
+    private final CameraCaptureSession   session;
+    private final CaptureRequest.Builder builder;
+    private final Handler                handler;
+
+    // guarded by this
+    private boolean isRepeating;
+    private boolean hasPending = false, isScheduled = false, isStopped = false;
+    private float   pending = 0;
+    private CaptureRequest inFlight = null;
+    private long    numSubmitted = 0, numCoalesced = 0, numApplied = 0;
+
+    // copied on change, so frames can walk it without locking
+    private volatile FrameListener[] frameListeners = new FrameListener[0];
+
+    // builder targets the outputs with AF off, only the focus distance is changed; callbacks run on handler
+    public LensCommandScheduler(CameraCaptureSession session, CaptureRequest.Builder builder, Handler handler, boolean isRepeating) {
+        this.session     = session;
+        this.builder     = builder;
+        this.handler     = handler;
+        this.isRepeating = isRepeating;
+    }
+
+    // focus distance in diopters, any thread
+    public synchronized void submit(float distance) {
+        if(isStopped) {
+            return;
+        }
+        numSubmitted++;
+        if(hasPending) {
+            numCoalesced++;
+        }
+        pending    = distance;
+        hasPending = true;
+        schedule();
+    }
+
+    // switch between repeating request and single captures
+    public synchronized void setRepeating(boolean isRepeating) {
+        if(this.isRepeating && !isRepeating) {
+            try {
+                session.stopRepeating();
+            } catch(CameraAccessException | IllegalStateException e) {
+                Log.w("CameraTest", "lens: failed to stop repeating: " + e.getMessage());
+            }
+            // its frames may never complete
+            inFlight = null;
+        }
+        this.isRepeating = isRepeating;
+        schedule();
+    }
+
+    public synchronized void addFrameListener(FrameListener listener) {
+        FrameListener[] l = Arrays.copyOf(frameListeners, frameListeners.length + 1);
+        l[l.length - 1] = listener;
+        frameListeners = l;
+    }
+
+    public synchronized void removeFrameListener(FrameListener listener) {
+        FrameListener[] l = new FrameListener[frameListeners.length];
+        int n = 0;
+        for(FrameListener f : frameListeners) {
+            if(f != listener) {
+                l[n++] = f;
+            }
+        }
+        frameListeners = Arrays.copyOf(l, n);
+    }
+
+    // drop pending positions, the session is going away
+    public synchronized void stop() {
+        isStopped  = true;
+        hasPending = false;
+    }
+
+    public synchronized String getSummary() {
+        return String.format(Locale.US, "LENS: %d submitted, %d coalesced, %d applied",
+                numSubmitted, numCoalesced, numApplied);
+    }
+
+    /* ============================================================== */
+
+    private void schedule() {
+        if(hasPending && inFlight == null && !isScheduled && !isStopped) {
+            isScheduled = true;
+            handler.post(applyRunnable);
+        }
+    }
+
+    private final Runnable applyRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized(LensCommandScheduler.this) {
+                isScheduled = false;
+                if(!hasPending || inFlight != null || isStopped) {
+                    return;
+                }
+
+                builder.set(CaptureRequest.LENS_FOCUS_DISTANCE, pending);
+                hasPending = false;
+                CaptureRequest request = builder.build();
+                try {
+                    if(isRepeating) {
+                        session.setRepeatingRequest(request, captureCallback, handler);
+                    } else {
+                        session.capture(request, captureCallback, handler);
+                    }
+                    inFlight = request;
+                    numApplied++;
+                } catch(CameraAccessException | IllegalStateException e) {
+                    Log.w("CameraTest", "lens: failed to apply position: " + e.getMessage());
+                }
+            }
+        }
+    };
+
+    private final CameraCaptureSession.CaptureCallback captureCallback = new CameraCaptureSession.CaptureCallback() {
+        @Override
+        public void onCaptureCompleted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull TotalCaptureResult result) {
+            onFrameDone(request);
+            for(FrameListener listener : frameListeners) {
+                listener.onFrame(request, result);
+            }
+        }
+
+        @Override
+        public void onCaptureFailed(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull CaptureFailure failure) {
+            onFrameDone(request);
+        }
+    };
+
+    private synchronized void onFrameDone(CaptureRequest request) {
+        // frames of the previous repeating request don't count
+        if(request != inFlight) {
+            return;
+        }
+        inFlight = null;
+        schedule();
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2019, Sony Mobile Communications Inc.
+ * Licensed under the LICENSE.
+ */
+package com.sony.open.cameratest;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.widget.TextView;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+
+/**
+ * Bounded log shown in a TextView, newest line first.
+ *
+ * Lines go into a fixed ring, so older lines are dropped once it is full.
+ * Appends can come from any thread. The view is refreshed at most once
+ * per frame through a StatsPublisher. An optional file sink keeps the
+ * full history; lines for it are queued and written on a background
+ * thread, so appending never waits for file I/O. Every batch is flushed,
+ * so a crash loses at most the lines still queued.
+ */
+public class LogRing {
+    private static final int sinkBufferSize = 64 * 1024;
+
+    private final StatsPublisher publisher;
+    private final String[]       lines;
+    private int head = 0, count = 0;
+
+    private long numLines = 0;
+
+    // file sink, guarded by lines; the writer itself is used on the sink thread only
+    private Writer        sink;
+    private HandlerThread sinkThread;
+    private Handler       sinkHandler;
+    private Runnable      sinkWrite;
+    private boolean       isWritePosted = false;
+    private final ArrayList<String> pending = new ArrayList<>();
+
+    // must be created on the UI thread
+    public LogRing(TextView view, int capacity) {
+        lines     = new String[capacity];
+        publisher = new StatsPublisher(view, new StatsPublisher.Renderer() {
+            @Override
+            public void render(StringBuilder text) {
+                synchronized(lines) {
+                    for(int i = 1; i <= count; i++) {
+                        text.append(lines[(head - i + lines.length) % lines.length]);
+                    }
+                }
+            }
+        });
+    }
+
+    // add a line, may be called from any thread
+    public void append(String line) {
+        synchronized(lines) {
+            lines[head] = line;
+            head = (head + 1) % lines.length;
+            count = Math.min(count + 1, lines.length);
+            numLines++;
+
+            if(sink != null) {
+                pending.add(line);
+                if(!isWritePosted) {
+                    isWritePosted = true;
+                    sinkHandler.post(sinkWrite);
+                }
+            }
+        }
+        publisher.invalidate();
+    }
+
+    public void clear() {
+        synchronized(lines) {
+            for(int i = 0; i < lines.length; i++) {
+                lines[i] = null;
+            }
+            head  = 0;
+            count = 0;
+        }
+        publisher.invalidate();
+    }
+
+    // total number of lines appended, including those dropped from the ring
+    public long getNumLines() {
+        synchronized(lines) {
+            return numLines;
+        }
+    }
+
+    /* ============================================================== */
+
+    // write all following lines to a file, returns the file
+    public File openSink(File dir, String fileName) throws IOException {
+        File f = new File(dir, fileName);
+        final Writer w = new BufferedWriter(new FileWriter(f, true), sinkBufferSize);
+        HandlerThread t = new HandlerThread("LogSink");
+        t.start();
+        synchronized(lines) {
+            closeSink();
+            sink        = w;
+            sinkThread  = t;
+            sinkHandler = new Handler(t.getLooper());
+            sinkWrite   = new Runnable() {
+                @Override
+                public void run() {
+                    writeSink(w);
+                }
+            };
+        }
+        return f;
+    }
+
+    // write the queued lines, then close the file and stop the sink thread
+    public void closeSink() {
+        synchronized(lines) {
+            if(sinkThread == null) {
+                return;
+            }
+            final Writer   w    = sink;
+            final String[] rest = takePending();
+            sinkHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if(w == null) {
+                        return;
+                    }
+                    try {
+                        for(String line : rest) {
+                            w.write(line);
+                        }
+                        w.close();
+                    } catch(IOException e) {
+                        Log.w("CameraTest", "log: failed to close sink: " + e.getMessage());
+                    }
+                }
+            });
+            sinkThread.quitSafely();
+
+            sink          = null;
+            sinkThread    = null;
+            sinkHandler   = null;
+            sinkWrite     = null;
+            isWritePosted = false;
+        }
+    }
+
+    /* ============================================================== */
+
+    // sink thread
+    private void writeSink(Writer w) {
+        String[] batch;
+        synchronized(lines) {
+            if(sink != w) {
+                // closed or replaced in the meantime, closeSink wrote the rest
+                return;
+            }
+            isWritePosted = false;
+            batch = takePending();
+        }
+
+        try {
+            for(String line : batch) {
+                w.write(line);
+            }
+            // the file must be complete if the process dies, not only after closeSink
+            w.flush();
+        } catch(IOException e) {
+            Log.w("CameraTest", "log: failed to write sink, closing it: " + e.getMessage());
+            try {
+                w.close();
+            } catch(IOException e2) {
+                // already reported the write failure
+            }
+            // drop further lines, the thread stops on closeSink
+            synchronized(lines) {
+                if(sink == w) {
+                    sink = null;
+                    pending.clear();
+                }
+            }
+        }
+    }
+
+    // guarded by lines
+    private String[] takePending() {
+        String[] batch = pending.toArray(new String[pending.size()]);
+        pending.clear();
+        return batch;
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (c) 2019, Sony Mobile Communications Inc.
+ * Licensed under the LICENSE.
+ */
+package com.sony.open.cameratest;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * Checks the frame timing of a recorded MP4 file.
+ *
+ * Boxes are walked with seeks and only the sample tables of the first
+ * video track are read, through a small buffer, so files of any size can
+ * be checked. stts gives the decode time of every frame, ctts the offset
+ * to its presentation time and stsz its size.
+ *
+ * Frame durations are taken in presentation order; frames reordered for
+ * B-frames are sorted in a small window. Durations are counted per value.
+ * A duration over one and a half expected durations is a gap. The
+ * expected duration follows from the requested frame rate, or is the
+ * median duration if none is given.
+ *
+ * Plain Java without Android dependencies, so it also runs on a desktop JVM.
+ */
+public class Mp4TimingVerifier {
+    private static final int reorderWindow = 32;
+    private static final int bufferSize    = 65536;
+
+    public static class Report {
+        public long   timescale, numFrames, totalBytes;
+        public long   firstPts = -1, lastPts = -1;   // ticks
+        public double expectedDuration;              // ticks
+        public long   numGaps, numMissing;
+        public String error;                         // tables don't agree, or null
+        public final TreeMap<Long, Long> durations = new TreeMap<>();   // ticks, number of frames
+
+        public double getSeconds() {
+            return firstPts < 0 ? 0 : (lastPts - firstPts + expectedDuration) / timescale;
+        }
+
+        public double getFps() {
+            double s = getSeconds();
+            return s > 0 ? numFrames / s : 0;
+        }
+
+        // bit/s
+        public double getBitrate() {
+            double s = getSeconds();
+            return s > 0 ? totalBytes * 8 / s : 0;
+        }
+
+        // frame duration in ticks at percentile
+        public long getDuration(double percentile) {
+            long total = 0;
+            for(long n : durations.values()) {
+                total += n;
+            }
+            long rank = Math.max(1, (long)Math.ceil(percentile / 100.0 * total)), seen = 0;
+            for(Map.Entry<Long, Long> e : durations.entrySet()) {
+                seen += e.getValue();
+                if(seen >= rank) {
+                    return e.getKey();
+                }
+            }
+            return 0;
+        }
+
+        public boolean isEvenlyPaced() {
+            return error == null && numFrames > 1 && numGaps == 0;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format(Locale.US, "MP4: %d frames, %.3f s, %.2f fps, %.2f Mbit/s, %d gaps (%d frames missing)",
+                    numFrames, getSeconds(), getFps(), getBitrate() / 1000000.0, numGaps, numMissing));
+            if(error != null) {
+                sb.append("\n\tERROR: ").append(error);
+            }
+            if(!durations.isEmpty()) {
+                sb.append(String.format(Locale.US, "\n\tframe duration expected %.3f ms, min %.3f, p50 %.3f, p99 %.3f, max %.3f ms",
+                        toMs(expectedDuration), toMs(durations.firstKey()), toMs(getDuration(50)), toMs(getDuration(99)), toMs(durations.lastKey())));
+                for(Map.Entry<Long, Long> e : durations.entrySet()) {
+                    sb.append(String.format(Locale.US, "\n\t%.3f ms: %d", toMs(e.getKey()), e.getValue()));
+                }
+            }
+            return sb.toString();
+        }
+
+        private double toMs(double ticks) {
+            return ticks * 1000.0 / timescale;
+        }
+    }
+
+    // check the first video track, expectedFps <= 0 takes the median frame duration
+    public static Report verify(File file, double expectedFps) throws IOException {
+        try(RandomAccessFile f = new RandomAccessFile(file, "r")) {
+            Box moov = find(f, 0, f.length(), "moov");
+            if(moov == null) {
+                throw new IOException("no moov box");
+            }
+            for(Box trak = find(f, moov.body, moov.end, "trak"); trak != null; trak = find(f, trak.end, moov.end, "trak")) {
+                Box mdia = find(f, trak.body, trak.end, "mdia");
+                Box hdlr = mdia != null ? find(f, mdia.body, mdia.end, "hdlr") : null;
+                if(hdlr == null || !readType(f, hdlr.body + 8).equals("vide")) {
+                    continue;
+                }
+
+                Box mdhd = find(f, mdia.body, mdia.end, "mdhd");
+                Box minf = find(f, mdia.body, mdia.end, "minf");
+                Box stbl = minf != null ? find(f, minf.body, minf.end, "stbl") : null;
+                if(mdhd == null || stbl == null) {
+                    throw new IOException("incomplete video track");
+                }
+                return verify(f, mdhd, stbl, expectedFps);
+            }
+            throw new IOException("no video track");
+        }
+    }
+
+    /* ============================================================== */
+
+    private static Report verify(RandomAccessFile f, Box mdhd, Box stbl, double expectedFps) throws IOException {
+        Report r = new Report();
+        Reader h = new Reader(f, mdhd.body);
+        r.timescale = (h.readInt() >>> 24) == 1 ? h.skip(16).readUInt() : h.skip(8).readUInt();
+        if(r.timescale <= 0) {
+            throw new IOException("invalid timescale");
+        }
+
+        Box stts = find(f, stbl.body, stbl.end, "stts");
+        Box ctts = find(f, stbl.body, stbl.end, "ctts");
+        Box stsz = find(f, stbl.body, stbl.end, "stsz");
+        if(stts == null || stsz == null) {
+            throw new IOException("no stts or stsz box");
+        }
+
+        // stts: count, delta
+        Reader tts = new Reader(f, stts.body + 4);
+        long ttsEntries = clamp(r, stts, tts.readUInt(), stts.body + 8, 8), ttsLeft = 0, delta = 0;
+
+        // ctts: count, offset; signed in version 1
+        Reader cts = ctts != null ? new Reader(f, ctts.body) : null;
+        boolean isSignedCts = cts != null && (cts.readInt() >>> 24) == 1;
+        long ctsEntries = cts != null ? clamp(r, ctts, cts.readUInt(), ctts.body + 8, 8) : 0, ctsLeft = 0, offset = 0;
+
+        // stsz: fixed size or one size per frame
+        Reader sz = new Reader(f, stsz.body + 4);
+        long fixedSize = sz.readUInt();
+        long numSamples = sz.readUInt();
+        if(fixedSize == 0) {
+            numSamples = clamp(r, stsz, numSamples, stsz.body + 12, 4);
+        }
+
+        PriorityQueue<Long> reorder = new PriorityQueue<>();
+        long dts = 0, lastPts = -1;
+        for(long i = 0; i < numSamples; i++) {
+            while(ttsLeft == 0 && ttsEntries > 0) {
+                ttsLeft = tts.readUInt();
+                delta   = tts.readUInt();
+                ttsEntries--;
+            }
+            if(ttsLeft == 0) {
+                r.error = String.format(Locale.US, "stts covers %d of %d frames", i, numSamples);
+                break;
+            }
+            ttsLeft--;
+
+            if(cts != null) {
+                while(ctsLeft == 0 && ctsEntries > 0) {
+                    ctsLeft = cts.readUInt();
+                    offset  = isSignedCts ? cts.readInt() : cts.readUInt();
+                    ctsEntries--;
+                }
+                if(ctsLeft == 0) {
+                    r.error = String.format(Locale.US, "ctts covers %d of %d frames", i, numSamples);
+                    break;
+                }
+                ctsLeft--;
+            }
+
+            r.totalBytes += fixedSize != 0 ? fixedSize : sz.readUInt();
+            r.numFrames++;
+            reorder.add(dts + offset);
+            dts += delta;
+
+            if(reorder.size() > reorderWindow) {
+                lastPts = present(r, reorder.poll(), lastPts);
+            }
+        }
+        while(!reorder.isEmpty()) {
+            lastPts = present(r, reorder.poll(), lastPts);
+        }
+        if(r.error == null && (ttsLeft > 0 || ttsEntries > 0)) {
+            r.error = String.format(Locale.US, "stts has more frames than stsz (%d)", numSamples);
+        }
+
+        // gaps against the requested or the typical frame duration
+        r.expectedDuration = expectedFps > 0 ? r.timescale / expectedFps : r.getDuration(50);
+        if(r.expectedDuration > 0) {
+            for(Map.Entry<Long, Long> e : r.durations.entrySet()) {
+                if(e.getKey() > 1.5 * r.expectedDuration) {
+                    r.numGaps    += e.getValue();
+                    r.numMissing += e.getValue() * (Math.round(e.getKey() / r.expectedDuration) - 1);
+                }
+            }
+        }
+        return r;
+    }
+
+    // entries that fit between pos and the end of the box, a corrupt count must not read into the next box
+    private static long clamp(Report r, Box box, long count, long pos, int entrySize) {
+        long max = Math.max(0, (box.end - pos) / entrySize);
+        if(count > max) {
+            if(r.error == null) {
+                r.error = String.format(Locale.US, "%s claims %d entries, box holds %d", box.type, count, max);
+            }
+            return max;
+        }
+        return count;
+    }
+
+    // next frame in presentation order
+    private static long present(Report r, long pts, long lastPts) {
+        if(r.firstPts < 0) {
+            r.firstPts = pts;
+        } else {
+            long d = pts - lastPts;
+            Long n = r.durations.get(d);
+            r.durations.put(d, n == null ? 1 : n + 1);
+        }
+        r.lastPts = pts;
+        return pts;
+    }
+
+    /* ============================================================== */
+
+    private static class Box {
+        String type;
+        long   body, end;   // offsets of payload and of the next box
+    }
+
+    // first box of type between start and end, or null
+    private static Box find(RandomAccessFile f, long start, long end, String type) throws IOException {
+        long pos = start;
+        while(pos + 8 <= end) {
+            f.seek(pos);
+            long size = f.readInt() & 0xffffffffL;
+            Box b = new Box();
+            b.type = readType(f, pos + 4);
+            b.body = pos + 8;
+            if(size == 1) {
+                f.seek(pos + 8);
+                size = f.readLong();
+                b.body = pos + 16;
+            } else if(size == 0) {
+                size = end - pos;   // up to the end of the parent
+            }
+            if(size < b.body - pos || pos + size > end) {
+                throw new IOException(String.format(Locale.US, "invalid size %d of box %s at %d", size, b.type, pos));
+            }
+            b.end = pos + size;
+            if(b.type.equals(type)) {
+                return b;
+            }
+            pos = b.end;
+        }
+        return null;
+    }
+
+    private static String readType(RandomAccessFile f, long pos) throws IOException {
+        byte[] type = new byte[4];
+        f.seek(pos);
+        f.readFully(type);
+        return new String(type, StandardCharsets.ISO_8859_1);
+    }
+
+    // sequential big-endian reads through a buffer
+    private static class Reader {
+        private final RandomAccessFile f;
+        private final byte[] buf = new byte[bufferSize];
+        private long pos;
+        private int  bufPos = 0, bufLen = 0;
+
+        Reader(RandomAccessFile f, long pos) {
+            this.f   = f;
+            this.pos = pos;
+        }
+
+        int readInt() throws IOException {
+            if(bufLen - bufPos < 4) {
+                fill();
+            }
+            int v = ((buf[bufPos] & 0xff) << 24) | ((buf[bufPos + 1] & 0xff) << 16)
+                    | ((buf[bufPos + 2] & 0xff) << 8) | (buf[bufPos + 3] & 0xff);
+            bufPos += 4;
+            return v;
+        }
+
+        long readUInt() throws IOException {
+            return readInt() & 0xffffffffL;
+        }
+
+        Reader skip(int bytes) throws IOException {
+            for(int i = 0; i < bytes / 4; i++) {
+                readInt();
+            }
+            return this;
+        }
+
+        private void fill() throws IOException {
+            // keep the unread rest
+            int rest = bufLen - bufPos;
+            System.arraycopy(buf, bufPos, buf, 0, rest);
+            f.seek(pos);
+            int n = f.read(buf, rest, buf.length - rest);
+            if(n <= 0 || rest + n < 4) {
+                throw new EOFException("sample table ends early");
+            }
+            pos   += n;
+            bufPos = 0;
+            bufLen = rest + n;
+        }
+    }
+}
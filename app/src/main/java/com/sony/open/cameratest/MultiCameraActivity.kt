@@ -9,9 +9,11 @@ import android.content.Context
 import android.graphics.ImageFormat
 import android.hardware.camera2.*
 import android.os.Bundle
+import android.util.Log
 import android.util.Size
 import android.view.Surface
 import android.view.TextureView
+import android.view.View
 import android.view.ViewGroup
 import android.widget.Button
 import android.widget.LinearLayout
@@ -21,16 +23,20 @@ import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.GlobalScope
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.launch
+import java.io.IOException
 
 class MultiCameraActivity : Activity() {
     private val cameraManager by lazy { getSystemService(Context.CAMERA_SERVICE) as CameraManager }
     private val cameraHelper by lazy { CameraHelper(cameraManager) }
+    private val cameraInfoCache by lazy { CameraInfoCache.get(this) }
 
     class CameraDeviceData(val cameraId : String, val tvPreview : TextureView) {
         var device : CameraDevice? = null
         var session : CameraCaptureSession? = null
+        var thread : CameraThread? = null
     }
     private val cameraDevices = ArrayList<CameraDeviceData>()
+    private val openAllMaxWidth = 1280
 
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
@@ -38,7 +44,7 @@ class MultiCameraActivity : Activity() {
 
         // create interface
         val llRoot = llMultiCameraRoot
-        for(id in cameraManager.cameraIdList) {
+        for(id in cameraInfoCache.cameraIds) {
             // Parent Layout
             val llCamera = LinearLayout(this@MultiCameraActivity)
             llCamera.layoutParams = LinearLayout.LayoutParams(LinearLayout.LayoutParams.MATCH_PARENT, LinearLayout.LayoutParams.WRAP_CONTENT, 1f)
@@ -51,9 +57,9 @@ class MultiCameraActivity : Activity() {
             btnCamera.text = "ID $id"
             btnCamera.setOnClickListener { v ->
                 val data = v.tag as CameraDeviceData
-                if(data.session == null) {
+                if(data.thread == null) {
                     GlobalScope.launch(Dispatchers.Main) { startPreview(data) }
-                } else {
+                } else if(data.session != null) {
                     stopPreview(data)
                 }
             }
@@ -83,11 +89,7 @@ class MultiCameraActivity : Activity() {
 
     private suspend fun startPreview(data : CameraDeviceData) {
         // get supported resolutions
-        val map = cameraManager.getCameraCharacteristics(data.cameraId)[CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP]
-        val sizes = ArrayList<Size>()
-        for(s in map!!.getOutputSizes(ImageFormat.PRIVATE)) {
-            sizes.add(s)
-        }
+        val sizes = getPreviewSizes(data)
 
         // select resolution
         var size = sizes[0]
@@ -101,42 +103,125 @@ class MultiCameraActivity : Activity() {
         }
 
         // prepare preview - very ugly
+        setPreviewSize(data, size)
+        delay(250)
+
+        // timed alone, as baseline for opening all
+        val timeline = StartupTimeline("cam${data.cameraId}", arrayOf(data.cameraId), numActive())
+        openPreview(data, size, timeline)
+    }
+
+    // when open all button is clicked, start all closed cameras at once
+    @Suppress("UNUSED_PARAMETER")
+    fun btnMultiCameraOpenAllClick(v : View) {
+        GlobalScope.launch(Dispatchers.Main) {
+            val closed = cameraDevices.filter { it.thread == null }
+            if(closed.isEmpty()) {
+                return@launch
+            }
+
+            // no dialogs, the largest preview size up to openAllMaxWidth
+            val sizes = closed.map { data ->
+                val s = getPreviewSizes(data)
+                s.filter { it.width <= openAllMaxWidth }.maxBy { it.width * it.height } ?: s[0]
+            }
+            for(i in closed.indices) {
+                setPreviewSize(closed[i], sizes[i])
+            }
+            delay(250)
+
+            // the open calls go out back to back, the camera service decides how they overlap
+            val timeline = StartupTimeline("all", closed.map { it.cameraId }.toTypedArray(), numActive())
+            for(i in closed.indices) {
+                launch(Dispatchers.Main) { openPreview(closed[i], sizes[i], timeline) }
+            }
+        }
+    }
+
+    private fun getPreviewSizes(data : CameraDeviceData) : List<Size> {
+        return cameraInfoCache.getInfo(data.cameraId)!!.getOutputSizes(ImageFormat.PRIVATE).toList()
+    }
+
+    private fun setPreviewSize(data : CameraDeviceData, size : Size) {
         val lParams = data.tvPreview.layoutParams
         lParams.width = (data.tvPreview.measuredHeight * size.height)/size.width
         data.tvPreview.layoutParams = lParams
-        delay(250)
+    }
+
+    private fun numActive() : Int {
+        return cameraDevices.count { it.session != null }
+    }
+
+    // open camera and start preview, every phase is recorded in timeline
+    private suspend fun openPreview(data : CameraDeviceData, size : Size, timeline : StartupTimeline) {
         data.tvPreview.surfaceTexture.setDefaultBufferSize(size.width, size.height)
         val surfaces = listOf(Surface(data.tvPreview.surfaceTexture))
 
-        // open camera device
-        data.device = cameraHelper.openCamera(data.cameraId)
+        // open camera device, callbacks are handled on a camera thread
+        val thread = CameraThread(data.cameraId)
+        data.thread = thread
+        timeline.begin(data.cameraId, StartupTimeline.OPEN)
+        data.device = cameraHelper.openCamera(data.cameraId, thread.cameraHandler)
         if(data.device == null) {
             Toast.makeText(this@MultiCameraActivity, "Failed to open camera ${data.cameraId}", Toast.LENGTH_LONG).show()
+            thread.release()
+            data.thread = null
+            startupDone(timeline, timeline.end(data.cameraId, StartupTimeline.OPEN, false))
             return
         }
+        timeline.end(data.cameraId, StartupTimeline.OPEN, true)
 
         // create camera session
-        data.session = cameraHelper.createCaptureSession(data.device!!, surfaces)
+        timeline.begin(data.cameraId, StartupTimeline.CONFIGURE)
+        data.session = cameraHelper.createCaptureSession(data.device!!, surfaces, thread.cameraHandler)
         if(data.session == null) {
             Toast.makeText(this@MultiCameraActivity, "Failed to create capture session.", Toast.LENGTH_LONG).show()
             cameraHelper.closeCamera(data.device)
+            data.device = null
+            thread.release()
+            data.thread = null
+            startupDone(timeline, timeline.end(data.cameraId, StartupTimeline.CONFIGURE, false))
+            return
         }
+        timeline.end(data.cameraId, StartupTimeline.CONFIGURE, true)
 
-        // start preview
+        // start preview, the first completed frame ends the startup
         val builder = data.device!!.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW)
         builder.addTarget(surfaces[0])
         val req = builder.build()
+        timeline.begin(data.cameraId, StartupTimeline.FIRST_FRAME)
         data.session?.setRepeatingRequest(req, object : CameraCaptureSession.CaptureCallback() {
-            // nothing to override
-        }, null)
+            var isFirst = true
 
-        return
+            override fun onCaptureCompleted(session: CameraCaptureSession, request: CaptureRequest, result: TotalCaptureResult) {
+                if(isFirst) {
+                    isFirst = false
+                    val isLast = timeline.end(data.cameraId, StartupTimeline.FIRST_FRAME, true)
+                    runOnUiThread { startupDone(timeline, isLast) }
+                }
+            }
+        }, thread.cameraHandler)
+    }
+
+    // log and save the timeline once the last camera is up or failed
+    private fun startupDone(timeline : StartupTimeline, isLast : Boolean) {
+        if(!isLast) {
+            return
+        }
+        Log.d("CameraTest", timeline.summary)
+        try {
+            Log.d("CameraTest", "startup timeline saved as ${timeline.export(getExternalFilesDir(null))}")
+        } catch(e : IOException) {
+            Log.e("CameraTest", "Failed to save startup timeline: ${e.localizedMessage}")
+        }
     }
 
     private fun stopPreview(data : CameraDeviceData) {
         data.session?.close()
         data.session = null
         cameraHelper.closeCamera(data.device)
+        data.thread?.release()
+        data.thread = null
         Toast.makeText(this@MultiCameraActivity, "Closed camera ${data.cameraId}.", Toast.LENGTH_LONG).show()
     }
 }
@@ -9,9 +9,7 @@ import android.app.Activity;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.ImageFormat;
-import android.graphics.Rect;
 import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraCharacteristics;
@@ -19,9 +17,9 @@ import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
 import android.hardware.camera2.params.InputConfiguration;
-import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.Image;
 import android.media.ImageReader;
 import android.media.ImageWriter;
@@ -41,11 +39,9 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Vector;
@@ -53,6 +49,7 @@ import java.util.Vector;
 @SuppressWarnings({"MissingPermission", "FieldCanBeLocal"})
 public class ParallelCaptureActivity extends Activity {
     private CameraManager camManager;
+    private CameraInfoCache camInfo;
     private CameraDevice  camDevice;
     private String[]      camIds;
 
@@ -62,17 +59,37 @@ public class ParallelCaptureActivity extends Activity {
 
     private ImageReader reprocessReader, finalResultReader;
     private ImageWriter reprocessWriter;
+    private final int maxQueuedJpegs = 4;
 
-    long preview_capture, preview_start, preview_complete;
-    long capture_capture, capture_start, capture_complete;
-    long reproc_capture, reproc_start, reproc_complete;
+    /* per-request latency, the request tag is the tracker id */
+    private static final int REQUEST_CAPTURE = 0, REQUEST_REPROCESS = 1, REQUEST_BURST = 2;
+    private final RequestLatencyTracker latency = new RequestLatencyTracker(256, "capture", "reprocess", "burst");
 
-    /* state machines */
-    private enum eCamState { OPEN, CLOSED, OPENING, CLOSING, READY, PREVIEWING }
-    private eCamState camState = eCamState.CLOSED;
+    /* still burst, in burst mode the JPEG reader holds a whole burst */
+    private boolean isBurstMode = false;
+    private final int numBurstShots = 10;
+    private final StillBurstBenchmark burst = new StillBurstBenchmark(numBurstShots);
 
-    /* log to TextView */
-    private List<String> logList = new LinkedList<>();
+    /* shutter lag statistics, per opened camera */
+    private volatile ShutterLagRecorder shutterLag;
+
+    private ThumbnailDecoder thumbnailDecoder;
+    private CaptureWriter    captureWriter;
+
+    /* YUV still capture, converted on the image thread into alternating bitmaps */
+    private boolean      isYuv = false;
+    private YuvConverter yuvConverter;
+    private Bitmap[]     yuvBitmaps = new Bitmap[2];
+    private int          yuvBitmapIndex = 0;
+
+    /* open/configure state machine, camera callbacks are handled on its camera thread */
+    private CameraSessionController controller;
+    private volatile CameraThread camThread;
+    private Size captureSize;
+
+    /* log to TextView and file, may be called from any thread */
+    private final int logLines = 200;
+    private LogRing log;
     private void Log(String line) {
         // timestamp
         Calendar now = Calendar.getInstance();
@@ -81,16 +98,7 @@ public class ParallelCaptureActivity extends Activity {
                 now.get(Calendar.MINUTE),
                 now.get(Calendar.SECOND));
 
-        // add new line
-        logList.add(0, timestamp + line + "\n");
-
-        // replace textview content
-        TextView txtLog = findViewById(R.id.txtParallelCaptureLog);
-        String text = "";
-        for(String s : logList) {
-            text += s;
-        }
-        txtLog.setText(text);
+        log.append(timestamp + line + "\n");
     }
 
     /* ============================================================== */
@@ -99,14 +107,29 @@ public class ParallelCaptureActivity extends Activity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_parallel_capture);
+        thumbnailDecoder = new ThumbnailDecoder("ParallelCaptureThumbnail");
+        captureWriter = new CaptureWriter(getFilesDir(), "capture", captureWriterListener);
+        yuvConverter  = new YuvConverter();
 
-        Button btnParallelCapture = findViewById(R.id.btnParallelCaptureCapture);
-        btnParallelCapture.setEnabled(false);
+        // full history goes to a file, the view only shows the latest lines
+        log = new LogRing((TextView) findViewById(R.id.txtParallelCaptureLog), logLines);
+        try {
+            Calendar now = Calendar.getInstance();
+            log.openSink(getExternalFilesDir(null), String.format(Locale.US, "parallelcapture_%04d%02d%02d_%02d%02d%02d.log",
+                    now.get(Calendar.YEAR), now.get(Calendar.MONTH) + 1, now.get(Calendar.DAY_OF_MONTH),
+                    now.get(Calendar.HOUR_OF_DAY), now.get(Calendar.MINUTE), now.get(Calendar.SECOND)));
+        } catch(Exception e) {
+            Log("WARNING: Failed to open log file:\n\t" + e.getMessage());
+        }
+
+        setCaptureEnabled(false);
 
         // fetch list of CameraIds and initialize Spinner
         try {
             camManager = (CameraManager)getSystemService(Context.CAMERA_SERVICE);
-            camIds  = camManager.getCameraIdList();
+            camInfo = CameraInfoCache.get(this);
+            camIds  = camInfo.getCameraIds();
+            controller = new CameraSessionController(new CameraHelper(camManager), sessionListener);
 
             List<String> camIdList = new ArrayList<>();
             camIdList.add("<none>");
@@ -140,58 +163,68 @@ public class ParallelCaptureActivity extends Activity {
         Spinner sel = findViewById(R.id.selParallelCaptureCamera);
         sel.setSelection(0);
 
-        if(camState != eCamState.CLOSED && camState != eCamState.CLOSING) {
-            camState = eCamState.CLOSING;
-            camDevice.close();
-        }
+        controller.close();
+        exportShutterLag();
         super.onPause();
     }
 
-    /* ============================================================== */
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        thumbnailDecoder.release();
+        captureWriter.release();
+        yuvConverter.release();
+        log.closeSink();
+    }
 
-    /* user selected a camera */
-    public void onCameraSelect(int index) {
-        // close camera if open
-        if(camDevice != null) {
-            if(index < 0) {
-                camState = eCamState.CLOSING;
-            } else {
-                camState = eCamState.OPENING;
-            }
-            camDevice.close();
+    private void exportShutterLag() {
+        if(shutterLag == null || shutterLag.getNumShots() == 0) {
             return;
         }
 
-        // done if <none> selected
+        try {
+            Log("INFO: Shutter lag saved as " + shutterLag.export(getExternalFilesDir(null)));
+        } catch(Exception e) {
+            Log("ERROR: Failed to save shutter lag:\n\t" + e.getMessage());
+        }
+        // callbacks may still hold on to the recorder, start over instead of dropping it
+        shutterLag.reset();
+    }
+
+    /* ============================================================== */
+
+    /* user selected a camera */
+    public void onCameraSelect(int index) {
+        // close camera if <none> selected
         if(index < 0) {
+            controller.close();
             return;
         }
 
         // reset stuff
-        logList.clear();
-        preview_capture = 0;
+        log.clear();
 
         // reject request and notify user if camera permission missing
         if(checkSelfPermission(Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
-            Spinner sel = findViewById(R.id.selParallelCaptureCamera);
-            sel.setSelection(0);
+            closeCamera();
             Toast.makeText(this, "Camera permission not granted.", Toast.LENGTH_SHORT).show();
             return;
         }
 
-        // open new camera
-        try {
-            camManager.openCamera(camIds[index], cameraCallbacks, null);
-        } catch(Exception e) {
-            Log("ERROR: Failed to open camera:\n\t" + e.getMessage());
-            camState = eCamState.CLOSING;
-            camDevice.close();
-        }
+        // open new camera, the controller closes the current one first
+        controller.open(camIds[index]);
+    }
+
+    /* close camera after an error and show <none> */
+    private void closeCamera() {
+        Spinner sel = findViewById(R.id.selParallelCaptureCamera);
+        sel.setSelection(0);
+        controller.close();
     }
 
     /* user wants to take a snapshot */
     public void btnCaptureClick(View view) {
-        if(camState != eCamState.PREVIEWING) {
+        if(controller.getState() != CameraSessionController.State.READY) {
             Log("NOTE: Camera not previewing, can't capture.");
             return;
         }
@@ -200,18 +233,94 @@ public class ParallelCaptureActivity extends Activity {
             CaptureRequest.Builder b = camDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
             b.addTarget(surfaceList.get(0));
             b.addTarget(surfaceList.get(1));
-            capture_capture = System.nanoTime();
-            captureSession.capture(b.build(), captureCallbacks, null);
+            int shot = shutterLag.onPress();
+            b.setTag(latency.onSubmit(REQUEST_CAPTURE, shot));
+            shutterLag.onRequestSubmitted(shot);
+            captureSession.capture(b.build(), captureCallbacks, camThread.getCameraHandler());
 
         } catch(Exception e) {
             Log("ERROR: Failed to create capture request:\n\t" + e.getMessage());
-            camState = eCamState.CLOSING;
-            camDevice.close();
+            closeCamera();
         }
     }
 
-    /* camera has been opened successfully */
-    public void onCameraOpen() {
+    /* user wants a burst of snapshots while preview keeps running */
+    public void btnBurstClick(View view) {
+        if(controller.getState() != CameraSessionController.State.READY) {
+            Log("NOTE: Camera not previewing, can't capture.");
+            return;
+        }
+        if(isReprocessing) {
+            Log("NOTE: Burst is not supported with reprocessing.");
+            return;
+        }
+        if(!isBurstMode) {
+            Log("NOTE: Burst mode not selected.");
+            return;
+        }
+        if(burst.isActive()) {
+            Log("NOTE: Burst in progress.");
+            return;
+        }
+
+        CheckBox chkBurstList = findViewById(R.id.chkParallelCaptureBurstList);
+        boolean useCaptureBurst = chkBurstList.isChecked();
+        try {
+            CaptureRequest.Builder b = camDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+            b.addTarget(surfaceList.get(0));
+            b.addTarget(surfaceList.get(1));
+
+            setCaptureEnabled(false);
+            burst.start(numBurstShots);
+            if(useCaptureBurst) {
+                List<CaptureRequest> requests = new ArrayList<>();
+                for(int i = 0; i < numBurstShots; i++) {
+                    b.setTag(latency.onSubmit(REQUEST_BURST, -1));
+                    requests.add(b.build());
+                }
+                captureSession.captureBurst(requests, captureCallbacks, camThread.getCameraHandler());
+            } else {
+                // back-to-back single captures
+                for(int i = 0; i < numBurstShots; i++) {
+                    b.setTag(latency.onSubmit(REQUEST_BURST, -1));
+                    captureSession.capture(b.build(), captureCallbacks, camThread.getCameraHandler());
+                }
+            }
+            Log(String.format(Locale.US, "BURST: %d shots submitted (%s)",
+                    numBurstShots, useCaptureBurst ? "captureBurst" : "capture"));
+
+        } catch(Exception e) {
+            Log("ERROR: Failed to create burst:\n\t" + e.getMessage());
+            closeCamera();
+        }
+    }
+
+    private void onBurstShotDone(boolean failed) {
+        if(!burst.onShotDone(failed)) {
+            return;
+        }
+
+        Log(burst.getSummary());
+        Log(latency.getSummary());
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                setCaptureEnabled(controller.getState() == CameraSessionController.State.READY);
+            }
+        });
+    }
+
+    private void setCaptureEnabled(boolean enabled) {
+        Button btnParallelCapture = findViewById(R.id.btnParallelCaptureCapture);
+        btnParallelCapture.setEnabled(enabled);
+        Button btnBurst = findViewById(R.id.btnParallelCaptureBurst);
+        btnBurst.setEnabled(enabled && !isReprocessing && isBurstMode);
+    }
+
+    /* camera has been opened successfully, returns the session outputs or null on failure */
+    private List<Surface> onCameraOpen(CameraDevice device, CameraThread thread) {
+        camDevice = device;
+        camThread = thread;
         Size previewSize = new Size(1280, 720);
         //Size previewSize = new Size(4208, 3120);
 
@@ -221,32 +330,47 @@ public class ParallelCaptureActivity extends Activity {
         chkReprocessing.setChecked(isReprocessing);
         chkReprocessing.setEnabled(false);
 
+        CheckBox chkYuv = findViewById(R.id.chkParallelCaptureYuv);
+        isYuv = chkYuv.isChecked();
+        chkYuv.setEnabled(false);
+
+        CheckBox chkBurst = findViewById(R.id.chkParallelCaptureBurst);
+        isBurstMode = chkBurst.isChecked();
+        chkBurst.setEnabled(false);
+        int captureFormat = isYuv ? ImageFormat.YUV_420_888 : ImageFormat.JPEG;
+
         // get sensor/output sizes
         Size outputSizes[];
-        Rect sensorSize;
+        Size sensorSize;
         try {
             surfaceList.clear();
-            CameraCharacteristics cc = camManager.getCameraCharacteristics(camDevice.getId());
-            StreamConfigurationMap map = cc.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-            if (map == null) {
-                throw new Exception();
+            CameraInfoCache.Info info = camInfo.getInfo(camDevice.getId());
+            if (info == null) {
+                throw new Exception("no characteristics");
             }
 
-            outputSizes = map.getOutputSizes(ImageFormat.JPEG);
+            outputSizes = info.getOutputSizes(captureFormat);
+
+            // sensor timestamps are either in elapsedRealtime or (usually) in nanoTime base
+            boolean isRealtimeTimestamp = info.isRealtimeTimestamp();
+            exportShutterLag();
+            shutterLag = new ShutterLagRecorder("still_cam" + camDevice.getId(), isRealtimeTimestamp, 1000);
+            latency.reset();
+            burst.cancel();
+            previewIntervals.resetTimestamp();
+            camThread.setRealtimeTimestamp(isRealtimeTimestamp);
 
             for(Size sz : outputSizes) {
                 Log(String.format(Locale.US, ">> %dx%d = %.2f MPix", sz.getWidth(), sz.getHeight(), sz.getWidth()*sz.getHeight()/1000000.0));
             }
 
-            sensorSize = cc.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
-            if (sensorSize == null) {
+            sensorSize = info.getActiveArraySize();
+            if (sensorSize.getWidth() == 0) {
                 throw new Exception();
             }
         } catch(Exception e) {
             Log("ERROR: Failed to get valid output sizes:\n\t" + e.getMessage());
-            camState = eCamState.CLOSING;
-            camDevice.close();
-            return;
+            return null;
         }
 
         // set preview size and create surface
@@ -259,9 +383,8 @@ public class ParallelCaptureActivity extends Activity {
         stPreview.setDefaultBufferSize(previewSize.getWidth(), previewSize.getHeight());
 
         // set capture size and create surface
-        Size captureSize;
-        if(contains(outputSizes, sensorSize.width(), sensorSize.height())) {
-            captureSize = new Size(sensorSize.width(), sensorSize.height());
+        if(contains(outputSizes, sensorSize.getWidth(), sensorSize.getHeight())) {
+            captureSize = sensorSize;
         } else {
             int mw = 0, mh = 0;
             for(Size s : outputSizes) {
@@ -276,11 +399,13 @@ public class ParallelCaptureActivity extends Activity {
 
             Log(String.format(Locale.US,
                     "INFO: no support for sensor size %dx%d",
-                    sensorSize.width(), sensorSize.height()
+                    sensorSize.getWidth(), sensorSize.getHeight()
             ));
         }
-        finalResultReader = ImageReader.newInstance(captureSize.getWidth(), captureSize.getHeight(), ImageFormat.JPEG, 2);
-        finalResultReader.setOnImageAvailableListener(finalResultCallback, null);
+        // JPEGs stay acquired until the writer has saved them, a burst needs room for all of them
+        int maxImages = isBurstMode && !isYuv ? Math.max(maxQueuedJpegs, numBurstShots) : maxQueuedJpegs;
+        finalResultReader = ImageReader.newInstance(captureSize.getWidth(), captureSize.getHeight(), captureFormat, maxImages);
+        finalResultReader.setOnImageAvailableListener(finalResultCallback, camThread.getImageHandler());
 
         // prepare surface list
         if(isReprocessing) {
@@ -290,7 +415,7 @@ public class ParallelCaptureActivity extends Activity {
                 public void onImageAvailable(ImageReader imageReader) {
                     reprocessWriter.queueInputImage(imageReader.acquireLatestImage());
                 }
-            }, null);
+            }, camThread.getCameraHandler());
 
 
             surfaceList.add(new Surface(stPreview));
@@ -302,179 +427,124 @@ public class ParallelCaptureActivity extends Activity {
             surfaceList.add(finalResultReader.getSurface());
         }
 
-        // create capture session
-        try {
-            if(isReprocessing) {
-                InputConfiguration ic = new InputConfiguration(captureSize.getWidth(), captureSize.getHeight(), ImageFormat.PRIVATE);
-                camDevice.createReprocessableCaptureSession(ic, surfaceList, sessionCallbacks, null);
-            } else {
-                camDevice.createCaptureSession(surfaceList, sessionCallbacks, null);
-            }
-
-            Log(String.format(Locale.US,
-                    "INFO: Using sizes %dx%d and %dx%d.",
-                        previewSize.getWidth(), previewSize.getHeight(),
-                        captureSize.getWidth(), captureSize.getHeight()
-                    ));
-
-        } catch(Exception e) {
-            Log("ERROR: Failed to create capture session:\n\t" + e.getMessage());
-            camState = eCamState.CLOSING;
-            camDevice.close();
-        }
+        Log(String.format(Locale.US,
+                "INFO: Using sizes %dx%d and %dx%d.",
+                    previewSize.getWidth(), previewSize.getHeight(),
+                    captureSize.getWidth(), captureSize.getHeight()
+                ));
+        return surfaceList;
     }
 
     /* ============================================================== */
 
-    CameraDevice.StateCallback cameraCallbacks = new CameraDevice.StateCallback() {
+    /* the controller calls back on the UI thread */
+    CameraSessionController.Listener sessionListener = new CameraSessionController.Listener() {
         @Override
-        public void onOpened(@NonNull CameraDevice cameraDevice) {
-            camState  = eCamState.OPEN;
-            camDevice = cameraDevice;
-            onCameraOpen();
+        public List<Surface> onCreateOutputs(@NonNull CameraDevice device, @NonNull CameraThread thread) {
+            return onCameraOpen(device, thread);
         }
 
         @Override
-        public void onClosed(@NonNull CameraDevice camera) {
-            Spinner sel = findViewById(R.id.selParallelCaptureCamera);
-
-            camDevice = null;
-            switch(camState) {
-                case CLOSING:
-                    Log("INFO: Camera closed.");
-                    camState = eCamState.CLOSED;
-                    sel.setSelection(0);
-
-                    // restore UI
-                    CheckBox chkReprocessing = findViewById(R.id.chkReprocessing);
-                    chkReprocessing.setEnabled(true);
-                    Button btnParallelCapture = findViewById(R.id.btnParallelCaptureCapture);
-                    btnParallelCapture.setEnabled(false);
-
-                    super.onClosed(camera);
-                    return;
-
-                case OPENING:
-                    Log("INFO: Camera closed, re-opening.");
-                    super.onClosed(camera);
-                    int index = sel.getSelectedItemPosition();
-                    onCameraSelect(index-1);
-                    return;
-
-                default:
-                    Log("ERROR: Unknown state in onClosed()!");
+        public InputConfiguration onCreateInputConfiguration(@NonNull CameraDevice device) {
+            if(!isReprocessing) {
+                return null;
             }
+            return new InputConfiguration(captureSize.getWidth(), captureSize.getHeight(), ImageFormat.PRIVATE);
         }
 
         @Override
-        public void onDisconnected(@NonNull CameraDevice cameraDevice) {
-            Log("INFO: Camera disconnected, closing.");
-            camState = eCamState.CLOSING;
-            cameraDevice.close();
+        public void onSessionReady(@NonNull CameraDevice device, @NonNull CameraCaptureSession session, @NonNull CameraThread thread) {
+            onSessionConfigured(session);
         }
 
         @Override
-        public void onError(@NonNull CameraDevice cameraDevice, int err) {
-            Log("ERROR: Camera failed, error " + err + "!");
-            camState = eCamState.CLOSING;
-            cameraDevice.close();
+        public void onSessionClosed(String error) {
+            onCameraClosed(error);
         }
-    };
 
-    CameraCaptureSession.StateCallback sessionCallbacks = new CameraCaptureSession.StateCallback() {
         @Override
-        public void onConfigured(@NonNull CameraCaptureSession cameraCaptureSession) {
-            camState = eCamState.READY;
-            captureSession = cameraCaptureSession;
+        public void onSessionTimings(@NonNull SessionTimings timings) {
+            Log("SESSION: " + timings);
+        }
+    };
 
-            if(isReprocessing) {
-                reprocessWriter = ImageWriter.newInstance(cameraCaptureSession.getInputSurface(), 2);
-            }
+    private void onCameraClosed(String error) {
+        camDevice = null;
+        captureSession = null;
+        camThread = null;
+        burst.cancel();
 
-            // start preview
-            try {
-                CaptureRequest.Builder b = camDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
-                b.addTarget(surfaceList.get(0));
-                cameraCaptureSession.setRepeatingRequest(b.build(), previewCallbacks, null);
-                onActive(cameraCaptureSession);
-            } catch(Exception e) {
-                Log("ERROR: Failed to create preview:\n\t" + e.getMessage());
-                camState = eCamState.CLOSING;
-                camDevice.close();
-            }
+        if(error != null) {
+            Log("ERROR: " + error);
+            Spinner sel = findViewById(R.id.selParallelCaptureCamera);
+            sel.setSelection(0);
         }
+        Log("INFO: Camera closed.");
 
-        @Override
-        public void onConfigureFailed(@NonNull CameraCaptureSession cameraCaptureSession) {
-            Log("ERROR: Failed to configure capture session!");
-            camState = eCamState.CLOSING;
-            camDevice.close();
+        // restore UI
+        CheckBox chkReprocessing = findViewById(R.id.chkReprocessing);
+        chkReprocessing.setEnabled(true);
+        CheckBox chkYuv = findViewById(R.id.chkParallelCaptureYuv);
+        chkYuv.setEnabled(true);
+        CheckBox chkBurst = findViewById(R.id.chkParallelCaptureBurst);
+        chkBurst.setEnabled(true);
+        setCaptureEnabled(false);
+    }
+
+    private void onSessionConfigured(CameraCaptureSession cameraCaptureSession) {
+        captureSession = cameraCaptureSession;
+
+        if(isReprocessing) {
+            reprocessWriter = ImageWriter.newInstance(cameraCaptureSession.getInputSurface(), 2);
         }
 
-        @Override
-        public void onActive(@NonNull CameraCaptureSession session) {
-            super.onActive(session);
-            if(camState != eCamState.READY) {
-                Log("Session became active while camera was not in READY state?");
-                return;
-            }
+        // start preview
+        try {
+            CaptureRequest.Builder b = camDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+            b.addTarget(surfaceList.get(0));
+            cameraCaptureSession.setRepeatingRequest(b.build(), previewCallbacks, camThread.getCameraHandler());
+        } catch(Exception e) {
+            Log("ERROR: Failed to create preview:\n\t" + e.getMessage());
+            closeCamera();
+            return;
+        }
 
-            camState = eCamState.PREVIEWING;
-            if(isReprocessing) {
-                Log("INFO: Reprocessable session became active.");
-            } else {
-                Log("INFO: Session became active.");
-            }
+        if(isReprocessing) {
+            Log("INFO: Reprocessable session became active.");
+        } else {
+            Log("INFO: Session became active.");
+        }
+        setCaptureEnabled(true);
+    }
 
-            Button btnParallelCapture = findViewById(R.id.btnParallelCaptureCapture);
-            btnParallelCapture.setEnabled(true);
+    /* preview frame intervals from sensor timestamps */
+    private final IntervalHistogram previewIntervals = new IntervalHistogram("preview", 100, new IntervalHistogram.Listener() {
+        @Override
+        public void onWindow(IntervalHistogram histogram, IntervalHistogram.Window window) {
+            Log("PREVIEW: " + window);
         }
-    };
+    });
 
     CameraCaptureSession.CaptureCallback previewCallbacks = new CameraCaptureSession.CaptureCallback() {
-        private long preview_last = 0, preview_n = 0, preview_s = 0, preview_sq = 0;
-
         @Override
         public void onCaptureStarted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, long timestamp, long frameNumber) {
             super.onCaptureStarted(session, request, timestamp, frameNumber);
-            preview_start = System.nanoTime();
+            controller.onCaptureStarted();
         }
 
         @Override
         public void onCaptureCompleted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull TotalCaptureResult result) {
             super.onCaptureCompleted(session, request, result);
-            preview_complete = System.nanoTime();
-
-            // reset on first frame
-            if(preview_last == 0) {
-                preview_last = System.nanoTime();
-                preview_n  = 0;
-                preview_s  = 0;
-                preview_sq = 0;
-                return;
-            }
-
-            // gather time statistics
-            long diff    = (preview_complete - preview_last) / 1000000;
-            preview_n    = preview_n  + 1;
-            preview_s    = preview_s  + diff;
-            preview_sq   = preview_sq + diff*diff;
-            preview_last = preview_complete;
-
-            // print statistics
-            if(preview_n > 100) {
-                // https://www-user.tu-chemnitz.de/~heha/hs/mr610.htm
-                double avg = (double)preview_s / preview_n;
-                double sfq = preview_sq - (double)(preview_s*preview_s)/preview_n;
-                double std = Math.sqrt(sfq / (preview_n - 1));
-
-//                Log(String.format(Locale.US,
-//                        "PREVIEW: %.2f fps (%.2f +- %.2f ms)",
-//                        1000/avg, avg, std));
-
-                preview_n  = 0;
-                preview_s  = 0;
-                preview_sq = 0;
+            // preview results, not user triggered stills, mark the session's first image
+            controller.onImageAvailable();
+
+            // callbacks queued before closing may still arrive
+            Long ts = result.get(CaptureResult.SENSOR_TIMESTAMP);
+            CameraThread thread = camThread;
+            if(ts != null && thread != null) {
+                thread.onFrameDispatched(ts);
+                previewIntervals.recordTimestamp(ts);
+                burst.onPreviewFrame(ts);
             }
         }
 
@@ -495,26 +565,28 @@ public class ParallelCaptureActivity extends Activity {
         @Override
         public void onCaptureStarted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, long timestamp, long frameNumber) {
             super.onCaptureStarted(session, request, timestamp, frameNumber);
-            capture_start = System.nanoTime();
+            int id = tagOf(request);
+            latency.onStarted(id, frameNumber, timestamp);
+            if(latency.getKind(id) == REQUEST_BURST) {
+                burst.onShotStarted(timestamp);
+            }
+            shutterLag.onFrameSelected(latency.getShot(id), timestamp);
         }
 
         @Override
         public void onCaptureCompleted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull TotalCaptureResult result) {
             super.onCaptureCompleted(session, request, result);
-            capture_complete = System.nanoTime();
-
-            double diff1 = (capture_start - capture_capture) / 1000000;
-            double diff2 = (capture_complete - capture_start) / 1000000;
-            Log(String.format(Locale.US,
-                    "CAPTURE: frame %d, %.2f ms -- %.2f ms",
-                    result.getFrameNumber(), diff1, diff2));
+            int id = tagOf(request);
+            latency.onCompleted(id);
+            shutterLag.onRequestCompleted(latency.getShot(id));
+            logRequest("CAPTURE", id, result.getFrameNumber());
 
             if(isReprocessing) {
                 try {
                     CaptureRequest.Builder b = camDevice.createReprocessCaptureRequest(result);
                     b.addTarget(surfaceList.get(2));
-                    reproc_capture = System.nanoTime();
-                    session.capture(b.build(), reprocessCallbacks, null);
+                    b.setTag(latency.onSubmit(REQUEST_REPROCESS, latency.getShot(id)));
+                    session.capture(b.build(), reprocessCallbacks, camThread.getCameraHandler());
 
                 } catch(Exception e) {
                     Log("CAPTURE: Failed to start reprocessing:\n\t" + e.getMessage());
@@ -525,12 +597,19 @@ public class ParallelCaptureActivity extends Activity {
         @Override
         public void onCaptureFailed(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull CaptureFailure failure) {
             super.onCaptureFailed(session, request, failure);
+            latency.onFailed(tagOf(request));
+            if(latency.getKind(tagOf(request)) == REQUEST_BURST) {
+                onBurstShotDone(true);
+            }
             Log("CAPTURE: onCaptureFailed for frame " + failure.getFrameNumber() + ": " + failure.getReason());
         }
 
         @Override
         public void onCaptureBufferLost(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull Surface target, long frameNumber) {
             super.onCaptureBufferLost(session, request, target, frameNumber);
+            if(latency.getKind(tagOf(request)) == REQUEST_BURST) {
+                onBurstShotDone(true);
+            }
             Log("CAPTURE: onBufferLost");
         }
     };
@@ -539,24 +618,22 @@ public class ParallelCaptureActivity extends Activity {
         @Override
         public void onCaptureStarted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, long timestamp, long frameNumber) {
             super.onCaptureStarted(session, request, timestamp, frameNumber);
-            reproc_start = System.nanoTime();
+            latency.onStarted(tagOf(request), frameNumber, timestamp);
         }
 
         @Override
         public void onCaptureCompleted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull TotalCaptureResult result) {
             super.onCaptureCompleted(session, request, result);
-            reproc_complete = System.nanoTime();
-
-            double diff1 = (reproc_start - reproc_capture) / 1000000;
-            double diff2 = (reproc_complete - reproc_start) / 1000000;
-            Log(String.format(Locale.US,
-                    "REPROC: frame %d, %.2f ms -- %.2f ms",
-                    result.getFrameNumber(), diff1, diff2));
+            int id = tagOf(request);
+            latency.onCompleted(id);
+            shutterLag.onRequestCompleted(latency.getShot(id));
+            logRequest("REPROC", id, result.getFrameNumber());
         }
 
         @Override
         public void onCaptureFailed(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull CaptureFailure failure) {
             super.onCaptureFailed(session, request, failure);
+            latency.onFailed(tagOf(request));
             Log("REPROC: onCaptureFailed: " + failure.getReason());
         }
 
@@ -570,70 +647,154 @@ public class ParallelCaptureActivity extends Activity {
     ImageReader.OnImageAvailableListener finalResultCallback = new ImageReader.OnImageAvailableListener() {
         @Override
         public void onImageAvailable(ImageReader imageReader) {
-            long now, then;
-            Image  result = imageReader.acquireNextImage();
+            Image result;
+            try {
+                result = imageReader.acquireNextImage();
+            } catch(IllegalStateException e) {
+                // all images still queued in the writer, acquired again once the writer releases one
+                Log("FINAL: writer busy, " + captureWriter.getQueueDepth() + " images queued");
+                return;
+            }
+            if(result == null) {
+                return;
+            }
             int    format = result.getFormat();
-            Bitmap bmpResult = null;
 
             if(format == ImageFormat.JPEG ) {
-                then = System.nanoTime();
+                int id = latency.onImageAvailable(result.getTimestamp());
+                if(latency.getShot(id) >= 0) {
+                    shutterLag.onJpegAvailable(result.getTimestamp());
+                    Log(shutterLag.getSummary());
+                }
 
-                ByteBuffer buf = result.getPlanes()[0].getBuffer();
-                byte[] bytes = new byte[buf.remaining()];
-                buf.get(bytes);
+                // written straight from the image buffer, the writer closes the image
+                captureWriter.save(result, id);
+
+            } else if(format == ImageFormat.YUV_420_888) {
+                int id = latency.onImageAvailable(result.getTimestamp());
+                if(latency.getShot(id) >= 0) {
+                    shutterLag.onJpegAvailable(result.getTimestamp());
+                    Log(shutterLag.getSummary());
+                }
+                onYuvImage(result, id);
+            } else {
                 result.close();
+            }
+        }
+    };
 
-                // save jpg file
-                try {
-                    File f = new File(getFilesDir(), "capture.jpg");
-                    FileOutputStream output = new FileOutputStream(f);
-                    output.write(bytes);
-                    output.close();
+    // image thread only
+    private void onYuvImage(Image image, int id) {
+        long then = System.nanoTime();
+        final Bitmap bmp = yuvConverter.convert(image, yuvBitmaps[yuvBitmapIndex]);
+        long elapsed = System.nanoTime() - then;
+        image.close();
 
-                    now = System.nanoTime();
-                } catch(Exception e) {
-                    Log("Can't write JPG file: " + e.getMessage());
-                    return;
-                }
+        // the other bitmap may still be shown, it is overwritten next time
+        yuvBitmaps[yuvBitmapIndex] = bmp;
+        yuvBitmapIndex = (yuvBitmapIndex + 1) % yuvBitmaps.length;
 
-                // decode & display jpg file
-                bmpResult = BitmapFactory.decodeFile(getFilesDir() + "/capture.jpg");
-                now = System.nanoTime();
-                Log("FINAL: save/decode/display took " + (now - then)/1000000 + " ms");
+        Log(String.format(Locale.US, "FINAL: %dx%d YUV converted in %.2f ms",
+                bmp.getWidth(), bmp.getHeight(), elapsed / 1000000.0));
 
-            } else if(format == ImageFormat.YUV_420_888) {
-                Log("no yuv support yet");
-                result.close();
+        if(latency.getKind(id) == REQUEST_BURST) {
+            onBurstShotDone(false);
+            return;
+        }
+        Log(latency.getSummary());
+
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                ImageView ivCapture = findViewById(R.id.ivParallelCaptureImage);
+                ivCapture.setImageBitmap(bmp);
+            }
+        });
+    }
+
+    CaptureWriter.Listener captureWriterListener = new CaptureWriter.Listener() {
+        @Override
+        public void onImageSaved(int tag, File file, ByteBuffer jpeg, long writeNanos) {
+            latency.onPersisted(tag);
+            Log(String.format(Locale.US, "FINAL: %s saved in %.2f ms\n\t%s",
+                    file.getName(), writeNanos / 1000000.0, captureWriter.getSummary()));
+
+            // burst shots are summarized when the burst is done
+            if(latency.getKind(tag) == REQUEST_BURST) {
+                onBurstShotDone(false);
                 return;
             }
+            Log(latency.getSummary());
 
-            ImageView ivCapture = findViewById(R.id.ivParallelCaptureImage);
-            ivCapture.setImageBitmap(bmpResult);
+            // thumbnail needs its own copy, the image is closed after this call
+            final byte[] bytes = new byte[jpeg.remaining()];
+            jpeg.get(bytes);
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    ImageView ivCapture = findViewById(R.id.ivParallelCaptureImage);
+                    thumbnailDecoder.decode(bytes, bytes.length, ivCapture);
+                }
+            });
+        }
 
+        @Override
+        public void onImageFailed(int tag, String reason) {
+            Log("Can't write JPG file: " + reason);
+            if(latency.getKind(tag) == REQUEST_BURST) {
+                onBurstShotDone(true);
+            }
+        }
+
+        @Override
+        public void onImageReleased() {
+            // an image left in the reader while the writer was busy has no callback of its own
+            final ImageReader reader = finalResultReader;
+            CameraThread thread = camThread;
+            if(reader == null || thread == null) {
+                return;
+            }
+            thread.getImageHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    if(reader == finalResultReader) {
+                        finalResultCallback.onImageAvailable(reader);
+                    }
+                }
+            });
         }
     };
 
     /* ============================================================== */
 
+    private int tagOf(CaptureRequest request) {
+        return request.getTag() instanceof Integer ? (Integer)request.getTag() : -1;
+    }
+
+    private void logRequest(String name, int id, long frameNumber) {
+        Log(String.format(Locale.US,
+                "%s: frame %d, %.2f ms -- %.2f ms",
+                name, frameNumber,
+                latency.getStage(id, RequestLatencyTracker.STARTED) / 1000000.0,
+                latency.getStage(id, RequestLatencyTracker.COMPLETED) / 1000000.0));
+    }
+
     private boolean canReprocess(boolean wantReprocessing) {
         if(!wantReprocessing)
             return false;
 
-        int caps[];
-        try {
-            CameraCharacteristics cc = camManager.getCameraCharacteristics(camDevice.getId());
-            caps = cc.get(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES);
-        } catch(Exception e) {
-            Log("ERROR: Can't get capabilities:\n\t" + e.getMessage());
+        CameraInfoCache.Info info = camInfo.getInfo(camDevice.getId());
+        if(info == null) {
+            Log("ERROR: Can't get capabilities.");
             return false;
         }
 
-        if(!contains(caps, CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES_RAW)) {
+        if(!info.hasCapability(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES_RAW)) {
             Log("DEBUG: Reprocessing disabled (no RAW support).");
             return false;
         }
 
-        if(!contains(caps, CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES_PRIVATE_REPROCESSING)) {
+        if(!info.hasCapability(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES_PRIVATE_REPROCESSING)) {
             Log("DEBUG: Reprocessing disabled (no PRIV support).");
             return false;
         }
@@ -649,13 +810,4 @@ public class ParallelCaptureActivity extends Activity {
         }
         return false;
     }
-
-    private boolean contains(int[] arr, int val) {
-        for(int elem : arr) {
-            if(elem == val) {
-                return true;
-            }
-        }
-        return false;
-    }
 }
@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2019, Sony Mobile Communications Inc.
+ * Licensed under the LICENSE.
+ */
+package com.sony.open.cameratest;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Tracks the latency of individual capture requests.
+ *
+ * Each request gets an id on submission which is set as the request tag.
+ * Start, completion, arrival of the output image and its persistence are
+ * recorded per id, so any number of requests can be in flight at once.
+ * Output images are matched to their request by sensor timestamp. The
+ * image and the capture result are produced in parallel once the capture
+ * has started, so both stages are measured from the start. All
+ * state lives in preallocated arrays; the oldest request is overwritten
+ * once more than capacity requests have been submitted.
+ *
+ * Methods may be called from any thread.
+ */
+public class RequestLatencyTracker {
+    public static final int SUBMITTED = 0, STARTED = 1, COMPLETED = 2, IMAGE = 3, PERSISTED = 4;
+    public static final String[] STAGES = { "submit", "start", "complete", "image", "persist" };
+
+    private final String[] kinds;
+
+    // per request, slot = id % capacity; 0 means not recorded
+    private final int[]    ids, kind, shot;
+    private final long[]   frameNumber, sensorTs;
+    private final long[][] times;
+    private final boolean[] failed;
+    private int numRequests = 0;
+
+    private final long[] scratch;
+
+    // kinds name the request types, e.g. capture and reprocess
+    public RequestLatencyTracker(int capacity, String... kinds) {
+        this.kinds = kinds;
+
+        ids         = new int[capacity];
+        kind        = new int[capacity];
+        shot        = new int[capacity];
+        frameNumber = new long[capacity];
+        sensorTs    = new long[capacity];
+        times       = new long[capacity][STAGES.length];
+        failed      = new boolean[capacity];
+        scratch     = new long[capacity];
+        reset();
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(ids, -1);
+        numRequests = 0;
+    }
+
+    /* ============================================================== */
+
+    // request about to be submitted, returns the id to use as its tag
+    public synchronized int onSubmit(int requestKind, int shotId) {
+        int id   = numRequests++;
+        int slot = id % ids.length;
+
+        ids[slot]         = id;
+        kind[slot]        = requestKind;
+        shot[slot]        = shotId;
+        frameNumber[slot] = -1;
+        sensorTs[slot]    = 0;
+        failed[slot]      = false;
+        Arrays.fill(times[slot], 0);
+        times[slot][SUBMITTED] = System.nanoTime();
+        return id;
+    }
+
+    public synchronized void onStarted(int id, long frame, long timestamp) {
+        int slot = slotOf(id);
+        if(slot >= 0) {
+            times[slot][STARTED] = System.nanoTime();
+            frameNumber[slot]    = frame;
+            sensorTs[slot]       = timestamp;
+        }
+    }
+
+    public synchronized void onCompleted(int id) {
+        int slot = slotOf(id);
+        if(slot >= 0) {
+            times[slot][COMPLETED] = System.nanoTime();
+        }
+    }
+
+    public synchronized void onFailed(int id) {
+        int slot = slotOf(id);
+        if(slot >= 0) {
+            failed[slot] = true;
+        }
+    }
+
+    // output image arrived, returns the id of the newest open request with that timestamp or -1
+    public synchronized int onImageAvailable(long timestamp) {
+        long now = System.nanoTime();
+        for(int id = numRequests - 1; id >= Math.max(0, numRequests - ids.length); id--) {
+            int slot = id % ids.length;
+            if(sensorTs[slot] == timestamp && times[slot][IMAGE] == 0) {
+                times[slot][IMAGE] = now;
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    public synchronized void onPersisted(int id) {
+        int slot = slotOf(id);
+        if(slot >= 0) {
+            times[slot][PERSISTED] = System.nanoTime();
+        }
+    }
+
+    /* ============================================================== */
+
+    public synchronized int getShot(int id) {
+        int slot = slotOf(id);
+        return slot >= 0 ? shot[slot] : -1;
+    }
+
+    public synchronized int getKind(int id) {
+        int slot = slotOf(id);
+        return slot >= 0 ? kind[slot] : -1;
+    }
+
+    public synchronized long getFrameNumber(int id) {
+        int slot = slotOf(id);
+        return slot >= 0 ? frameNumber[slot] : -1;
+    }
+
+    // time from the stage this one follows to this one in ns, or Long.MIN_VALUE if not recorded
+    public synchronized long getStage(int id, int stage) {
+        int slot = slotOf(id);
+        if(slot < 0 || stage <= SUBMITTED) {
+            return Long.MIN_VALUE;
+        }
+        int from = previousStage(stage);
+        if(times[slot][stage] == 0 || times[slot][from] == 0) {
+            return Long.MIN_VALUE;
+        }
+        return times[slot][stage] - times[slot][from];
+    }
+
+    // time from submission to this stage in ns, or Long.MIN_VALUE if not recorded
+    public synchronized long getTotal(int id, int stage) {
+        int slot = slotOf(id);
+        if(slot < 0 || times[slot][stage] == 0) {
+            return Long.MIN_VALUE;
+        }
+        return times[slot][stage] - times[slot][SUBMITTED];
+    }
+
+    // percentile over all recorded requests of a kind in ns
+    public synchronized long getPercentile(int requestKind, int stage, double percentile) {
+        int n = collect(requestKind, stage);
+        if(n == 0) {
+            return 0;
+        }
+        Arrays.sort(scratch, 0, n);
+        int index = (int)Math.ceil(percentile / 100.0 * n) - 1;
+        return scratch[Math.max(0, Math.min(n - 1, index))];
+    }
+
+    public synchronized String getSummary() {
+        StringBuilder sb = new StringBuilder();
+        for(int k = 0; k < kinds.length; k++) {
+            int n = 0, numFailed = 0;
+            for(int id = Math.max(0, numRequests - ids.length); id < numRequests; id++) {
+                int slot = id % ids.length;
+                if(kind[slot] == k) {
+                    n++;
+                    if(failed[slot]) {
+                        numFailed++;
+                    }
+                }
+            }
+            if(n == 0) {
+                continue;
+            }
+
+            sb.append(String.format(Locale.US, "%s%s: %d requests, %d failed",
+                    sb.length() > 0 ? "\n" : "", kinds[k], n, numFailed));
+            for(int stage = STARTED; stage < STAGES.length; stage++) {
+                if(collect(k, stage) == 0) {
+                    continue;
+                }
+                sb.append(String.format(Locale.US, "\n  %s: p50 %.2f, p90 %.2f, max %.2f ms",
+                        STAGES[stage],
+                        getPercentile(k, stage, 50) / 1000000.0,
+                        getPercentile(k, stage, 90) / 1000000.0,
+                        getPercentile(k, stage, 100) / 1000000.0));
+            }
+        }
+        return sb.toString();
+    }
+
+    /* ============================================================== */
+
+    // the image may arrive before the result, it doesn't wait for completion
+    private static int previousStage(int stage) {
+        return stage == IMAGE ? STARTED : stage - 1;
+    }
+
+    private int slotOf(int id) {
+        if(id < 0) {
+            return -1;
+        }
+        int slot = id % ids.length;
+        return ids[slot] == id ? slot : -1;
+    }
+
+    private int collect(int requestKind, int stage) {
+        int n = 0;
+        for(int id = Math.max(0, numRequests - ids.length); id < numRequests; id++) {
+            if(kind[id % ids.length] != requestKind) {
+                continue;
+            }
+            long v = getStage(id, stage);
+            if(v != Long.MIN_VALUE) {
+                scratch[n++] = v;
+            }
+        }
+        return n;
+    }
+}
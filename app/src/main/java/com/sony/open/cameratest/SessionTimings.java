@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2019, Sony Mobile Communications Inc.
+ * Licensed under the LICENSE.
+ */
+package com.sony.open.cameratest;
+
+import java.util.Locale;
+
+/**
+ * Start-up milestones of one camera session.
+ *
+ * Records when opening the device was requested, when it was opened,
+ * when the capture session was configured, when the first capture
+ * started and when the first image arrived. Only the first frame and
+ * image of a session count. The milestones are independent of the
+ * activity, so every test reports the same numbers.
+ *
+ * Methods may be called from any thread.
+ */
+public class SessionTimings {
+    public static final int OPEN_REQUESTED = 0, OPENED = 1, CONFIGURED = 2, FIRST_FRAME = 3, FIRST_IMAGE = 4;
+    public static final String[] MILESTONES = { "request", "open", "configure", "first frame", "first image" };
+
+    private final String cameraId;
+    private final long[] times = new long[MILESTONES.length];
+
+    public SessionTimings(String cameraId) {
+        this.cameraId = cameraId;
+    }
+
+    public String getCameraId() {
+        return cameraId;
+    }
+
+    // opening the device is about to be requested, starts a new session
+    public synchronized void onOpenRequested() {
+        for(int i = 0; i < times.length; i++) {
+            times[i] = 0;
+        }
+        times[OPEN_REQUESTED] = System.nanoTime();
+    }
+
+    public void onOpened() {
+        mark(OPENED);
+    }
+
+    public void onConfigured() {
+        mark(CONFIGURED);
+    }
+
+    // onCaptureStarted of any request, returns true for the first one of the session
+    public boolean onCaptureStarted() {
+        return mark(FIRST_FRAME);
+    }
+
+    // image of a repeating preview output arrived, returns true for the first one of the session
+    public boolean onImageAvailable() {
+        return mark(FIRST_IMAGE);
+    }
+
+    /* ============================================================== */
+
+    // time from the open request to the milestone in ns, or Long.MIN_VALUE if not reached
+    public synchronized long getTotal(int milestone) {
+        if(times[OPEN_REQUESTED] == 0 || times[milestone] == 0) {
+            return Long.MIN_VALUE;
+        }
+        return times[milestone] - times[OPEN_REQUESTED];
+    }
+
+    public synchronized boolean isComplete() {
+        return times[FIRST_FRAME] != 0 && times[FIRST_IMAGE] != 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("camera ").append(cameraId).append(':');
+        long last = times[OPEN_REQUESTED];
+        for(int i = OPENED; i < times.length; i++) {
+            if(times[i] == 0) {
+                continue;
+            }
+            // image milestones are relative to the configured session, not to each other
+            long from = i == FIRST_IMAGE && times[CONFIGURED] != 0 ? times[CONFIGURED] : last;
+            sb.append(String.format(Locale.US, " %s +%.2f ms (%.2f ms),",
+                    MILESTONES[i], (times[i] - from) / 1000000.0, (times[i] - times[OPEN_REQUESTED]) / 1000000.0));
+            if(i != FIRST_IMAGE) {
+                last = times[i];
+            }
+        }
+        sb.setLength(sb.length() - 1);
+        return sb.toString();
+    }
+
+    /* ============================================================== */
+
+    private synchronized boolean mark(int milestone) {
+        if(times[OPEN_REQUESTED] == 0 || times[milestone] != 0) {
+            return false;
+        }
+        times[milestone] = System.nanoTime();
+        return true;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2019, Sony Mobile Communications Inc.
+ * Licensed under the LICENSE.
+ */
+package com.sony.open.cameratest;
+
+import java.util.Locale;
+
+/**
+ * Sharpness over focus distance, and where it peaks.
+ *
+ * Points are kept sorted by distance in preallocated arrays; measurements
+ * at the same distance, e.g. on the way there and back of a sweep, are
+ * averaged. The peak is found by hill-climbing from infinity over the
+ * lightly smoothed curve. The climb only ends after a few points clearly
+ * below the best one, a quarter of the curve's range, so noise on the
+ * flat far end doesn't stop it early. The best point and its neighbours
+ * are then fitted with a parabola.
+ *
+ * Plain Java without Android dependencies, so it also runs on a desktop JVM.
+ */
+public class SharpnessCurve {
+    private static final float epsilon  = 1e-4f;   // diopters
+    private static final int   patience = 2;       // lower points before giving up
+    private static final double drop    = 0.25;    // of the range, to count as lower
+
+    private final float[]  distance;
+    private final double[] sum, smoothed;
+    private final int[]    count;
+    private int     size = 0;
+    private boolean isDirty = true;
+    private double  peakDistance = Double.NaN, peakValue = Double.NaN;
+
+    public SharpnessCurve(int capacity) {
+        distance = new float[capacity];
+        sum      = new double[capacity];
+        smoothed = new double[capacity];
+        count    = new int[capacity];
+    }
+
+    public synchronized void clear() {
+        size    = 0;
+        isDirty = true;
+    }
+
+    // false if the curve is full
+    public synchronized boolean add(float dist, double value) {
+        int i = 0;
+        while(i < size && distance[i] < dist - epsilon) {
+            i++;
+        }
+        if(i < size && Math.abs(distance[i] - dist) <= epsilon) {
+            sum[i] += value;
+            count[i]++;
+            isDirty = true;
+            return true;
+        }
+        if(size == distance.length) {
+            return false;
+        }
+        System.arraycopy(distance, i, distance, i + 1, size - i);
+        System.arraycopy(sum, i, sum, i + 1, size - i);
+        System.arraycopy(count, i, count, i + 1, size - i);
+        distance[i] = dist;
+        sum[i]      = value;
+        count[i]    = 1;
+        size++;
+        isDirty = true;
+        return true;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized float getDistance(int i) {
+        return distance[i];
+    }
+
+    public synchronized double getValue(int i) {
+        return sum[i] / count[i];
+    }
+
+    // focus distance in diopters of the sharpest image, NaN with fewer than 3 points
+    public synchronized double getPeakDistance() {
+        findPeak();
+        return peakDistance;
+    }
+
+    public synchronized double getPeakValue() {
+        findPeak();
+        return peakValue;
+    }
+
+    public synchronized String getSummary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "SHARPNESS: %d points, peak at %.3f dpt, value %.1f",
+                size, getPeakDistance(), getPeakValue()));
+        for(int i = 0; i < size; i++) {
+            sb.append(String.format(Locale.US, "\n\t%.3f dpt: %.1f (%d)", distance[i], getValue(i), count[i]));
+        }
+        return sb.toString();
+    }
+
+    /* ============================================================== */
+
+    private void findPeak() {
+        if(!isDirty) {
+            return;
+        }
+        isDirty = false;
+        peakDistance = peakValue = Double.NaN;
+        if(size < 3) {
+            return;
+        }
+
+        // 1-2-1 smoothing, ends weighted towards themselves
+        double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+        for(int i = 0; i < size; i++) {
+            double l = getValue(Math.max(0, i - 1)), r = getValue(Math.min(size - 1, i + 1));
+            smoothed[i] = (l + 2 * getValue(i) + r) / 4;
+            min = Math.min(min, smoothed[i]);
+            max = Math.max(max, smoothed[i]);
+        }
+
+        // climb from infinity
+        int best = 0, lower = 0;
+        for(int i = 1; i < size && lower <= patience; i++) {
+            if(smoothed[i] > smoothed[best]) {
+                best  = i;
+                lower = 0;
+            } else if(smoothed[i] < smoothed[best] - drop * (max - min)) {
+                lower++;
+            }
+        }
+
+        // vertex of the parabola through the best point and its neighbours
+        peakDistance = distance[best];
+        peakValue    = getValue(best);
+        if(best > 0 && best < size - 1) {
+            double x0 = distance[best - 1], x1 = distance[best], x2 = distance[best + 1];
+            double y0 = smoothed[best - 1], y1 = smoothed[best], y2 = smoothed[best + 1];
+            double d  = (x0 - x1) * (x0 - x2) * (x1 - x2);
+            double a  = (x2 * (y1 - y0) + x1 * (y0 - y2) + x0 * (y2 - y1)) / d;
+            double b  = (x2 * x2 * (y0 - y1) + x1 * x1 * (y2 - y0) + x0 * x0 * (y1 - y2)) / d;
+            if(a < 0) {
+                double v = -b / (2 * a);
+                if(v >= x0 && v <= x2) {
+                    peakDistance = v;
+                }
+            }
+        }
+    }
+}
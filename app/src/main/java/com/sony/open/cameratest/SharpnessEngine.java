@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2019, Sony Mobile Communications Inc.
+ * Licensed under the LICENSE.
+ */
+package com.sony.open.cameratest;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Contrast measure of a luma plane, for contrast-detection autofocus.
+ *
+ * LAPLACIAN is the variance of the 4-neighbour Laplacian, TENENGRAD the
+ * mean squared Sobel gradient magnitude. Both grow as the image gets
+ * sharper. Only the region of interest, given as fractions of the frame,
+ * is measured.
+ *
+ * The rows of the region are split into bands, one per thread. The
+ * calling thread takes the first band and worker threads, started once,
+ * the others. Partial sums live in preallocated arrays, so measuring a
+ * frame allocates nothing.
+ *
+ * Plain Java without Android dependencies, so it also runs on a desktop JVM.
+ */
+public class SharpnessEngine {
+    public static final int LAPLACIAN = 0, TENENGRAD = 1;
+
+    private final int      method;
+    private final Thread[] workers;
+
+    // per band: sum, sum of squares, count
+    private final double[] sum, sumSq;
+    private final long[]   count;
+
+    // region of interest as fractions of the frame
+    private float roiLeft = 0, roiTop = 0, roiRight = 1, roiBottom = 1;
+
+    // current frame, guarded by lock between generations
+    private final Object lock = new Object();
+    private ByteBuffer plane;
+    private int  rowStride, pixelStride, x0, x1, y0, y1;
+    private long generation = 0;
+    private int  remaining  = 0;
+    private boolean isReleased = false;
+
+    public SharpnessEngine(int method, int numThreads) {
+        this.method = method;
+        int n = Math.max(1, numThreads);
+        sum   = new double[n];
+        sumSq = new double[n];
+        count = new long[n];
+
+        workers = new Thread[n - 1];
+        for(int i = 0; i < workers.length; i++) {
+            final int band = i + 1;
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work(band);
+                }
+            }, "Sharpness" + band);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    public synchronized void setRoi(float left, float top, float right, float bottom) {
+        roiLeft   = left;
+        roiTop    = top;
+        roiRight  = right;
+        roiBottom = bottom;
+    }
+
+    // sharpness of the luma plane; blocks until all bands are done
+    public synchronized double measure(ByteBuffer y, int width, int height, int rowStride, int pixelStride) {
+        int bands = sum.length;
+        synchronized(lock) {
+            // keep a one pixel border for the kernels
+            plane            = y;
+            this.rowStride   = rowStride;
+            this.pixelStride = pixelStride;
+            x0 = Math.max(1, (int)(roiLeft * width));
+            x1 = Math.min(width - 1, (int)(roiRight * width));
+            y0 = Math.max(1, (int)(roiTop * height));
+            y1 = Math.min(height - 1, (int)(roiBottom * height));
+            if(x1 <= x0 || y1 <= y0) {
+                plane = null;
+                return 0;
+            }
+            remaining = bands - 1;
+            generation++;
+            lock.notifyAll();
+        }
+
+        measureBand(0);
+
+        synchronized(lock) {
+            while(remaining > 0) {
+                try {
+                    lock.wait();
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return 0;
+                }
+            }
+            plane = null;
+        }
+
+        double s = 0, sq = 0;
+        long   n = 0;
+        for(int i = 0; i < bands; i++) {
+            s  += sum[i];
+            sq += sumSq[i];
+            n  += count[i];
+        }
+        if(n == 0) {
+            return 0;
+        }
+        double mean = s / n;
+        return method == LAPLACIAN ? sq / n - mean * mean : s / n;
+    }
+
+    // stop the worker threads
+    public void release() {
+        synchronized(lock) {
+            isReleased = true;
+            lock.notifyAll();
+        }
+    }
+
+    /* ============================================================== */
+
+    private void work(int band) {
+        long seen = 0;
+        while(true) {
+            synchronized(lock) {
+                while(generation == seen && !isReleased) {
+                    try {
+                        lock.wait();
+                    } catch(InterruptedException e) {
+                        return;
+                    }
+                }
+                if(isReleased) {
+                    return;
+                }
+                seen = generation;
+            }
+
+            measureBand(band);
+
+            synchronized(lock) {
+                if(--remaining == 0) {
+                    lock.notifyAll();
+                }
+            }
+        }
+    }
+
+    private void measureBand(int band) {
+        int bands = sum.length;
+        int rows  = y1 - y0;
+        int from  = y0 + rows * band / bands, to = y0 + rows * (band + 1) / bands;
+        ByteBuffer p = plane;
+        int rs = rowStride, ps = pixelStride;
+
+        double s = 0, sq = 0;
+        for(int y = from; y < to; y++) {
+            int row = y * rs;
+            for(int x = x0; x < x1; x++) {
+                int c  = row + x * ps;
+                int up = c - rs, down = c + rs;
+                if(method == LAPLACIAN) {
+                    int l = 4 * (p.get(c) & 0xff) - (p.get(up) & 0xff) - (p.get(down) & 0xff)
+                            - (p.get(c - ps) & 0xff) - (p.get(c + ps) & 0xff);
+                    s  += l;
+                    sq += (double)l * l;
+                } else {
+                    int tl = p.get(up - ps) & 0xff, t = p.get(up) & 0xff, tr = p.get(up + ps) & 0xff;
+                    int ml = p.get(c - ps) & 0xff, mr = p.get(c + ps) & 0xff;
+                    int bl = p.get(down - ps) & 0xff, b = p.get(down) & 0xff, br = p.get(down + ps) & 0xff;
+                    int gx = (tr + 2 * mr + br) - (tl + 2 * ml + bl);
+                    int gy = (bl + 2 * b + br) - (tl + 2 * t + tr);
+                    s += (double)gx * gx + (double)gy * gy;
+                }
+            }
+        }
+        sum[band]   = s;
+        sumSq[band] = sq;
+        count[band] = (long)(to - from) * (x1 - x0);
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2019, Sony Mobile Communications Inc.
+ * Licensed under the LICENSE.
+ */
+package com.sony.open.cameratest;
+
+import android.os.SystemClock;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Locale;
+
+/**
+ * Records shutter lag over repeated shots.
+ *
+ * For every shot the button press, the sensor timestamp of the frame that
+ * ends up in the picture, submission and completion of the request that
+ * produces it (the reprocess request for ZSL, the still capture otherwise)
+ * and the arrival of the JPEG are recorded. Percentiles over all shots can
+ * be printed or exported as CSV.
+ *
+ * Methods may be called from the UI and the camera callback threads.
+ */
+public class ShutterLagRecorder {
+    private final String  name;
+    private final boolean isRealtimeTimestamp;
+
+    // per shot, slot = shot % capacity; 0 means not recorded
+    private final long[] pressTime, pressSensor, frameTs;
+    private final long[] submitTime, completeTime, jpegTime;
+    private int numShots = 0;
+
+    private final long[] scratch;
+
+    // stages: frame relative to press, then press to submit/complete/jpeg
+    public static final String[] STAGES = { "shutter lag", "submit", "complete", "jpeg" };
+
+    public ShutterLagRecorder(String name, boolean isRealtimeTimestamp, int capacity) {
+        this.name = name;
+        this.isRealtimeTimestamp = isRealtimeTimestamp;
+
+        pressTime    = new long[capacity];
+        pressSensor  = new long[capacity];
+        frameTs      = new long[capacity];
+        submitTime   = new long[capacity];
+        completeTime = new long[capacity];
+        jpegTime     = new long[capacity];
+        scratch      = new long[capacity];
+    }
+
+    /* ============================================================== */
+
+    // button pressed, returns the shot id to pass to the other methods
+    public synchronized int onPress() {
+        int shot = numShots++;
+        int slot = slotOf(shot);
+
+        pressTime[slot]    = System.nanoTime();
+        pressSensor[slot]  = isRealtimeTimestamp ? SystemClock.elapsedRealtimeNanos() : pressTime[slot];
+        frameTs[slot]      = 0;
+        submitTime[slot]   = 0;
+        completeTime[slot] = 0;
+        jpegTime[slot]     = 0;
+        return shot;
+    }
+
+    // sensor timestamp of the press, comparable to SENSOR_TIMESTAMP
+    public synchronized long getPressSensorTimestamp(int shot) {
+        return isValid(shot) ? pressSensor[slotOf(shot)] : 0;
+    }
+
+    public synchronized void onFrameSelected(int shot, long sensorTimestamp) {
+        if(isValid(shot)) {
+            frameTs[slotOf(shot)] = sensorTimestamp;
+        }
+    }
+
+    public synchronized void onRequestSubmitted(int shot) {
+        if(isValid(shot)) {
+            submitTime[slotOf(shot)] = System.nanoTime();
+        }
+    }
+
+    // may be called more than once per shot, e.g. capture and reprocess
+    public synchronized void onRequestCompleted(int shot) {
+        if(isValid(shot)) {
+            completeTime[slotOf(shot)] = System.nanoTime();
+        }
+    }
+
+    // JPEG arrived; matched by frame timestamp, otherwise to the oldest open shot
+    public synchronized int onJpegAvailable(long sensorTimestamp) {
+        long now = System.nanoTime();
+        int first = Math.max(0, numShots - pressTime.length);
+
+        int shot = -1;
+        for(int i = first; i < numShots; i++) {
+            int slot = slotOf(i);
+            if(jpegTime[slot] == 0 && frameTs[slot] == sensorTimestamp) {
+                shot = i;
+                break;
+            }
+        }
+        if(shot < 0) {
+            for(int i = first; i < numShots; i++) {
+                if(jpegTime[slotOf(i)] == 0) {
+                    shot = i;
+                    break;
+                }
+            }
+        }
+        if(shot >= 0) {
+            jpegTime[slotOf(shot)] = now;
+        }
+        return shot;
+    }
+
+    // forget all recorded shots
+    public synchronized void reset() {
+        numShots = 0;
+    }
+
+    /* ============================================================== */
+
+    // shot time for a stage in ns, or Long.MIN_VALUE if not recorded
+    public synchronized long getStage(int shot, int stage) {
+        if(!isValid(shot)) {
+            return Long.MIN_VALUE;
+        }
+
+        int slot = slotOf(shot);
+        long value;
+        switch(stage) {
+            case 0:
+                return frameTs[slot] == 0 ? Long.MIN_VALUE : frameTs[slot] - pressSensor[slot];
+            case 1:
+                value = submitTime[slot];
+                break;
+            case 2:
+                value = completeTime[slot];
+                break;
+            default:
+                value = jpegTime[slot];
+                break;
+        }
+        return value == 0 ? Long.MIN_VALUE : value - pressTime[slot];
+    }
+
+    // percentile of a stage over all recorded shots in ns
+    public synchronized long getPercentile(int stage, double percentile) {
+        int n = collect(stage);
+        if(n == 0) {
+            return 0;
+        }
+        Arrays.sort(scratch, 0, n);
+        int index = (int)Math.ceil(percentile / 100.0 * n) - 1;
+        return scratch[Math.max(0, Math.min(n - 1, index))];
+    }
+
+    public synchronized int getNumShots() {
+        return Math.min(numShots, pressTime.length);
+    }
+
+    public synchronized String getSummary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "%s: %d shots", name, getNumShots()));
+        for(int stage = 0; stage < STAGES.length; stage++) {
+            int n = collect(stage);
+            if(n == 0) {
+                continue;
+            }
+            sb.append(String.format(Locale.US, "\n  %s: p50 %.2f, p90 %.2f, p99 %.2f, max %.2f ms",
+                    STAGES[stage],
+                    getPercentile(stage, 50) / 1000000.0,
+                    getPercentile(stage, 90) / 1000000.0,
+                    getPercentile(stage, 99) / 1000000.0,
+                    getPercentile(stage, 100) / 1000000.0));
+        }
+        return sb.toString();
+    }
+
+    // write all shots and the percentiles as CSV, returns the file written
+    public synchronized File export(File dir) throws IOException {
+        Calendar now = Calendar.getInstance();
+        String fileName = String.format(Locale.US, "shutterlag_%s_%04d%02d%02d_%02d%02d%02d.csv",
+                name,
+                now.get(Calendar.YEAR), now.get(Calendar.MONTH) + 1, now.get(Calendar.DAY_OF_MONTH),
+                now.get(Calendar.HOUR_OF_DAY), now.get(Calendar.MINUTE), now.get(Calendar.SECOND));
+        File f = new File(dir, fileName);
+
+        try(FileWriter w = new FileWriter(f)) {
+            w.write("shot,frame_ts_ns,shutter_lag_ms,submit_ms,complete_ms,jpeg_ms\n");
+            for(int shot = Math.max(0, numShots - pressTime.length); shot < numShots; shot++) {
+                w.write(String.format(Locale.US, "%d,%d", shot, frameTs[slotOf(shot)]));
+                for(int stage = 0; stage < STAGES.length; stage++) {
+                    long v = getStage(shot, stage);
+                    w.write(v == Long.MIN_VALUE ? "," : String.format(Locale.US, ",%.3f", v / 1000000.0));
+                }
+                w.write("\n");
+            }
+
+            w.write("\npercentile");
+            for(String stage : STAGES) {
+                w.write("," + stage);
+            }
+            w.write("\n");
+            for(double p : new double[] { 50, 90, 99, 100 }) {
+                w.write(p == 100 ? "max" : "p" + (int)p);
+                for(int stage = 0; stage < STAGES.length; stage++) {
+                    w.write(String.format(Locale.US, ",%.3f", getPercentile(stage, p) / 1000000.0));
+                }
+                w.write("\n");
+            }
+        }
+        return f;
+    }
+
+    /* ============================================================== */
+
+    private int slotOf(int shot) {
+        return shot % pressTime.length;
+    }
+
+    private boolean isValid(int shot) {
+        return shot >= 0 && shot < numShots && shot >= numShots - pressTime.length;
+    }
+
+    private int collect(int stage) {
+        int n = 0;
+        for(int shot = Math.max(0, numShots - pressTime.length); shot < numShots; shot++) {
+            long v = getStage(shot, stage);
+            if(v != Long.MIN_VALUE) {
+                scratch[n++] = v;
+            }
+        }
+        return n;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2019, Sony Mobile Communications Inc.
+ * Licensed under the LICENSE.
+ */
+package com.sony.open.cameratest;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Locale;
+
+/**
+ * Startup phases of cameras brought up together.
+ *
+ * For every camera the begin and end of opening the device, configuring
+ * the session and receiving the first frame are recorded, relative to
+ * the creation of the timeline. Per phase the summary compares the sum
+ * of the cameras' durations with the wall time the phase took over all
+ * of them: a ratio near 1 means the cameras were handled one after the
+ * other, near the number of cameras fully in parallel. Opening a single
+ * camera gives the baseline to compare against.
+ *
+ * The timeline is complete once every camera got its first frame or
+ * failed. Calls may come from any thread.
+ *
+ * Plain Java without Android dependencies, so it also runs on a desktop JVM.
+ */
+public class StartupTimeline {
+    public static final int OPEN = 0, CONFIGURE = 1, FIRST_FRAME = 2;
+    private static final String[] phaseNames = { "open", "configure", "first frame" };
+
+    private final String   name;
+    private final String[] cameraIds;
+    private final int      numActive;
+    private final long     t0 = System.nanoTime();
+
+    // guarded by this; per camera and phase, 0 if not reached
+    private final long[][]  begin, end;
+    private final boolean[] isFailed;
+    private boolean isComplete = false;
+
+    // numActive cameras were already running when these were started
+    public StartupTimeline(String name, String[] cameraIds, int numActive) {
+        this.name      = name;
+        this.cameraIds = cameraIds.clone();
+        this.numActive = numActive;
+        begin    = new long[cameraIds.length][phaseNames.length];
+        end      = new long[cameraIds.length][phaseNames.length];
+        isFailed = new boolean[cameraIds.length];
+    }
+
+    public synchronized void begin(String cameraId, int phase) {
+        begin[indexOf(cameraId)][phase] = System.nanoTime();
+    }
+
+    // true exactly once, when the last camera is done
+    public synchronized boolean end(String cameraId, int phase, boolean isOk) {
+        int i = indexOf(cameraId);
+        if(end[i][phase] == 0 && begin[i][phase] != 0) {
+            end[i][phase] = System.nanoTime();
+        }
+        if(!isOk) {
+            isFailed[i] = true;
+        }
+        if(isComplete) {
+            return false;
+        }
+        for(int c = 0; c < cameraIds.length; c++) {
+            if(!isFailed[c] && end[c][FIRST_FRAME] == 0) {
+                return false;
+            }
+        }
+        isComplete = true;
+        return true;
+    }
+
+    public synchronized boolean isComplete() {
+        return isComplete;
+    }
+
+    // ms from begin to end, NaN if not reached
+    public synchronized double getMs(String cameraId, int phase) {
+        int i = indexOf(cameraId);
+        return end[i][phase] == 0 ? Double.NaN : (end[i][phase] - begin[i][phase]) / 1000000.0;
+    }
+
+    public synchronized String getSummary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "STARTUP: %d cameras, %d already active; ms since start: begin-end (duration)",
+                cameraIds.length, numActive));
+        for(int c = 0; c < cameraIds.length; c++) {
+            sb.append(String.format(Locale.US, "\n\tcamera %s%s", cameraIds[c], isFailed[c] ? " FAILED" : ""));
+            for(int p = 0; p < phaseNames.length; p++) {
+                if(begin[c][p] == 0) {
+                    continue;
+                }
+                sb.append(String.format(Locale.US, ", %s %.1f-%s", phaseNames[p], toMs(begin[c][p]),
+                        end[c][p] == 0 ? "?" : String.format(Locale.US, "%.1f (%.1f)", toMs(end[c][p]), (end[c][p] - begin[c][p]) / 1000000.0)));
+            }
+        }
+
+        // sum of durations over wall time of a phase: 1 serialized, number of cameras fully parallel
+        for(int p = 0; p < phaseNames.length; p++) {
+            long first = Long.MAX_VALUE, last = 0, sum = 0;
+            int  n = 0;
+            for(int c = 0; c < cameraIds.length; c++) {
+                if(end[c][p] != 0) {
+                    first = Math.min(first, begin[c][p]);
+                    last  = Math.max(last, end[c][p]);
+                    sum  += end[c][p] - begin[c][p];
+                    n++;
+                }
+            }
+            if(n == 0) {
+                continue;
+            }
+            long wall = last - first;
+            sb.append(String.format(Locale.US, "\n\t%s: %d cameras, mean %.1f ms, wall %.1f ms, parallelism %.2f, at most %d at once",
+                    phaseNames[p], n, sum / 1000000.0 / n, wall / 1000000.0, wall > 0 ? (double)sum / wall : 1.0, getMaxConcurrent(p)));
+        }
+        return sb.toString();
+    }
+
+    // one row per camera and phase
+    public synchronized File export(File dir) throws IOException {
+        Calendar now = Calendar.getInstance();
+        String fileName = String.format(Locale.US, "startup_%s_%04d%02d%02d_%02d%02d%02d.csv",
+                name,
+                now.get(Calendar.YEAR), now.get(Calendar.MONTH) + 1, now.get(Calendar.DAY_OF_MONTH),
+                now.get(Calendar.HOUR_OF_DAY), now.get(Calendar.MINUTE), now.get(Calendar.SECOND));
+        File f = new File(dir, fileName);
+
+        try(FileWriter w = new FileWriter(f)) {
+            w.write("camera,cameras,already_active,phase,begin_ms,end_ms,duration_ms,failed\n");
+            for(int c = 0; c < cameraIds.length; c++) {
+                for(int p = 0; p < phaseNames.length; p++) {
+                    if(begin[c][p] == 0) {
+                        continue;
+                    }
+                    w.write(String.format(Locale.US, "%s,%d,%d,%s,%.3f,%.3f,%.3f,%d\n",
+                            cameraIds[c], cameraIds.length, numActive, phaseNames[p], toMs(begin[c][p]),
+                            end[c][p] == 0 ? Double.NaN : toMs(end[c][p]),
+                            end[c][p] == 0 ? Double.NaN : (end[c][p] - begin[c][p]) / 1000000.0, isFailed[c] ? 1 : 0));
+                }
+            }
+        }
+        return f;
+    }
+
+    /* ============================================================== */
+
+    private int indexOf(String cameraId) {
+        int i = Arrays.asList(cameraIds).indexOf(cameraId);
+        if(i < 0) {
+            throw new IllegalArgumentException("camera " + cameraId + " not in timeline");
+        }
+        return i;
+    }
+
+    private double toMs(long nanos) {
+        return (nanos - t0) / 1000000.0;
+    }
+
+    // most cameras inside the phase at the same time
+    private int getMaxConcurrent(int phase) {
+        int max = 0;
+        for(int c = 0; c < cameraIds.length; c++) {
+            if(end[c][phase] == 0) {
+                continue;
+            }
+            // count the phases running when this one began
+            int n = 0;
+            for(int o = 0; o < cameraIds.length; o++) {
+                if(end[o][phase] != 0 && begin[o][phase] <= begin[c][phase] && end[o][phase] > begin[c][phase]) {
+                    n++;
+                }
+            }
+            max = Math.max(max, n);
+        }
+        return max;
+    }
+}
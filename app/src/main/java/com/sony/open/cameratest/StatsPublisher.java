@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2019, Sony Mobile Communications Inc.
+ * Licensed under the LICENSE.
+ */
+package com.sony.open.cameratest;
+
+import android.view.Choreographer;
+import android.widget.TextView;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shows live numbers in a TextView at most once per display frame.
+ *
+ * Camera callbacks update their statistics and call invalidate() as
+ * often as they like. A single frame callback is scheduled for the next
+ * vsync, where the renderer takes a snapshot of the statistics into a
+ * reused StringBuilder on the UI thread. However high the camera frame
+ * rate, the UI does one text update per display frame at most.
+ */
+public class StatsPublisher {
+    public interface Renderer {
+        // called on the UI thread; append the current numbers to the empty text
+        void render(StringBuilder text);
+    }
+
+    private final TextView      view;
+    private final Renderer      renderer;
+    private final Choreographer choreographer;
+
+    private final AtomicBoolean isScheduled = new AtomicBoolean();
+    private final AtomicLong    numUpdates  = new AtomicLong();
+    private volatile boolean isStopped = false;
+    private volatile long    numPublished = 0;
+
+    // UI thread only
+    private final StringBuilder text = new StringBuilder();
+
+    // must be created on the UI thread
+    public StatsPublisher(TextView view, Renderer renderer) {
+        this.view     = view;
+        this.renderer = renderer;
+        choreographer = Choreographer.getInstance();
+    }
+
+    // statistics changed, may be called from any thread at any rate
+    public void invalidate() {
+        numUpdates.incrementAndGet();
+        if(isStopped || !isScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        choreographer.postFrameCallback(frameCallback);
+    }
+
+    // no more updates, UI thread only
+    public void stop() {
+        isStopped = true;
+        choreographer.removeFrameCallback(frameCallback);
+        isScheduled.set(false);
+    }
+
+    public String getSummary() {
+        return String.format(Locale.US, "%d updates, %d published", numUpdates.get(), numPublished);
+    }
+
+    /* ============================================================== */
+
+    private final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            // updates from now on need another frame
+            isScheduled.set(false);
+            if(isStopped) {
+                return;
+            }
+
+            text.setLength(0);
+            renderer.render(text);
+            view.setText(text);
+            numPublished++;
+        }
+    };
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2019, Sony Mobile Communications Inc.
+ * Licensed under the LICENSE.
+ */
+package com.sony.open.cameratest;
+
+import java.util.Locale;
+
+/**
+ * Measures a burst of still captures taken while preview keeps running.
+ *
+ * Reports sustained shots per second from the first submission until the
+ * last picture is saved, the shot-to-shot interval from sensor timestamps
+ * and how much the preview frame interval suffers during the burst
+ * compared to the time before it.
+ *
+ * Methods may be called from any thread.
+ */
+public class StillBurstBenchmark {
+    private final long[] sensorTs;
+    private int     numShots = 0, numStarted = 0, numDone = 0, numFailed = 0;
+    private boolean isActive = false;
+    private long    startTime = 0, endTime = 0;
+
+    // preview frame intervals since the last burst and during the burst
+    private long   lastPreview = 0;
+    private int    baseN = 0, burstN = 0;
+    private double baseSum = 0, burstSum = 0;
+    private long   baseMax = 0, burstMax = 0;
+    private double beforeAvg = 0, beforeMax = 0;
+
+    public StillBurstBenchmark(int maxShots) {
+        sensorTs = new long[maxShots];
+    }
+
+    // burst of numShots is about to be submitted
+    public synchronized void start(int numShots) {
+        this.numShots = Math.min(numShots, sensorTs.length);
+        numStarted = 0;
+        numDone    = 0;
+        numFailed  = 0;
+        burstN     = 0;
+        burstSum   = 0;
+        burstMax   = 0;
+
+        // preview since the last burst is the reference
+        beforeAvg = baseN > 0 ? baseSum / baseN : 0;
+        beforeMax = baseMax;
+        baseN     = 0;
+        baseSum   = 0;
+        baseMax   = 0;
+
+        isActive  = true;
+        startTime = System.nanoTime();
+    }
+
+    // drop an unfinished burst, e.g. when the session is closed
+    public synchronized void cancel() {
+        isActive    = false;
+        lastPreview = 0;
+    }
+
+    public synchronized boolean isActive() {
+        return isActive;
+    }
+
+    public synchronized int getNumShots() {
+        return numShots;
+    }
+
+    // exposure of a shot started, in submission order
+    public synchronized void onShotStarted(long timestamp) {
+        if(isActive && numStarted < numShots) {
+            sensorTs[numStarted++] = timestamp;
+        }
+    }
+
+    // shot saved or failed, returns true once the burst is done
+    public synchronized boolean onShotDone(boolean failed) {
+        if(!isActive) {
+            return false;
+        }
+        numDone++;
+        if(failed) {
+            numFailed++;
+        }
+        if(numDone < numShots) {
+            return false;
+        }
+
+        endTime  = System.nanoTime();
+        isActive = false;
+        return true;
+    }
+
+    // sensor timestamp of the frame, callback delivery would add its own jitter
+    public synchronized void onPreviewFrame(long timestamp) {
+        if(lastPreview != 0) {
+            long diff = timestamp - lastPreview;
+            if(isActive) {
+                burstN++;
+                burstSum += diff;
+                burstMax  = Math.max(burstMax, diff);
+            } else {
+                baseN++;
+                baseSum += diff;
+                baseMax  = Math.max(baseMax, diff);
+            }
+        }
+        lastPreview = timestamp;
+    }
+
+    /* ============================================================== */
+
+    public synchronized String getSummary() {
+        double seconds = (endTime - startTime) / 1000000000.0;
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "BURST: %d shots (%d failed) in %.2f s = %.2f shots/s",
+                numShots, numFailed, seconds, seconds > 0 ? (numShots - numFailed) / seconds : 0));
+
+        if(numStarted > 1) {
+            long min = Long.MAX_VALUE, max = 0;
+            for(int i = 1; i < numStarted; i++) {
+                long diff = sensorTs[i] - sensorTs[i - 1];
+                min = Math.min(min, diff);
+                max = Math.max(max, diff);
+            }
+            sb.append(String.format(Locale.US, "\n\tshot to shot %.2f ms avg (%.2f - %.2f ms)",
+                    (sensorTs[numStarted - 1] - sensorTs[0]) / (numStarted - 1) / 1000000.0,
+                    min / 1000000.0, max / 1000000.0));
+        }
+
+        if(burstN > 0 && beforeAvg > 0) {
+            sb.append(String.format(Locale.US, "\n\tpreview %.2f ms avg, %.2f ms max (before: %.2f ms avg, %.2f ms max)",
+                    burstSum / burstN / 1000000.0, burstMax / 1000000.0,
+                    beforeAvg / 1000000.0, beforeMax / 1000000.0));
+        }
+        return sb.toString();
+    }
+}
@@ -11,14 +11,13 @@ import android.content.pm.PackageManager;
 import android.graphics.ImageFormat;
 import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraCaptureSession;
-import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
-import android.hardware.camera2.params.StreamConfigurationMap;
+import android.hardware.camera2.params.InputConfiguration;
 import android.media.ImageReader;
 import android.os.Bundle;
 import androidx.annotation.NonNull;
@@ -30,6 +29,7 @@ import android.view.TextureView;
 import android.view.View;
 import android.widget.Toast;
 
+import java.util.List;
 import java.util.Locale;
 import java.util.Vector;
 
@@ -48,6 +48,8 @@ public class TestModeActivity extends Activity {
     private Vector<Surface> surfaceList = new Vector<>();
     private TextureView tvPreview, tvCapture;
     private ImageReader imgReader;
+    private CameraThread camThread;
+    private CameraSessionController controller;
 
     private int capWidth, capHeight;
     private long last, now, snapReq;
@@ -70,9 +72,8 @@ public class TestModeActivity extends Activity {
 
         try {
             camManager = (CameraManager) getSystemService(Context.CAMERA_SERVICE);
-            CameraCharacteristics cc = camManager.getCameraCharacteristics(camId);
-            StreamConfigurationMap map = cc.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-            Size[] outputSizes = map.getOutputSizes(ImageFormat.JPEG);
+            controller = new CameraSessionController(new CameraHelper(camManager), sessionListener);
+            Size[] outputSizes = CameraInfoCache.get(this).getInfo(camId).getOutputSizes(ImageFormat.JPEG);
 
             int mw = 0, mh = 0;
             for(Size s : outputSizes) {
@@ -111,7 +112,8 @@ public class TestModeActivity extends Activity {
 
             @Override
             public void onSurfaceTextureUpdated(SurfaceTexture surfaceTexture) {
-
+                /* first preview frame shown, snapshots only come when the user asks */
+                controller.onImageAvailable();
             }
         });
 
@@ -154,90 +156,86 @@ public class TestModeActivity extends Activity {
         super.onPause();
         ready = false;
         resumed = false;
-        if(camDevice != null) {
-            camDevice.close();
-        }
+        controller.close();
     }
 
     void startCamera() {
         if(!resumed || !surface || !surface2)
             return;
+        if(controller.getState() != CameraSessionController.State.CLOSED)
+            return;
 
-        SurfaceTexture stPreview = tvPreview.getSurfaceTexture();
-        stPreview.setDefaultBufferSize(1280, 720);
-
-        surfaceList.clear();
-        surfaceList.add(new Surface(stPreview));
-
-        if(captureToTextureView) {
-            /* capture into TextureView */
-            SurfaceTexture stCapture = tvCapture.getSurfaceTexture();
-            stCapture.setDefaultBufferSize(capWidth, capHeight);
-            surfaceList.add(new Surface(stCapture));
-            MyLog("snapshot into TextureView at " + capWidth + "x" + capHeight);
-        } else {
-            /* capture into ImageReader */
-            imgReader = ImageReader.newInstance(capWidth, capHeight, ImageFormat.JPEG, 2);
-            imgReader.setOnImageAvailableListener(snapshotImageCallback, null);
-            surfaceList.add(imgReader.getSurface());
-            MyLog("snapshot into ImageReader at " + capWidth + "x" + capHeight);
+        controller.open(camId);
+    }
+
+    /* the controller calls back on the UI thread, camera callbacks run on its camera thread */
+    CameraSessionController.Listener sessionListener = new CameraSessionController.Listener() {
+        @Override
+        public List<Surface> onCreateOutputs(@NonNull CameraDevice device, @NonNull CameraThread thread) {
+            camDevice = device;
+            camThread = thread;
+
+            SurfaceTexture stPreview = tvPreview.getSurfaceTexture();
+            stPreview.setDefaultBufferSize(1280, 720);
+
+            surfaceList.clear();
+            surfaceList.add(new Surface(stPreview));
+
+            if(captureToTextureView) {
+                /* capture into TextureView */
+                SurfaceTexture stCapture = tvCapture.getSurfaceTexture();
+                stCapture.setDefaultBufferSize(capWidth, capHeight);
+                surfaceList.add(new Surface(stCapture));
+                MyLog("snapshot into TextureView at " + capWidth + "x" + capHeight);
+            } else {
+                /* capture into ImageReader */
+                imgReader = ImageReader.newInstance(capWidth, capHeight, ImageFormat.JPEG, 2);
+                imgReader.setOnImageAvailableListener(snapshotImageCallback, thread.getImageHandler());
+                surfaceList.add(imgReader.getSurface());
+                MyLog("snapshot into ImageReader at " + capWidth + "x" + capHeight);
+            }
+            return surfaceList;
         }
 
-        try {
-            camManager.openCamera(camId, new CameraDevice.StateCallback() {
-                @Override
-                public void onOpened(@NonNull CameraDevice cameraDevice) {
-                    camDevice = cameraDevice;
-                    try {
-                        camDevice.createCaptureSession(surfaceList, new CameraCaptureSession.StateCallback() {
-                            @Override
-                            public void onConfigured(@NonNull CameraCaptureSession cameraCaptureSession) {
-                                camSession = cameraCaptureSession;
-
-                                try {
-                                    CaptureRequest.Builder b = camDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
-                                    b.addTarget(surfaceList.get(0));
-                                    camSession.setRepeatingRequest(b.build(), previewCallback, null);
-                                    now = System.nanoTime();
-                                    ready = true;
-                                    if(logAllFrames) {
-                                        showFrames = 1;
-                                    }
-                                } catch(Exception e) {
-                                    MyLog("create preview failed: " + e.getMessage());
-                                }
-                            }
-
-                            @Override
-                            public void onConfigureFailed(@NonNull CameraCaptureSession cameraCaptureSession) {
-                                MyLog("configure failed");
-                            }
-                        }, null);
-                    } catch (Exception e) {
-                        MyLog("session create failed: " + e.getMessage());
-                        camDevice = null;
-                        finish();
-                    }
-                }
+        @Override
+        public InputConfiguration onCreateInputConfiguration(@NonNull CameraDevice device) {
+            return null;
+        }
 
-                @Override
-                public void onDisconnected(@NonNull CameraDevice cameraDevice) {
-                    MyLog("camera disconnected");
-                    camDevice = null;
-                    finish();
+        @Override
+        public void onSessionReady(@NonNull CameraDevice device, @NonNull CameraCaptureSession session, @NonNull CameraThread thread) {
+            camSession = session;
+            try {
+                CaptureRequest.Builder b = camDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+                b.addTarget(surfaceList.get(0));
+                camSession.setRepeatingRequest(b.build(), previewCallback, thread.getCameraHandler());
+                now = System.nanoTime();
+                ready = true;
+                if(logAllFrames) {
+                    showFrames = 1;
                 }
+            } catch(Exception e) {
+                MyLog("create preview failed: " + e.getMessage());
+            }
+        }
 
-                @Override
-                public void onError(@NonNull CameraDevice cameraDevice, int i) {
-                    MyLog("camera failed: " + i);
-                    camDevice = null;
-                    finish();
-                }
-            }, null);
-        } catch(Exception e) {
-            MyLog("open failed: " + e.getMessage());
+        @Override
+        public void onSessionClosed(String error) {
+            ready = false;
+            camDevice  = null;
+            camSession = null;
+            camThread  = null;
+            if(error != null) {
+                MyLog(error);
+                finish();
+            }
         }
-    }
+
+        @Override
+        public void onSessionTimings(@NonNull SessionTimings timings) {
+            MyLog("session: " + timings);
+        }
+    };
 
     public void btnTestModeClick(View v) {
         if(!ready)
@@ -250,13 +248,19 @@ public class TestModeActivity extends Activity {
             CaptureRequest.Builder b = camDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
             b.addTarget(surfaceList.get(0));
             b.addTarget(surfaceList.get(1));
-            camSession.capture(b.build(), snapshotCallback, null);
+            camSession.capture(b.build(), snapshotCallback, camThread.getCameraHandler());
         } catch(Exception e) {
             MyLog("take snapshot failed: " + e.getMessage());
         }
     }
 
     CameraCaptureSession.CaptureCallback previewCallback = new CameraCaptureSession.CaptureCallback() {
+        @Override
+        public void onCaptureStarted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, long timestamp, long frameNumber) {
+            super.onCaptureStarted(session, request, timestamp, frameNumber);
+            controller.onCaptureStarted();
+        }
+
         @Override
         public void onCaptureCompleted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull TotalCaptureResult result) {
             super.onCaptureCompleted(session, request, result);
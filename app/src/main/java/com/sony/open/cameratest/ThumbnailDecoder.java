@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2019, Sony Mobile Communications Inc.
+ * Licensed under the LICENSE.
+ */
+package com.sony.open.cameratest;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+import android.widget.ImageView;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Decodes JPEG thumbnails on a worker thread.
+ *
+ * The JPEG is subsampled to the size of the target view while decoding.
+ * Bitmaps replaced in the target view are reused for later decodes. Only
+ * the finished bitmap is posted to the UI thread.
+ */
+public class ThumbnailDecoder {
+    private static final int maxPoolSize = 3;
+    private static final int defaultSize = 512;
+
+    private final HandlerThread thread;
+    private final Handler       handler;
+    private final Handler       mainHandler = new Handler(Looper.getMainLooper());
+
+    // bitmaps created by this decoder and those free for reuse
+    private final Map<Bitmap, Boolean> owned = new IdentityHashMap<>();
+    private final List<Bitmap>         pool  = new ArrayList<>();
+
+    public ThumbnailDecoder(String name) {
+        thread = new HandlerThread(name);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    // decode the first length bytes of jpeg into target; jpeg must not be modified afterwards
+    public void decode(final byte[] jpeg, final int length, final ImageView target) {
+        // view size must be read on the UI thread
+        final int width  = target.getWidth()  > 0 ? target.getWidth()  : defaultSize;
+        final int height = target.getHeight() > 0 ? target.getHeight() : defaultSize;
+
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                long then = System.nanoTime();
+                final Bitmap bmp = decodeScaled(jpeg, length, width, height);
+                if(bmp == null) {
+                    Log.w("CameraTest", "thumbnail: failed to decode " + length + " bytes");
+                    return;
+                }
+                Log.d("CameraTest", String.format(Locale.US, "thumbnail: %dx%d in %.2f ms",
+                        bmp.getWidth(), bmp.getHeight(), (System.nanoTime() - then) / 1000000.0));
+
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        Drawable old = target.getDrawable();
+                        target.setImageBitmap(bmp);
+                        if(old instanceof BitmapDrawable) {
+                            recycle(((BitmapDrawable) old).getBitmap());
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    // stop worker and drop pooled bitmaps
+    public void release() {
+        thread.quitSafely();
+        synchronized(pool) {
+            pool.clear();
+            owned.clear();
+        }
+    }
+
+    /* ============================================================== */
+
+    private Bitmap decodeScaled(byte[] jpeg, int length, int width, int height) {
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(jpeg, 0, length, opts);
+        if(opts.outWidth <= 0 || opts.outHeight <= 0) {
+            return null;
+        }
+
+        // largest power of two that still covers the view
+        int sample = 1;
+        while(opts.outWidth / (sample * 2) >= width && opts.outHeight / (sample * 2) >= height) {
+            sample *= 2;
+        }
+
+        int outWidth  = (opts.outWidth  + sample - 1) / sample;
+        int outHeight = (opts.outHeight + sample - 1) / sample;
+
+        opts.inJustDecodeBounds = false;
+        opts.inSampleSize = sample;
+        opts.inMutable    = true;
+        opts.inBitmap     = takeFromPool(outWidth * outHeight * 4);
+
+        Bitmap bmp;
+        try {
+            bmp = BitmapFactory.decodeByteArray(jpeg, 0, length, opts);
+        } catch(IllegalArgumentException e) {
+            // pooled bitmap not usable, decode into a new one
+            opts.inBitmap = null;
+            bmp = BitmapFactory.decodeByteArray(jpeg, 0, length, opts);
+        }
+
+        if(bmp != null) {
+            synchronized(pool) {
+                owned.put(bmp, Boolean.TRUE);
+            }
+        }
+        return bmp;
+    }
+
+    private Bitmap takeFromPool(int byteCount) {
+        synchronized(pool) {
+            for(int i = 0; i < pool.size(); i++) {
+                if(pool.get(i).getAllocationByteCount() >= byteCount) {
+                    return pool.remove(i);
+                }
+            }
+        }
+        return null;
+    }
+
+    private void recycle(Bitmap bmp) {
+        synchronized(pool) {
+            if(!owned.containsKey(bmp) || pool.contains(bmp)) {
+                return;
+            }
+            if(pool.size() < maxPoolSize) {
+                pool.add(bmp);
+            } else {
+                owned.remove(bmp);
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2019, Sony Mobile Communications Inc.
+ * Licensed under the LICENSE.
+ */
+package com.sony.open.cameratest;
+
+import android.graphics.Bitmap;
+import android.graphics.ImageFormat;
+import android.media.Image;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Converts YUV_420_888 images to ARGB.
+ *
+ * Any row and pixel stride of the planes is supported, so planar, semi-
+ * planar and padded layouts all work. Rows are split into a fixed number
+ * of chunks which are converted in parallel on a fork-join pool. Plane
+ * copies, the ARGB buffer and the tasks are kept between frames, so
+ * converting frames of the same size does not allocate.
+ *
+ * Uses full range BT.601 (JFIF), which is what YUV_420_888 from the
+ * camera is defined as. Not thread-safe; use one converter per thread.
+ */
+public class YuvConverter {
+    private final ForkJoinPool pool;
+    private final Chunk[]      chunks;
+    private final RecursiveAction root;
+
+    // current frame
+    private int width, height;
+    private byte[] y = new byte[0], u = new byte[0], v = new byte[0];
+    private int yRowStride, yPixelStride, uvRowStride, uvPixelStride;
+    private int[] argb = new int[0];
+
+    public YuvConverter(int parallelism) {
+        pool   = new ForkJoinPool(parallelism);
+        chunks = new Chunk[parallelism * 4];
+        for(int i = 0; i < chunks.length; i++) {
+            chunks[i] = new Chunk(i);
+        }
+        root = new RecursiveAction() {
+            @Override
+            protected void compute() {
+                ForkJoinTask.invokeAll(chunks);
+            }
+        };
+    }
+
+    public YuvConverter() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    // convert image to ARGB; the returned array is reused by the next call
+    public int[] convert(Image image) {
+        if(image.getFormat() != ImageFormat.YUV_420_888) {
+            throw new IllegalArgumentException("format " + image.getFormat() + " is not YUV_420_888");
+        }
+
+        Image.Plane[] planes = image.getPlanes();
+        return convert(planes[0].getBuffer(), planes[1].getBuffer(), planes[2].getBuffer(),
+                image.getWidth(), image.getHeight(),
+                planes[0].getRowStride(), planes[0].getPixelStride(),
+                planes[1].getRowStride(), planes[1].getPixelStride());
+    }
+
+    // convert planes to ARGB, U and V share their strides; the returned array is reused by the next call
+    public int[] convert(ByteBuffer yPlane, ByteBuffer uPlane, ByteBuffer vPlane, int width, int height,
+                         int yRowStride, int yPixelStride, int uvRowStride, int uvPixelStride) {
+        setSize(width, height);
+        y = copy(yPlane, y);
+        u = copy(uPlane, u);
+        v = copy(vPlane, v);
+        this.yRowStride    = yRowStride;
+        this.yPixelStride  = yPixelStride;
+        this.uvRowStride   = uvRowStride;
+        this.uvPixelStride = uvPixelStride;
+
+        root.reinitialize();
+        for(Chunk c : chunks) {
+            c.reinitialize();
+        }
+        pool.invoke(root);
+        return argb;
+    }
+
+    // convert image into bmp, returns bmp if it has the image size and a new bitmap otherwise
+    public Bitmap convert(Image image, Bitmap bmp) {
+        convert(image);
+        if(bmp == null || bmp.getWidth() != width || bmp.getHeight() != height || !bmp.isMutable()) {
+            bmp = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        bmp.setPixels(argb, 0, width, 0, 0, width, height);
+        return bmp;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public void release() {
+        pool.shutdown();
+    }
+
+    /* ============================================================== */
+
+    private void setSize(int w, int h) {
+        width  = w;
+        height = h;
+        if(argb.length < w * h) {
+            argb = new int[w * h];
+        }
+    }
+
+    // copy whole plane, reusing dst if large enough
+    private static byte[] copy(ByteBuffer src, byte[] dst) {
+        src.rewind();
+        int size = src.remaining();
+        if(dst.length < size) {
+            dst = new byte[size];
+        }
+        src.get(dst, 0, size);
+        return dst;
+    }
+
+    private void convertRows(int first, int last) {
+        for(int row = first; row < last; row++) {
+            int yOffset  = row * yRowStride;
+            int uvOffset = (row >> 1) * uvRowStride;
+            int out      = row * width;
+
+            for(int col = 0; col < width; col++) {
+                int yy = y[yOffset + col * yPixelStride] & 0xff;
+                int uvIndex = uvOffset + (col >> 1) * uvPixelStride;
+                int uu = (u[uvIndex] & 0xff) - 128;
+                int vv = (v[uvIndex] & 0xff) - 128;
+
+                // 16.16 fixed point of 1.402, 0.344136, 0.714136 and 1.772
+                int r = yy + ((91881 * vv) >> 16);
+                int g = yy - ((22554 * uu + 46802 * vv) >> 16);
+                int b = yy + ((116130 * uu) >> 16);
+                r = r < 0 ? 0 : (r > 255 ? 255 : r);
+                g = g < 0 ? 0 : (g > 255 ? 255 : g);
+                b = b < 0 ? 0 : (b > 255 ? 255 : b);
+
+                argb[out + col] = 0xff000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+    }
+
+    private class Chunk extends RecursiveAction {
+        private final int index;
+
+        Chunk(int index) {
+            this.index = index;
+        }
+
+        @Override
+        protected void compute() {
+            int first = height *  index      / chunks.length;
+            int last  = height * (index + 1) / chunks.length;
+            convertRows(first, last);
+        }
+    }
+}
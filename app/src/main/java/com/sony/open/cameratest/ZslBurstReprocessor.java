@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2019, Sony Mobile Communications Inc.
+ * Licensed under the LICENSE.
+ */
+package com.sony.open.cameratest;
+
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CaptureFailure;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.TotalCaptureResult;
+import android.media.Image;
+import android.media.ImageWriter;
+import android.os.Handler;
+import android.util.Log;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+
+import java.util.Locale;
+
+/**
+ * Reprocesses a burst of frames out of a ZSL history.
+ *
+ * Frames are queued into the reprocess ImageWriter only while it has free
+ * input slots; a new frame is queued each time the camera releases an input
+ * image. Per-frame latency and the sustained reprocess rate are reported
+ * when the burst is done.
+ *
+ * All methods must be called on the thread of the given handler, which also
+ * receives the capture callbacks.
+ */
+public class ZslBurstReprocessor {
+    public interface Listener {
+        void onBurstDone(ZslBurstReprocessor burst);
+    }
+
+    private final CameraDevice         device;
+    private final CameraCaptureSession session;
+    private final ImageWriter          writer;
+    private final Surface              target;
+    private final Handler              handler;
+    private final Listener             listener;
+
+    private ZslRingBuffer history;
+
+    // per-frame state, in submission order
+    private int numFrames = 0;
+    private Image[]              images = new Image[0];
+    private TotalCaptureResult[] metas  = new TotalCaptureResult[0];
+    private long[] inputTs    = new long[0];
+    private long[] submitTime = new long[0], resultTime = new long[0], jpegTime = new long[0];
+    private boolean[] isDone  = new boolean[0];   // JPEG arrived, failed or lost
+
+    private int numSubmitted = 0, numInFlight = 0;
+    private int numJpegs = 0, numFailed = 0;
+    private boolean isActive = false;
+
+    public ZslBurstReprocessor(CameraDevice device, CameraCaptureSession session, ImageWriter writer,
+                               Surface target, Handler handler, Listener listener) {
+        this.device   = device;
+        this.session  = session;
+        this.writer   = writer;
+        this.target   = target;
+        this.handler  = handler;
+        this.listener = listener;
+    }
+
+    /* ============================================================== */
+
+    // take up to numFrames of the newest complete frames and start reprocessing
+    public boolean start(ZslRingBuffer history, int numFrames) {
+        if(isActive) {
+            return false;
+        }
+        this.history = history;
+
+        if(images.length < numFrames) {
+            images     = new Image[numFrames];
+            metas      = new TotalCaptureResult[numFrames];
+            inputTs    = new long[numFrames];
+            submitTime = new long[numFrames];
+            resultTime = new long[numFrames];
+            jpegTime   = new long[numFrames];
+            isDone     = new boolean[numFrames];
+        }
+
+        // count candidates first, so frames are submitted oldest first
+        int n = 0;
+        int first = history.size();
+        while(first > 0 && n < numFrames) {
+            first--;
+            if(history.isComplete(first)) {
+                n++;
+            }
+        }
+        if(n == 0) {
+            return false;
+        }
+
+        this.numFrames = 0;
+        for(int i = first; i < history.size() && this.numFrames < n; i++) {
+            if(!history.isComplete(i)) {
+                continue;
+            }
+            int k = this.numFrames++;
+            metas[k]      = history.getResult(i);
+            inputTs[k]    = history.getTimestamp(i);
+            images[k]     = history.takeImage(i);
+            submitTime[k] = 0;
+            resultTime[k] = 0;
+            jpegTime[k]   = 0;
+            isDone[k]     = false;
+        }
+
+        numSubmitted = 0;
+        numInFlight  = 0;
+        numJpegs     = 0;
+        numFailed    = 0;
+        isActive     = true;
+
+        Log.d("SRA", String.format(Locale.US, "burst: reprocessing %d frames, %d input slots",
+                this.numFrames, writer.getMaxImages()));
+        submitMore();
+        return true;
+    }
+
+    // abort the burst and close all images not yet queued
+    public void abort() {
+        for(int i = numSubmitted; i < numFrames; i++) {
+            if(images[i] != null) {
+                images[i].close();
+                images[i] = null;
+                history.releaseTakenImage();
+            }
+        }
+        isActive = false;
+    }
+
+    public boolean isActive() {
+        return isActive;
+    }
+
+    // whether a reprocessed image with this timestamp belongs to the burst, also after it is done
+    public boolean isBurstOutput(long timestamp) {
+        return indexOf(timestamp) >= 0;
+    }
+
+    /* ============================================================== */
+
+    // ImageWriter released an input image, so another one can be queued
+    public void onInputReleased() {
+        if(!isActive) {
+            return;
+        }
+        if(numInFlight > 0) {
+            numInFlight--;
+        }
+        submitMore();
+    }
+
+    // a reprocessed JPEG of the burst arrived, see isBurstOutput; the image is closed here
+    public void onJpegAvailable(Image image) {
+        long now   = System.nanoTime();
+        int  index = indexOf(image.getTimestamp());
+        image.close();
+
+        if(!isActive || index < 0 || isDone[index]) {
+            // late output of a failed frame
+            return;
+        }
+        jpegTime[index] = now;
+        isDone[index]   = true;
+        numJpegs++;
+        checkDone();
+    }
+
+    // output keeps the input timestamp, so it identifies the request
+    private int indexOf(long timestamp) {
+        for(int i = 0; i < numSubmitted; i++) {
+            if(inputTs[i] == timestamp && jpegTime[i] == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void submitMore() {
+        int maxInFlight = writer.getMaxImages();
+
+        while(isActive && numSubmitted < numFrames && numInFlight < maxInFlight) {
+            int i = numSubmitted++;
+            try {
+                CaptureRequest.Builder b = device.createReprocessCaptureRequest(metas[i]);
+                b.addTarget(target);
+                b.setTag(i);
+
+                submitTime[i] = System.nanoTime();
+                writer.queueInputImage(images[i]);
+                images[i] = null;
+                history.releaseTakenImage();
+                numInFlight++;
+
+                session.capture(b.build(), captureCallback, handler);
+            } catch(Exception e) {
+                Log.w("SRA", "burst: failed to submit frame " + i + ": " + e.getMessage());
+                if(images[i] != null) {
+                    images[i].close();
+                    images[i] = null;
+                    history.releaseTakenImage();
+                }
+                isDone[i] = true;
+                numFailed++;
+            }
+        }
+        checkDone();
+    }
+
+    private void checkDone() {
+        if(isActive && numSubmitted == numFrames && numJpegs + numFailed >= numFrames) {
+            isActive = false;
+            Log.d("SRA", getSummary());
+            if(listener != null) {
+                listener.onBurstDone(this);
+            }
+        }
+    }
+
+    private CameraCaptureSession.CaptureCallback captureCallback = new CameraCaptureSession.CaptureCallback() {
+        @Override
+        public void onCaptureCompleted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull TotalCaptureResult result) {
+            super.onCaptureCompleted(session, request, result);
+            Object tag = request.getTag();
+            if(tag instanceof Integer && (Integer)tag < numFrames) {
+                resultTime[(Integer)tag] = System.nanoTime();
+            }
+        }
+
+        @Override
+        public void onCaptureFailed(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull CaptureFailure failure) {
+            super.onCaptureFailed(session, request, failure);
+            Log.w("SRA", "burst: reprocess failed: " + failure.getReason());
+            onFrameFailed(request);
+        }
+
+        @Override
+        public void onCaptureBufferLost(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull Surface target, long frameNumber) {
+            super.onCaptureBufferLost(session, request, target, frameNumber);
+            Log.w("SRA", "burst: reprocess lost buffer of frame " + frameNumber);
+            onFrameFailed(request);
+        }
+    };
+
+    // failed or lost frames count once, even if a JPEG still arrives
+    private void onFrameFailed(CaptureRequest request) {
+        Object tag = request.getTag();
+        if(tag instanceof Integer && (Integer)tag < numFrames) {
+            int i = (Integer)tag;
+            if(isDone[i]) {
+                return;
+            }
+            isDone[i] = true;
+        }
+        numFailed++;
+        checkDone();
+    }
+
+    /* ============================================================== */
+
+    public String getSummary() {
+        long first = Long.MAX_VALUE, last = 0;
+        double resSum = 0, resMax = 0, jpegSum = 0, jpegMax = 0;
+        int numRes = 0, numJpeg = 0;
+
+        for(int i = 0; i < numSubmitted; i++) {
+            if(submitTime[i] == 0) {
+                continue;
+            }
+            first = Math.min(first, submitTime[i]);
+
+            if(resultTime[i] != 0) {
+                double ms = (resultTime[i] - submitTime[i]) / 1000000.0;
+                resSum += ms;
+                resMax  = Math.max(resMax, ms);
+                numRes++;
+            }
+            if(jpegTime[i] != 0) {
+                double ms = (jpegTime[i] - submitTime[i]) / 1000000.0;
+                jpegSum += ms;
+                jpegMax  = Math.max(jpegMax, ms);
+                last = Math.max(last, jpegTime[i]);
+                numJpeg++;
+            }
+        }
+
+        double seconds = (numJpeg > 0 && last > first) ? (last - first) / 1000000000.0 : 0;
+        return String.format(Locale.US,
+                "burst: %d/%d frames in %.1f ms, %.2f fps; result %.2f ms (max %.2f), jpeg %.2f ms (max %.2f), %d failed",
+                numJpegs, numFrames, seconds * 1000, seconds > 0 ? numJpeg / seconds : 0,
+                numRes  > 0 ? resSum  / numRes  : 0, resMax,
+                numJpeg > 0 ? jpegSum / numJpeg : 0, jpegMax,
+                numFailed);
+    }
+}
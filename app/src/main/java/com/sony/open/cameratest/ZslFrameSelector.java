@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2019, Sony Mobile Communications Inc.
+ * Licensed under the LICENSE.
+ */
+package com.sony.open.cameratest;
+
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+
+import java.util.Locale;
+
+/**
+ * Picks the frame to reprocess out of a ZSL history.
+ *
+ * Each complete entry of the history is scored once by the active policy
+ * using only its capture result, so a selection is a single O(depth) pass
+ * without allocation. Details of the picked frame are written into a
+ * caller-owned Report.
+ */
+public class ZslFrameSelector {
+    public interface Policy {
+        String getName();
+
+        // higher is better; Double.NEGATIVE_INFINITY rejects the frame
+        double score(TotalCaptureResult result, long timestamp, long pressTimestamp);
+    }
+
+    /* ============================================================== */
+
+    // previous behaviour: the oldest frame in the history
+    public static final Policy OLDEST = new Policy() {
+        @Override
+        public String getName() {
+            return "Oldest";
+        }
+
+        @Override
+        public double score(TotalCaptureResult result, long timestamp, long pressTimestamp) {
+            return -timestamp;
+        }
+    };
+
+    // lowest shutter lag: the frame closest to the button press
+    public static final Policy CLOSEST = new Policy() {
+        @Override
+        public String getName() {
+            return "Closest to shutter";
+        }
+
+        @Override
+        public double score(TotalCaptureResult result, long timestamp, long pressTimestamp) {
+            return -Math.abs(pressTimestamp - timestamp);
+        }
+    };
+
+    // closest frame with converged AE/AF and a stationary lens
+    public static final Policy CONVERGED = new Policy() {
+        @Override
+        public String getName() {
+            return "Converged";
+        }
+
+        @Override
+        public double score(TotalCaptureResult result, long timestamp, long pressTimestamp) {
+            if(!isAeConverged(result) || !isAfConverged(result) || !isLensStationary(result)) {
+                return Double.NEGATIVE_INFINITY;
+            }
+            return -Math.abs(pressTimestamp - timestamp);
+        }
+    };
+
+    // trades shutter lag against quality, all penalties in milliseconds
+    public static class Weighted implements Policy {
+        private final double aePenalty, afPenalty, lensPenalty, exposureWeight;
+
+        public Weighted(double aePenalty, double afPenalty, double lensPenalty, double exposureWeight) {
+            this.aePenalty      = aePenalty;
+            this.afPenalty      = afPenalty;
+            this.lensPenalty    = lensPenalty;
+            this.exposureWeight = exposureWeight;
+        }
+
+        @Override
+        public String getName() {
+            return "Weighted";
+        }
+
+        @Override
+        public double score(TotalCaptureResult result, long timestamp, long pressTimestamp) {
+            double penalty = Math.abs(pressTimestamp - timestamp) / 1000000.0;
+            if(!isAeConverged(result)) {
+                penalty += aePenalty;
+            }
+            if(!isAfConverged(result)) {
+                penalty += afPenalty;
+            }
+            if(!isLensStationary(result)) {
+                penalty += lensPenalty;
+            }
+
+            // longer exposures are more likely to be blurred by motion
+            Long exposure = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+            if(exposure != null) {
+                penalty += exposureWeight * exposure / 1000000.0;
+            }
+            return -penalty;
+        }
+    }
+
+    public static final Policy BALANCED = new Weighted(50, 100, 100, 1);
+
+    public static final Policy[] POLICIES = { CLOSEST, CONVERGED, BALANCED, OLDEST };
+
+    /* ============================================================== */
+
+    // result of a selection, reused between selections
+    public static class Report {
+        public String policy;
+        public int    index = -1;
+        public int    numCandidates, numRejected;
+        public long   timestamp, lag;
+        public double score;
+        public Integer aeState, afState, lensState;
+        public Long    exposure;
+
+        @Override
+        public String toString() {
+            if(index < 0) {
+                return String.format(Locale.US, "%s: no frame out of %d candidates (%d rejected)",
+                        policy, numCandidates, numRejected);
+            }
+            return String.format(Locale.US,
+                    "%s: frame %d of %d (%d rejected), %.2f ms %s press, AE %s, AF %s, lens %s, exposure %s",
+                    policy, index, numCandidates, numRejected,
+                    Math.abs(lag) / 1000000.0, lag >= 0 ? "before" : "after",
+                    aeState, afState, lensState,
+                    exposure == null ? "null" : String.format(Locale.US, "%.2f ms", exposure / 1000000.0));
+        }
+    }
+
+    // set from the UI thread, read when selecting
+    private volatile Policy policy = CLOSEST;
+
+    public void setPolicy(Policy policy) {
+        this.policy = policy;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    // returns index of the best complete history entry or -1
+    public int select(ZslRingBuffer history, long pressTimestamp, Report report) {
+        return select(policy, history, pressTimestamp, report);
+    }
+
+    // same with the given policy instead of the active one
+    public int select(Policy policy, ZslRingBuffer history, long pressTimestamp, Report report) {
+        report.policy = policy.getName();
+        report.index  = -1;
+        report.numCandidates = 0;
+        report.numRejected   = 0;
+
+        double best = Double.NEGATIVE_INFINITY;
+        for(int i = 0; i < history.size(); i++) {
+            if(!history.isComplete(i)) {
+                continue;
+            }
+            report.numCandidates++;
+
+            long ts = history.getTimestamp(i);
+            double score = policy.score(history.getResult(i), ts, pressTimestamp);
+            if(score == Double.NEGATIVE_INFINITY || Double.isNaN(score)) {
+                report.numRejected++;
+                continue;
+            }
+            if(report.index < 0 || score > best) {
+                best = score;
+                report.index = i;
+            }
+        }
+
+        if(report.index >= 0) {
+            TotalCaptureResult result = history.getResult(report.index);
+            report.timestamp = history.getTimestamp(report.index);
+            report.lag       = pressTimestamp - report.timestamp;
+            report.score     = best;
+            report.aeState   = result.get(CaptureResult.CONTROL_AE_STATE);
+            report.afState   = result.get(CaptureResult.CONTROL_AF_STATE);
+            report.lensState = result.get(CaptureResult.LENS_STATE);
+            report.exposure  = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+        }
+        return report.index;
+    }
+
+    /* ============================================================== */
+
+    public static boolean isAeConverged(TotalCaptureResult result) {
+        Integer ae = result.get(CaptureResult.CONTROL_AE_STATE);
+        return ae == null
+                || ae == CaptureResult.CONTROL_AE_STATE_CONVERGED
+                || ae == CaptureResult.CONTROL_AE_STATE_LOCKED
+                || ae == CaptureResult.CONTROL_AE_STATE_FLASH_REQUIRED;
+    }
+
+    public static boolean isAfConverged(TotalCaptureResult result) {
+        Integer af = result.get(CaptureResult.CONTROL_AF_STATE);
+        return af == null
+                || af == CaptureResult.CONTROL_AF_STATE_INACTIVE
+                || af == CaptureResult.CONTROL_AF_STATE_PASSIVE_FOCUSED
+                || af == CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED;
+    }
+
+    public static boolean isLensStationary(TotalCaptureResult result) {
+        Integer lens = result.get(CaptureResult.LENS_STATE);
+        return lens == null || lens == CaptureResult.LENS_STATE_STATIONARY;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2019, Sony Mobile Communications Inc.
+ * Licensed under the LICENSE.
+ */
+package com.sony.open.cameratest;
+
+import android.content.ComponentCallbacks2;
+import android.util.Size;
+
+/**
+ * Decides how many frames a ZSL history may keep.
+ *
+ * The upper limit comes from a byte budget and the capture size and is
+ * used to size the ImageReader. At runtime the depth is further limited
+ * to the number of frames needed to cover a given time window at the
+ * observed frame rate, and scaled down on memory pressure.
+ */
+public class ZslMemoryBudget {
+    // PRIVATE buffers are opaque; assume a YUV 4:2:0 layout
+    private static final double bytesPerPixel = 1.5;
+
+    private final long   budgetBytes;
+    private final double historySeconds;
+    private final int    minDepth, maxDepth;
+
+    private long   bytesPerFrame = 0;
+    private int    budgetDepth   = 0;
+    private double frameRate     = 0;
+    private double pressureScale = 1.0;
+
+    public ZslMemoryBudget(long budgetBytes, double historySeconds, int minDepth, int maxDepth) {
+        this.budgetBytes    = budgetBytes;
+        this.historySeconds = historySeconds;
+        this.minDepth       = minDepth;
+        this.maxDepth       = maxDepth;
+    }
+
+    // set capture size, returns the maximum depth (ImageReader maxImages)
+    public int setCaptureSize(Size size) {
+        bytesPerFrame = (long)(size.getWidth() * (long)size.getHeight() * bytesPerPixel);
+        budgetDepth   = (int)Math.max(minDepth, Math.min(maxDepth, budgetBytes / bytesPerFrame));
+        frameRate     = 0;
+        pressureScale = 1.0;
+        return budgetDepth;
+    }
+
+    public void setFrameRate(double fps) {
+        frameRate = fps;
+    }
+
+    // memory pressure callback, returns true if the depth changed
+    public boolean onTrimMemory(int level) {
+        double scale;
+        if(level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            scale = 0;
+        } else if(level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            scale = 0.5;
+        } else if(level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            scale = 0.75;
+        } else {
+            return false;
+        }
+
+        // only ever shrink during a session
+        if(scale >= pressureScale) {
+            return false;
+        }
+        pressureScale = scale;
+        return true;
+    }
+
+    // current depth limit
+    public int getDepth() {
+        int depth = budgetDepth;
+        if(frameRate > 0) {
+            depth = Math.min(depth, (int)Math.ceil(frameRate * historySeconds));
+        }
+        depth = (int)(depth * pressureScale);
+        return Math.max(minDepth, Math.min(budgetDepth, depth));
+    }
+
+    public int getMaxDepth() {
+        return budgetDepth;
+    }
+
+    public long getBytesPerFrame() {
+        return bytesPerFrame;
+    }
+}
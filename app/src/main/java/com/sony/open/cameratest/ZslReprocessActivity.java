@@ -6,12 +6,11 @@ package com.sony.open.cameratest;
 
 import android.Manifest;
 import android.app.Activity;
+import android.app.ActivityManager;
 import android.app.AlertDialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.pm.PackageManager;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.ImageFormat;
 import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraCaptureSession;
@@ -20,46 +19,56 @@ import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
 import android.hardware.camera2.params.InputConfiguration;
-import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.Image;
 import android.media.ImageReader;
 import android.media.ImageWriter;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import androidx.annotation.NonNull;
 import android.util.Log;
 import android.util.Size;
 import android.view.Surface;
 import android.view.TextureView;
 import android.view.View;
+import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.ImageView;
 import android.widget.Spinner;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 
 @SuppressWarnings({"MissingPermission", "FieldCanBeLocal"})
 public class ZslReprocessActivity extends Activity {
-    private CameraManager        camManager;
     private CameraDevice         camDevice;
     private CameraCaptureSession camSession;
+    private volatile CameraThread camThread;
     private final static String camId = "0";
 
-    private final int numUnprocessedImages = 50;
+    // open/configure state machine, records the start-up milestones
+    private CameraSessionController controller;
+
+    private final int  maxUnprocessedImages = 50;
+    private final long zslMemoryBudget      = 512L * 1024 * 1024;
+    private final double zslHistorySeconds  = 2.0;
     private final int numProcessedImages   = 2;
+    private final int numReprocessInputs   = 4;
+    private final int numBurstFrames       = 10;
 
     ImageReader irPreview, irReprocess;
     ImageWriter iwReprocess;
 
     // state
-    private boolean isReady = false;
+    private volatile boolean isReady = false;
     List<Size> possibleSizes = new LinkedList<>();
     Size       captureSize;
     List<Surface> lSurfaces;
@@ -69,10 +78,29 @@ public class ZslReprocessActivity extends Activity {
         Image              data;
     }
 
-    // preview stream
-    List<TotalCaptureResult> unprocessedMeta = new LinkedList<>();
-    List<Image>              unprocessedData = new LinkedList<>();
-    List<ImagePair> unprocessedImages = new ArrayList<>(3);
+    // preview stream, sized by the memory budget when the session starts;
+    // only touched on the camera thread once the session runs
+    ZslRingBuffer   unprocessedImages;
+    ZslMemoryBudget memoryBudget;
+    private long lastReportedMatch = 0;
+    private long lastReportTime = 0, lastReportEvicted = 0;
+
+    // frame selection
+    ZslFrameSelector frameSelector = new ZslFrameSelector();
+    ZslFrameSelector.Report selectionReport = new ZslFrameSelector.Report();
+    private boolean isRealtimeTimestamp = false;
+
+    // burst reprocessing
+    ZslBurstReprocessor burstReprocessor;
+
+    // shutter lag statistics
+    ShutterLagRecorder shutterLag;
+
+    ThumbnailDecoder thumbnailDecoder;
+
+    // status text, shown at most once per display frame
+    StatsPublisher logPublisher;
+    private volatile String logText = "";
 
     // final results
     List<TotalCaptureResult> finalMeta = new LinkedList<>();
@@ -83,9 +111,18 @@ public class ZslReprocessActivity extends Activity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_zsl_reprocess);
+        thumbnailDecoder = new ThumbnailDecoder("ZslThumbnail");
+        logPublisher = new StatsPublisher((TextView) findViewById(R.id.txtZslReprocessLog), new StatsPublisher.Renderer() {
+            @Override
+            public void render(StringBuilder text) {
+                text.append(logText);
+            }
+        });
 
         Button btnCapture = findViewById(R.id.btnZslReprocessCapture);
         btnCapture.setEnabled(false);
+        Button btnBurst = findViewById(R.id.btnZslReprocessBurst);
+        btnBurst.setEnabled(false);
 
         // finish activity and notify user if camera permission missing
         if(checkSelfPermission(Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
@@ -93,19 +130,22 @@ public class ZslReprocessActivity extends Activity {
             finish();
         }
 
+        CameraManager camManager = (CameraManager) getSystemService(Context.CAMERA_SERVICE);
+        controller = new CameraSessionController(new CameraHelper(camManager), sessionListener);
+
         // check camera and decide capture size
         try {
-            camManager = (CameraManager) getSystemService(Context.CAMERA_SERVICE);
-            CameraCharacteristics cc = camManager.getCameraCharacteristics(camId);
+            CameraInfoCache.Info info = CameraInfoCache.get(this).getInfo(camId);
+            if (info == null) {
+                throw new Exception("no camera " + camId);
+            }
 
-            int caps[] = cc.get(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES);
-            if (!contains(caps, CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES_PRIVATE_REPROCESSING)) {
+            if (!info.hasCapability(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES_PRIVATE_REPROCESSING)) {
                 throw new Exception("PRIVATE_REPROCESSING not supported.");
             }
 
-            StreamConfigurationMap map = cc.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-            Size iSizes[] = map.getInputSizes(ImageFormat.PRIVATE);
-            Size oSizes[] = map.getOutputSizes(ImageFormat.JPEG);
+            Size iSizes[] = info.getInputSizes(ImageFormat.PRIVATE);
+            Size oSizes[] = info.getOutputSizes(ImageFormat.JPEG);
             for (Size o : oSizes) {
                 for (Size i : iSizes) {
                     if (o.getHeight() == i.getHeight() && o.getWidth() == i.getWidth()) {
@@ -127,10 +167,39 @@ public class ZslReprocessActivity extends Activity {
             }
 
             captureSize = new Size(mw, mh);
+
+            // sensor timestamps are either in elapsedRealtime or (usually) in nanoTime base
+            isRealtimeTimestamp = info.isRealtimeTimestamp();
         } catch (Exception e) {
             Toast.makeText(this, "ERROR: Camera feature check failed:\n" + e.getMessage(), Toast.LENGTH_LONG).show();
             finish();
         }
+
+        shutterLag = new ShutterLagRecorder("zsl", isRealtimeTimestamp, 1000);
+
+        // low-RAM devices get a quarter of the ZSL memory budget
+        ActivityManager am = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
+        long budget = am.isLowRamDevice() ? zslMemoryBudget / 4 : zslMemoryBudget;
+        memoryBudget = new ZslMemoryBudget(budget, zslHistorySeconds, 3, maxUnprocessedImages);
+
+        // frame selection policies
+        ArrayAdapter<String> policyAdapter = new ArrayAdapter<>(this, android.R.layout.simple_spinner_item);
+        for(ZslFrameSelector.Policy p : ZslFrameSelector.POLICIES) {
+            policyAdapter.add(p.getName());
+        }
+        Spinner selPolicy = findViewById(R.id.selZslReprocessPolicy);
+        selPolicy.setAdapter(policyAdapter);
+        selPolicy.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> adapterView, View view, int i, long l) {
+                frameSelector.setPolicy(ZslFrameSelector.POLICIES[i]);
+            }
+
+            @Override
+            public void onNothingSelected(AdapterView<?> adapterView) {
+
+            }
+        });
     }
 
     @Override
@@ -196,9 +265,66 @@ public class ZslReprocessActivity extends Activity {
     protected void onPause() {
         super.onPause();
         closeAll();
+
+        // export shutter lag statistics
+        if(shutterLag != null && shutterLag.getNumShots() > 0) {
+            try {
+                Log.d("SRA", "shutter lag saved as " + shutterLag.export(getExternalFilesDir(null)));
+            } catch(Exception e) {
+                Log.w("SRA", "failed to save shutter lag: " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        thumbnailDecoder.release();
+        logPublisher.stop();
     }
 
     private void startPreview() {
+        controller.open(camId);
+    }
+
+    /* the controller calls back on the UI thread */
+    CameraSessionController.Listener sessionListener = new CameraSessionController.Listener() {
+        @Override
+        public List<Surface> onCreateOutputs(@NonNull CameraDevice device, @NonNull CameraThread thread) {
+            return createOutputs(device, thread);
+        }
+
+        @Override
+        public InputConfiguration onCreateInputConfiguration(@NonNull CameraDevice device) {
+            return new InputConfiguration(captureSize.getWidth(), captureSize.getHeight(), ImageFormat.PRIVATE);
+        }
+
+        @Override
+        public void onSessionReady(@NonNull CameraDevice device, @NonNull CameraCaptureSession session, @NonNull CameraThread thread) {
+            startZsl(session, thread);
+        }
+
+        @Override
+        public void onSessionClosed(String error) {
+            releaseZsl();
+            if(error != null) {
+                fail(error);
+            }
+        }
+
+        @Override
+        public void onSessionTimings(@NonNull SessionTimings timings) {
+            Log.d("SRA", "session: " + timings);
+        }
+    };
+
+    private List<Surface> createOutputs(CameraDevice device, CameraThread thread) {
+        // all ZSL state is owned by the camera thread, so pairing needs no locking
+        camDevice = device;
+        camThread = thread;
+        Handler handler = thread.getCameraHandler();
+        thread.setRealtimeTimestamp(isRealtimeTimestamp);
+
         // destination surfaces
         lSurfaces = new LinkedList<>();
         TextureView tvPreview    = findViewById(R.id.tvZslReprocessPreview);
@@ -206,112 +332,112 @@ public class ZslReprocessActivity extends Activity {
         //stPreview.setDefaultBufferSize(captureSize.getWidth(), captureSize.getHeight());
         stPreview.setDefaultBufferSize(1280, 720);
         lSurfaces.add(new Surface(stPreview));
+        // keep one reader slot free for acquiring the next image
+        int numUnprocessedImages = memoryBudget.setCaptureSize(captureSize);
+        unprocessedImages = new ZslRingBuffer(numUnprocessedImages - 1, 8);
+        lastReportedMatch = 0;
+        lastReportTime = 0;
+        previewIntervals.resetTimestamp();
         irPreview = ImageReader.newInstance(captureSize.getWidth(), captureSize.getHeight(), ImageFormat.PRIVATE, numUnprocessedImages);
-        irPreview.setOnImageAvailableListener(previewImageCallback, null);
+        Log.d("SRA", String.format(Locale.US, "zsl: up to %d images of %.2f MB",
+                numUnprocessedImages, memoryBudget.getBytesPerFrame() / 1048576.0));
+        irPreview.setOnImageAvailableListener(previewImageCallback, handler);
         lSurfaces.add(irPreview.getSurface());
         irReprocess = ImageReader.newInstance(captureSize.getWidth(), captureSize.getHeight(), ImageFormat.JPEG, numProcessedImages);
-        irReprocess.setOnImageAvailableListener(reprocessImageCallback, null);
+        irReprocess.setOnImageAvailableListener(reprocessImageCallback, handler);
         lSurfaces.add(irReprocess.getSurface());
+        return lSurfaces;
+    }
 
-        try {
-            camManager.openCamera(camId, new CameraDevice.StateCallback() {
-                @Override
-                public void onOpened(@NonNull CameraDevice cameraDevice) {
-                    camDevice = cameraDevice;
-                    try {
-                        InputConfiguration ic = new InputConfiguration(captureSize.getWidth(), captureSize.getHeight(), ImageFormat.PRIVATE);
-                        cameraDevice.createReprocessableCaptureSession(ic, lSurfaces, new CameraCaptureSession.StateCallback() {
-                            @Override
-                            public void onConfigured(@NonNull CameraCaptureSession cameraCaptureSession) {
-                                camSession = cameraCaptureSession;
-                                iwReprocess = ImageWriter.newInstance(cameraCaptureSession.getInputSurface(), 2);
-
-                                try {
-                                    CaptureRequest.Builder b = camDevice.createCaptureRequest(CameraDevice.TEMPLATE_ZERO_SHUTTER_LAG);
-                                    b.addTarget(lSurfaces.get(0));  // TextureView
-                                    b.addTarget(lSurfaces.get(1));  // ImageReader irPreview
-                                    cameraCaptureSession.setRepeatingRequest(b.build(), previewCaptureCallback, null);
-                                } catch(Exception e) {
-                                    Toast.makeText(ZslReprocessActivity.this, "ERROR: Failed to create preview stream:\n" + e.getMessage(), Toast.LENGTH_LONG).show();
-                                    closeAll();
-                                    finish();
-                                }
-
-                                Toast.makeText(ZslReprocessActivity.this,
-                                        String.format(Locale.US, "Will capture at %dx%d.", captureSize.getWidth(), captureSize.getHeight()),
-                                        Toast.LENGTH_SHORT).show();
-                            }
-
-                            @Override
-                            public void onConfigureFailed(@NonNull CameraCaptureSession cameraCaptureSession) {
-                                Toast.makeText(ZslReprocessActivity.this, "ERROR: Failed to configure session.", Toast.LENGTH_LONG).show();
-                                closeAll();
-                                finish();
-                            }
-                        }, null);
-
-                    } catch(Exception e) {
-                        Toast.makeText(ZslReprocessActivity.this, "ERROR: Failed to open session:\n" + e.getMessage(), Toast.LENGTH_LONG).show();
-                        closeAll();
-                        finish();
+    // hand the session over to the camera thread and start the ZSL stream there
+    private void startZsl(final CameraCaptureSession session, CameraThread thread) {
+        final Handler handler = thread.getCameraHandler();
+        final Size size = captureSize;
+        final List<Surface> surfaces = lSurfaces;
+        thread.runOnCamera(new Runnable() {
+            @Override
+            public void run() {
+                camSession = session;
+                iwReprocess = ImageWriter.newInstance(session.getInputSurface(), numReprocessInputs);
+                iwReprocess.setOnImageReleasedListener(new ImageWriter.OnImageReleasedListener() {
+                    @Override
+                    public void onImageReleased(ImageWriter writer) {
+                        if(burstReprocessor != null) {
+                            burstReprocessor.onInputReleased();
+                        }
                     }
+                }, handler);
+                burstReprocessor = new ZslBurstReprocessor(camDevice, camSession, iwReprocess, surfaces.get(2), handler, burstListener);
+
+                try {
+                    CaptureRequest.Builder b = camDevice.createCaptureRequest(CameraDevice.TEMPLATE_ZERO_SHUTTER_LAG);
+                    b.addTarget(surfaces.get(0));  // TextureView
+                    b.addTarget(surfaces.get(1));  // ImageReader irPreview
+                    session.setRepeatingRequest(b.build(), previewCaptureCallback, handler);
+                } catch(Exception e) {
+                    fail("ERROR: Failed to create preview stream:\n" + e.getMessage());
+                    return;
                 }
 
-                @Override
-                public void onDisconnected(@NonNull CameraDevice cameraDevice) {
-                    Toast.makeText(ZslReprocessActivity.this, "Camera was disconnected, closing.", Toast.LENGTH_SHORT).show();
-                    closeAll();
-                    finish();
-                }
+                showToast(String.format(Locale.US, "Will capture at %dx%d.", size.getWidth(), size.getHeight()),
+                        Toast.LENGTH_SHORT);
+            }
+        });
+    }
 
-                @Override
-                public void onError(@NonNull CameraDevice cameraDevice, int err) {
-                    Toast.makeText(ZslReprocessActivity.this, "Camera received error " + err + ", closing." , Toast.LENGTH_SHORT).show();
-                    closeAll();
-                    finish();
-                }
-            }, null);
-        } catch(Exception e) {
-            Toast.makeText(this, "ERROR: Failed to open camera:\n" + e.getMessage(), Toast.LENGTH_LONG).show();
-            finish();
-        }
+    // show message, close camera and leave; may be called from any thread
+    private void fail(final String message) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(ZslReprocessActivity.this, message, Toast.LENGTH_LONG).show();
+                closeAll();
+                finish();
+            }
+        });
     }
+
+    private void showToast(final String message, final int duration) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(ZslReprocessActivity.this, message, duration).show();
+            }
+        });
+    }
+
+    // preview frame intervals, windows are closed on the camera thread
+    IntervalHistogram previewIntervals = new IntervalHistogram("zsl preview", 50, new IntervalHistogram.Listener() {
+        @Override
+        public void onWindow(IntervalHistogram histogram, IntervalHistogram.Window window) {
+            Log.d("SRA", String.format(Locale.US, "preview at %.2f fps (%s)", 1000000000.0 / window.mean, window));
+
+            // only keep as much history as needed at this frame rate
+            memoryBudget.setFrameRate(1000000000.0 / window.mean);
+            applyHistoryDepth();
+        }
+    });
+
     CameraCaptureSession.CaptureCallback previewCaptureCallback = new CameraCaptureSession.CaptureCallback() {
-        long now, then = 0;
-        double n = 0, s = 0, sq = 0;
+        @Override
+        public void onCaptureStarted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, long timestamp, long frameNumber) {
+            super.onCaptureStarted(session, request, timestamp, frameNumber);
+            controller.onCaptureStarted();
+        }
 
         @Override
         public void onCaptureCompleted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull TotalCaptureResult result) {
             super.onCaptureCompleted(session, request, result);
 
-            if(then == 0) {
-                // first frame
-                then = System.nanoTime();
-                return;
+            Long ts = result.get(CaptureResult.SENSOR_TIMESTAMP);
+            CameraThread thread = camThread;
+            if(ts != null && thread != null) {
+                thread.onFrameDispatched(ts);
+                previewIntervals.recordTimestamp(ts);
             }
 
-            // gather statistics
-            now = System.nanoTime();
-            double diff = (now - then) / 1000000.0;
-            n  += 1;
-            s  += diff;
-            sq += diff*diff;
-            then = now;
-
-            // print and reset regularly
-            if(n >= 50) {
-                // https://www-user.tu-chemnitz.de/~heha/hs/mr610.htm
-                double avg = s / n;
-                double sfq = sq - (s*s)/n;
-                double std = Math.sqrt(sfq / (n - 1));
-                Log.d("SRA", String.format(Locale.US, "preview at %.2f fps (%.2f ± %.2f ms)", 1000/avg, avg, std));
-
-                n  = 0;
-                s  = 0;
-                sq = 0;
-            }
-
-            unprocessedMeta.add(result);
+            unprocessedImages.addResult(result);
+            onUnprocessedImageUpdate();
         }
 
         @Override
@@ -329,51 +455,200 @@ public class ZslReprocessActivity extends Activity {
     ImageReader.OnImageAvailableListener previewImageCallback = new ImageReader.OnImageAvailableListener() {
         @Override
         public void onImageAvailable(ImageReader ir) {
-            unprocessedData.add(ir.acquireNextImage());
-
-            while(unprocessedMeta.size() >= 1 && unprocessedData.size() >= 1) {
-                ImagePair nextImage = new ImagePair();
-                nextImage.meta = unprocessedMeta.remove(0);
-                nextImage.data = unprocessedData.remove(0);
-                unprocessedImages.add(nextImage);
-
-                if(unprocessedImages.size() > 1) {
-                    ImagePair oldImage = unprocessedImages.remove(0);
-                    oldImage.data.close();
-
-                    if(!isReady) {
-                        Button btn = findViewById(R.id.btnZslReprocessCapture);
-                        btn.setEnabled(true);
-                        isReady = true;
-                    }
-                }
+            Image image = ir.acquireNextImage();
+            if(image == null) {
+                return;
             }
+            controller.onImageAvailable();
+
+            unprocessedImages.addImage(image);
+            onUnprocessedImageUpdate();
         }
     };
 
+    private void onUnprocessedImageUpdate() {
+        if(!isReady && unprocessedImages.oldestComplete() >= 0) {
+            isReady = true;
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    Button btn = findViewById(R.id.btnZslReprocessCapture);
+                    btn.setEnabled(isReady);
+                    btn = findViewById(R.id.btnZslReprocessBurst);
+                    btn.setEnabled(isReady);
+                }
+            });
+        }
+
+        // report pairing statistics regularly
+        long matched = unprocessedImages.getNumMatched();
+        if(matched > 0 && matched % 100 == 0 && matched != lastReportedMatch) {
+            lastReportedMatch = matched;
+            Log.d("SRA", String.format(Locale.US, "zsl: %d matched, %d evicted, %d orphaned images, %d orphaned results",
+                    matched,
+                    unprocessedImages.getNumEvicted(),
+                    unprocessedImages.getNumOrphanedImages(),
+                    unprocessedImages.getNumOrphanedMeta()));
+
+            long now = System.nanoTime();
+            long evicted = unprocessedImages.getNumEvicted();
+            double rate = lastReportTime == 0 ? 0 : (evicted - lastReportEvicted) * 1000000000.0 / (now - lastReportTime);
+            lastReportTime = now;
+            lastReportEvicted = evicted;
+            Log.d("SRA", String.format(Locale.US, "zsl: depth %d/%d, %d images held (%.1f MB), %.2f evictions/s",
+                    unprocessedImages.getDepth(), unprocessedImages.capacity(),
+                    unprocessedImages.getNumHeld(),
+                    unprocessedImages.getNumHeld() * memoryBudget.getBytesPerFrame() / 1048576.0,
+                    rate));
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if(memoryBudget.onTrimMemory(level)) {
+            Log.w("SRA", "zsl: memory pressure level " + level + ", shrinking history");
+            if(camThread != null) {
+                camThread.runOnCamera(new Runnable() {
+                    @Override
+                    public void run() {
+                        applyHistoryDepth();
+                    }
+                });
+            }
+        }
+    }
+
+    // camera thread only
+    private void applyHistoryDepth() {
+        if(unprocessedImages == null) {
+            return;
+        }
+
+        // one reader slot is always kept free, see startPreview()
+        int depth = memoryBudget.getDepth() - 1;
+        if(depth == unprocessedImages.getDepth()) {
+            return;
+        }
+
+        boolean shrink = depth < unprocessedImages.getDepth();
+        unprocessedImages.setDepth(depth);
+        Log.d("SRA", "zsl: history depth now " + unprocessedImages.getDepth());
+
+        // return memory of buffers no longer in use
+        ImageReader reader = irPreview;
+        if(shrink && reader != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            reader.discardFreeBuffers();
+        }
+    }
+
     public void btnCapture(View v) {
-        if(!isReady || unprocessedImages.size() < 1) {
+        if(!isReady || camThread == null) {
             Log.w("SRA", "Picture not taken: No unprocessed image available.");
             return;
         }
 
+        // press time is taken right away, the rest runs next to the ZSL history
+        final int shot = shutterLag.onPress();
+        camThread.runOnCamera(new Runnable() {
+            @Override
+            public void run() {
+                reprocess(shot);
+            }
+        });
+    }
+
+    // camera thread only
+    private void reprocess(int shot) {
+        if(!isReady || unprocessedImages.oldestComplete() < 0) {
+            Log.w("SRA", "Picture not taken: No unprocessed image available.");
+            return;
+        }
+        if(burstReprocessor != null && burstReprocessor.isActive()) {
+            Log.w("SRA", "Picture not taken: Burst in progress.");
+            return;
+        }
+        long pressTimestamp = shutterLag.getPressSensorTimestamp(shot);
+
+        // pick frame, falling back to the one closest to the button press
+        int index = frameSelector.select(unprocessedImages, pressTimestamp, selectionReport);
+        if(index < 0) {
+            Log.w("SRA", "zsl: " + selectionReport);
+            index = frameSelector.select(ZslFrameSelector.CLOSEST, unprocessedImages, pressTimestamp, selectionReport);
+        }
+        Log.d("SRA", "zsl: " + selectionReport);
+        setLogText(selectionReport.toString());
+        shutterLag.onFrameSelected(shot, selectionReport.timestamp);
+
         try {
-            ImagePair todo = unprocessedImages.remove(0);
-            iwReprocess.queueInputImage(todo.data);
-            CaptureRequest.Builder b = camDevice.createReprocessCaptureRequest(todo.meta);
+            TotalCaptureResult meta = unprocessedImages.getResult(index);
+            iwReprocess.queueInputImage(unprocessedImages.takeImage(index));
+            unprocessedImages.releaseTakenImage();
+            CaptureRequest.Builder b = camDevice.createReprocessCaptureRequest(meta);
             b.addTarget(lSurfaces.get(2));
-            camSession.capture(b.build(), reprocessCaptureCallback, null);
+            b.setTag(shot);
+            shutterLag.onRequestSubmitted(shot);
+            camSession.capture(b.build(), reprocessCaptureCallback, camThread.getCameraHandler());
         } catch(Exception e) {
-            Toast.makeText(ZslReprocessActivity.this, "ERROR: Failed to reprocess:\n" + e.getMessage(), Toast.LENGTH_LONG).show();
-            closeAll();
-            finish();
+            fail("ERROR: Failed to reprocess:\n" + e.getMessage());
         }
     }
 
+    public void btnBurst(View v) {
+        if(!isReady || camThread == null) {
+            Log.w("SRA", "Burst not started: Not ready or burst in progress.");
+            return;
+        }
+
+        final Button btn = findViewById(R.id.btnZslReprocessBurst);
+        btn.setEnabled(false);
+        camThread.runOnCamera(new Runnable() {
+            @Override
+            public void run() {
+                if(burstReprocessor == null || burstReprocessor.isActive()) {
+                    Log.w("SRA", "Burst not started: Not ready or burst in progress.");
+                    return;
+                }
+                if(!burstReprocessor.start(unprocessedImages, numBurstFrames)) {
+                    Log.w("SRA", "Burst not started: No unprocessed image available.");
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            btn.setEnabled(isReady);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    // may be called from any thread
+    private void setLogText(String text) {
+        logText = text;
+        logPublisher.invalidate();
+    }
+
+    ZslBurstReprocessor.Listener burstListener = new ZslBurstReprocessor.Listener() {
+        @Override
+        public void onBurstDone(ZslBurstReprocessor burst) {
+            setLogText(burst.getSummary());
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    Button btn = findViewById(R.id.btnZslReprocessBurst);
+                    btn.setEnabled(isReady);
+                }
+            });
+        }
+    };
+
     CameraCaptureSession.CaptureCallback reprocessCaptureCallback = new CameraCaptureSession.CaptureCallback() {
         @Override
         public void onCaptureCompleted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull TotalCaptureResult result) {
             super.onCaptureCompleted(session, request, result);
+            if(request.getTag() instanceof Integer) {
+                shutterLag.onRequestCompleted((Integer) request.getTag());
+            }
             finalMeta.add(result);
         }
 
@@ -392,7 +667,16 @@ public class ZslReprocessActivity extends Activity {
     ImageReader.OnImageAvailableListener reprocessImageCallback = new ImageReader.OnImageAvailableListener() {
         @Override
         public void onImageAvailable(ImageReader ir) {
-            finalData.add(ir.acquireNextImage());
+            // a single shot may still be pending when a burst starts, route by request
+            Image image = ir.acquireNextImage();
+            if(image == null) {
+                return;
+            }
+            if(burstReprocessor != null && burstReprocessor.isBurstOutput(image.getTimestamp())) {
+                burstReprocessor.onJpegAvailable(image);
+                return;
+            }
+            finalData.add(image);
 
             while(finalMeta.size() > 0 && finalData.size() > 0) {
                 ImagePair finalImage = new ImagePair();
@@ -400,16 +684,23 @@ public class ZslReprocessActivity extends Activity {
                 finalImage.data = finalData.remove(0);
 
                 if(finalImage.data.getFormat() == ImageFormat.JPEG) {
+                    shutterLag.onJpegAvailable(finalImage.data.getTimestamp());
+                    Log.d("SRA", shutterLag.getSummary());
+
                     // retrieve bytes and release buffer
                     ByteBuffer buf = finalImage.data.getPlanes()[0].getBuffer();
-                    byte[] jpegBytes = new byte[buf.remaining()];
+                    final byte[] jpegBytes = new byte[buf.remaining()];
                     buf.get(jpegBytes);
                     finalImage.data.close();
 
-                    // decode and display
-                    Bitmap bmpImage = BitmapFactory.decodeByteArray(jpegBytes, 0, jpegBytes.length-1);
-                    ImageView ivThumbnail = findViewById(R.id.ivZslReprocessThumbnail);
-                    ivThumbnail.setImageBitmap(bmpImage);
+                    // decode in background and display
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            ImageView ivThumbnail = findViewById(R.id.ivZslReprocessThumbnail);
+                            thumbnailDecoder.decode(jpegBytes, jpegBytes.length, ivThumbnail);
+                        }
+                    });
                 } else {
                     Log.e("SRA", "format " + finalImage.data.getFormat() + " not supported");
                     finalImage.data.close();
@@ -421,29 +712,55 @@ public class ZslReprocessActivity extends Activity {
     private void closeAll() {
         Button b = findViewById(R.id.btnZslReprocessCapture);
         b.setEnabled(false);
+        b = findViewById(R.id.btnZslReprocessBurst);
+        b.setEnabled(false);
 
         isReady = false;
         captureSize = null;
+        controller.close();
+    }
 
-        if(lSurfaces != null) {
-            lSurfaces.clear();
-            lSurfaces = null;
+    // session and device are closed, free the ZSL state on the camera thread after any queued callbacks
+    private void releaseZsl() {
+        if(camThread == null) {
+            return;
         }
 
-        if(irPreview != null) {
-            irPreview.close();
-            irPreview = null;
-        }
+        final CameraThread   thread   = camThread;
+        final CameraDevice   device   = camDevice;
+        final ZslRingBuffer  ring     = unprocessedImages;
+        final ImageReader    reader   = irPreview;
+        final List<Surface>  surfaces = lSurfaces;
+        camThread = null;
+        irPreview = null;
+        lSurfaces = null;
+        thread.runOnCamera(new Runnable() {
+            @Override
+            public void run() {
+                if(burstReprocessor != null) {
+                    burstReprocessor.abort();
+                    burstReprocessor = null;
+                }
+
+                if(surfaces != null) {
+                    surfaces.clear();
+                }
 
-        if(camDevice != null) {
-            if(camSession != null) {
-                camSession.close();
-                camSession = null;
+                if(ring != null) {
+                    ring.clear();
+                }
+                if(reader != null) {
+                    reader.close();
+                }
+                // a new session may have started meanwhile
+                if(camDevice == device) {
+                    camDevice  = null;
+                    camSession = null;
+                }
             }
-            camDevice.close();
-            camDevice = null;
-        }
+        });
     }
+
     private boolean contains(Size[] arr, int width, int height) {
         for(Size elem : arr) {
             if(elem.getWidth() == width && elem.getHeight() == height) {
@@ -452,12 +769,4 @@ public class ZslReprocessActivity extends Activity {
         }
         return false;
     }
-    private boolean contains(int[] arr, int val) {
-        for(int elem : arr) {
-            if(elem == val) {
-                return true;
-            }
-        }
-        return false;
-    }
 }
@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2019, Sony Mobile Communications Inc.
+ * Licensed under the LICENSE.
+ */
+package com.sony.open.cameratest;
+
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.media.Image;
+
+/**
+ * Fixed-capacity ZSL history which pairs images with their capture results
+ * by sensor timestamp instead of by arrival order.
+ *
+ * All storage is allocated up front, so adding images and results does not
+ * allocate. The buffer does no locking; all methods must be called from the
+ * thread delivering the camera callbacks.
+ */
+public class ZslRingBuffer {
+    // image slots, oldest at imgHead
+    private final long[]               imgTs;
+    private final Image[]              imgData;
+    private final TotalCaptureResult[] imgMeta;
+    private int imgHead = 0, imgCount = 0;
+
+    // images still open, including those taken but not yet released
+    private int numHeld = 0;
+
+    // current history depth, at most the capacity
+    private int depth;
+
+    // results still waiting for their image, oldest at metaHead
+    private final long[]               metaTs;
+    private final TotalCaptureResult[] metaData;
+    private int metaHead = 0, metaCount = 0;
+
+    // statistics
+    private long numMatched = 0, numEvicted = 0;
+    private long numOrphanedImages = 0, numOrphanedMeta = 0;
+
+    public ZslRingBuffer(int capacity, int metaCapacity) {
+        if(capacity < 1 || metaCapacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+
+        imgTs   = new long[capacity];
+        imgData = new Image[capacity];
+        imgMeta = new TotalCaptureResult[capacity];
+
+        metaTs   = new long[metaCapacity];
+        metaData = new TotalCaptureResult[metaCapacity];
+
+        depth = capacity;
+    }
+
+    /* ============================================================== */
+
+    // add a new image, evicting (and closing) the oldest one if full
+    public void addImage(Image image) {
+        long ts = image.getTimestamp();
+
+        // taken images still count against the reader's image limit
+        while(imgCount > 0 && (imgCount >= depth || numHeld >= depth)) {
+            evictOldest();
+        }
+
+        int slot = (imgHead + imgCount) % imgData.length;
+        imgTs[slot]   = ts;
+        imgData[slot] = image;
+        imgMeta[slot] = takePendingMeta(ts);
+        imgCount++;
+        numHeld++;
+
+        if(imgMeta[slot] != null) {
+            numMatched++;
+        }
+    }
+
+    // add a new capture result, attaching it to its image if already present
+    public void addResult(TotalCaptureResult result) {
+        Long tsObj = result.get(CaptureResult.SENSOR_TIMESTAMP);
+        if(tsObj == null) {
+            numOrphanedMeta++;
+            return;
+        }
+        long ts = tsObj;
+
+        // images usually arrive in order, so search from the newest
+        for(int i = imgCount - 1; i >= 0; i--) {
+            int slot = (imgHead + i) % imgData.length;
+            if(imgTs[slot] == ts && imgData[slot] != null && imgMeta[slot] == null) {
+                imgMeta[slot] = result;
+                numMatched++;
+                return;
+            }
+        }
+
+        // otherwise keep it until the image shows up
+        if(metaCount == metaData.length) {
+            metaData[metaHead] = null;
+            metaHead = (metaHead + 1) % metaData.length;
+            metaCount--;
+            numOrphanedMeta++;
+        }
+        int slot = (metaHead + metaCount) % metaData.length;
+        metaTs[slot]   = ts;
+        metaData[slot] = result;
+        metaCount++;
+    }
+
+    // change the history depth, evicting the oldest images if needed
+    public void setDepth(int newDepth) {
+        depth = Math.max(1, Math.min(newDepth, imgData.length));
+        while(imgCount > depth) {
+            evictOldest();
+        }
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    // close all images and drop all results
+    public void clear() {
+        while(imgCount > 0) {
+            evictOldest();
+        }
+        while(metaCount > 0) {
+            metaData[metaHead] = null;
+            metaHead = (metaHead + 1) % metaData.length;
+            metaCount--;
+        }
+        imgHead  = 0;
+        metaHead = 0;
+    }
+
+    /* ============================================================== */
+
+    // number of slots in use; index 0 is the oldest, size()-1 the newest
+    public int size() {
+        return imgCount;
+    }
+
+    public int capacity() {
+        return imgData.length;
+    }
+
+    public long getTimestamp(int index) {
+        return imgTs[slotOf(index)];
+    }
+
+    public TotalCaptureResult getResult(int index) {
+        return imgMeta[slotOf(index)];
+    }
+
+    // image and result both present and image not yet taken
+    public boolean isComplete(int index) {
+        int slot = slotOf(index);
+        return imgData[slot] != null && imgMeta[slot] != null;
+    }
+
+    // index of the oldest complete entry or -1
+    public int oldestComplete() {
+        for(int i = 0; i < imgCount; i++) {
+            if(isComplete(i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // hand over ownership of an image; the slot stays until it is evicted
+    // and the image counts as held until releaseTakenImage() is called
+    public Image takeImage(int index) {
+        int slot = slotOf(index);
+        Image image = imgData[slot];
+        imgData[slot] = null;
+        return image;
+    }
+
+    // a taken image has been closed or queued for reprocessing
+    public void releaseTakenImage() {
+        if(numHeld > 0) {
+            numHeld--;
+        }
+    }
+
+    // number of open images, including taken ones
+    public int getNumHeld() {
+        return numHeld;
+    }
+
+    /* ============================================================== */
+
+    public long getNumMatched() {
+        return numMatched;
+    }
+
+    public long getNumEvicted() {
+        return numEvicted;
+    }
+
+    public long getNumOrphanedImages() {
+        return numOrphanedImages;
+    }
+
+    public long getNumOrphanedMeta() {
+        return numOrphanedMeta;
+    }
+
+    /* ============================================================== */
+
+    private int slotOf(int index) {
+        if(index < 0 || index >= imgCount) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + imgCount);
+        }
+        return (imgHead + index) % imgData.length;
+    }
+
+    private void evictOldest() {
+        Image image = imgData[imgHead];
+        if(image != null) {
+            if(imgMeta[imgHead] == null) {
+                numOrphanedImages++;
+            }
+            image.close();
+            numHeld--;
+            numEvicted++;
+        }
+        imgData[imgHead] = null;
+        imgMeta[imgHead] = null;
+        imgHead = (imgHead + 1) % imgData.length;
+        imgCount--;
+    }
+
+    private TotalCaptureResult takePendingMeta(long ts) {
+        for(int i = 0; i < metaCount; i++) {
+            int slot = (metaHead + i) % metaData.length;
+            if(metaTs[slot] != ts) {
+                continue;
+            }
+
+            TotalCaptureResult result = metaData[slot];
+
+            // close the gap by moving older entries up one slot
+            for(int j = i; j > 0; j--) {
+                int dst = (metaHead + j) % metaData.length;
+                int src = (metaHead + j - 1) % metaData.length;
+                metaTs[dst]   = metaTs[src];
+                metaData[dst] = metaData[src];
+            }
+            metaData[metaHead] = null;
+            metaHead = (metaHead + 1) % metaData.length;
+            metaCount--;
+            return result;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2019, Sony Mobile Communications Inc.
+ * Licensed under the LICENSE.
+ */
+package com.sony.open.cameratest;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class Mp4TimingVerifierTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void evenlyPacedVersion0() throws IOException {
+        // 10 frames of 3000 ticks at 90 kHz, 1000 bytes each
+        byte[] stbl = stbl(stts(10, 3000), null, stszFixed(1000, 10));
+        Mp4TimingVerifier.Report r = verify(file(ftyp(), moov(mdhd(0, 90000), stbl)), 30);
+
+        assertNull(r.error);
+        assertEquals(90000, r.timescale);
+        assertEquals(10, r.numFrames);
+        assertEquals(10000, r.totalBytes);
+        assertEquals(30.0, r.getFps(), 1e-9);
+        assertEquals(0, r.numGaps);
+        assertTrue(r.isEvenlyPaced());
+    }
+
+    @Test
+    public void missingFrameVersion1() throws IOException {
+        // 1 ms ticks, one frame is missing after the fourth
+        byte[] stbl = stbl(stts(4, 33, 1, 67, 5, 33), null, stszFixed(500, 10));
+        Mp4TimingVerifier.Report r = verify(file(ftyp(), moov(mdhd(1, 1000), stbl)), 30);
+
+        assertNull(r.error);
+        assertEquals(1000, r.timescale);
+        assertEquals(10, r.numFrames);
+        assertEquals(1, r.numGaps);
+        assertEquals(1, r.numMissing);
+        assertEquals(Long.valueOf(1), r.durations.get(67L));
+        assertEquals(Long.valueOf(8), r.durations.get(33L));
+        assertFalse(r.isEvenlyPaced());
+    }
+
+    @Test
+    public void negativeCompositionOffsets() throws IOException {
+        // I P B B in decode order, presented I B B P; offsets are signed in ctts version 1
+        byte[] ctts = ctts(1, 1, 0, 1, 2000, 2, -1000, 1, 0, 1, 2000, 2, -1000);
+        byte[] stbl = stbl(stts(8, 1000), ctts, stsz(100, 200, 300, 400, 500, 600, 700, 800));
+        Mp4TimingVerifier.Report r = verify(file(ftyp(), moov(mdhd(0, 30000), stbl)), 30);
+
+        assertNull(r.error);
+        assertEquals(8, r.numFrames);
+        assertEquals(3600, r.totalBytes);
+        assertEquals(1, r.durations.size());
+        assertEquals(Long.valueOf(7), r.durations.get(1000L));
+        assertTrue(r.isEvenlyPaced());
+    }
+
+    @Test
+    public void largeAndOpenEndedBoxes() throws IOException {
+        byte[] stbl = stbl(stts(10, 3000), null, stszFixed(1000, 10));
+
+        // 64-bit sizes for mdat and moov
+        File f = file(ftyp(), box64("mdat", new byte[100]), box64("moov", trak(mdhd(0, 90000), stbl)));
+        assertEquals(10, verify(f, 30).numFrames);
+
+        // moov runs to the end of the file
+        byte[] moov = moov(mdhd(0, 90000), stbl);
+        writeInt(moov, 0, 0);
+        f = file(ftyp(), box("mdat", new byte[100]), moov);
+        assertEquals(10, verify(f, 30).numFrames);
+    }
+
+    @Test
+    public void tableCountsStayInsideTheirBox() throws IOException {
+        // stts claims more entries than it holds, the following stsz must not be read as stts
+        byte[] stts = stts(5, 3000);
+        writeInt(stts, 12, 1000000);
+        Mp4TimingVerifier.Report r = verify(file(ftyp(), moov(mdhd(0, 90000), stbl(stts, null, stszFixed(1000, 10)))), 30);
+        assertNotNull(r.error);
+        assertTrue(r.error, r.error.contains("stts"));
+        assertEquals(5, r.numFrames);
+        assertEquals(Long.valueOf(3000), r.durations.lastKey());
+
+        // stsz claims more sizes than it holds, at the end of the file
+        byte[] stsz = stsz(100, 200, 300);
+        writeInt(stsz, 16, 1000000);
+        r = verify(file(ftyp(), moov(mdhd(0, 90000), stbl(stts(1000000, 3000), null, stsz))), 30);
+        assertNotNull(r.error);
+        assertTrue(r.error, r.error.contains("stsz"));
+        assertEquals(3, r.numFrames);
+        assertEquals(600, r.totalBytes);
+    }
+
+    @Test(expected = IOException.class)
+    public void noVideoTrack() throws IOException {
+        verify(file(ftyp(), box("moov", box("trak", box("mdia", hdlr("soun"))))), 30);
+    }
+
+    /* ============================================================== */
+
+    private Mp4TimingVerifier.Report verify(File f, double fps) throws IOException {
+        return Mp4TimingVerifier.verify(f, fps);
+    }
+
+    private File file(byte[]... boxes) throws IOException {
+        File f = tmp.newFile();
+        try(FileOutputStream out = new FileOutputStream(f)) {
+            for(byte[] b : boxes) {
+                out.write(b);
+            }
+        }
+        return f;
+    }
+
+    private static byte[] ftyp() {
+        return box("ftyp", bytes("isom", 0x200, "isom"));
+    }
+
+    private static byte[] moov(byte[] mdhd, byte[] stbl) {
+        return box("moov", trak(mdhd, stbl));
+    }
+
+    private static byte[] trak(byte[] mdhd, byte[] stbl) {
+        return box("trak", box("tkhd", new byte[84]), box("mdia", mdhd, hdlr("vide"), box("minf", stbl)));
+    }
+
+    // version 1 has 64-bit creation and modification times
+    private static byte[] mdhd(int version, int timescale) {
+        return version == 1
+                ? box("mdhd", bytes(1 << 24, 0, 0, 0, 0, timescale, 0, 0, 0))
+                : box("mdhd", bytes(0, 0, 0, timescale, 0, 0));
+    }
+
+    private static byte[] hdlr(String type) {
+        return box("hdlr", bytes(0, 0, type, 0, 0, 0, 0));
+    }
+
+    private static byte[] stbl(byte[] stts, byte[] ctts, byte[] stsz) {
+        return ctts != null ? box("stbl", stts, ctts, stsz) : box("stbl", stts, stsz);
+    }
+
+    // pairs of count, delta
+    private static byte[] stts(int... entries) {
+        return box("stts", bytes(0, entries.length / 2), ints(entries));
+    }
+
+    // pairs of count, offset
+    private static byte[] ctts(int version, int... entries) {
+        return box("ctts", bytes(version << 24, entries.length / 2), ints(entries));
+    }
+
+    private static byte[] stszFixed(int size, int count) {
+        return box("stsz", bytes(0, size, count));
+    }
+
+    private static byte[] stsz(int... sizes) {
+        return box("stsz", bytes(0, 0, sizes.length), ints(sizes));
+    }
+
+    private static byte[] box(String type, byte[]... children) {
+        byte[] body = concat(children);
+        return concat(bytes(8 + body.length, type), body);
+    }
+
+    private static byte[] box64(String type, byte[]... children) {
+        byte[] body = concat(children);
+        return concat(bytes(1, type), longBytes(16L + body.length), body);
+    }
+
+    private static byte[] ints(int... values) {
+        Object[] o = new Object[values.length];
+        for(int i = 0; i < values.length; i++) {
+            o[i] = values[i];
+        }
+        return bytes(o);
+    }
+
+    // big-endian ints and four character codes
+    private static byte[] bytes(Object... values) {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(b);
+        try {
+            for(Object v : values) {
+                if(v instanceof String) {
+                    out.write(((String) v).getBytes(StandardCharsets.ISO_8859_1));
+                } else {
+                    out.writeInt((Integer) v);
+                }
+            }
+        } catch(IOException e) {
+            throw new AssertionError(e);
+        }
+        return b.toByteArray();
+    }
+
+    private static byte[] longBytes(long v) {
+        byte[] b = new byte[8];
+        for(int i = 0; i < 8; i++) {
+            b[i] = (byte)(v >>> (56 - 8 * i));
+        }
+        return b;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        for(byte[] p : parts) {
+            b.write(p, 0, p.length);
+        }
+        return b.toByteArray();
+    }
+
+    private static void writeInt(byte[] b, int pos, int v) {
+        b[pos]     = (byte)(v >>> 24);
+        b[pos + 1] = (byte)(v >>> 16);
+        b[pos + 2] = (byte)(v >>> 8);
+        b[pos + 3] = (byte) v;
+    }
+}
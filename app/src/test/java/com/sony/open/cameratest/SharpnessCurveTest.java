@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2019, Sony Mobile Communications Inc.
+ * Licensed under the LICENSE.
+ */
+package com.sony.open.cameratest;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SharpnessCurveTest {
+    @Test
+    public void samePositionIsAveraged() {
+        SharpnessCurve c = new SharpnessCurve(4);
+        c.add(2.0f, 10);
+        c.add(1.0f, 5);
+        c.add(2.0f, 30);
+        c.add(2.00001f, 20);
+
+        assertEquals(2, c.size());
+        assertEquals(1.0f, c.getDistance(0), 0);
+        assertEquals(2.0f, c.getDistance(1), 0);
+        assertEquals(5, c.getValue(0), 0);
+        assertEquals(20, c.getValue(1), 1e-9);
+    }
+
+    @Test
+    public void fullCurveRejectsNewPositions() {
+        SharpnessCurve c = new SharpnessCurve(2);
+        assertTrue(c.add(0, 1));
+        assertTrue(c.add(1, 1));
+        assertFalse(c.add(2, 1));
+        assertTrue(c.add(1, 3));
+        assertEquals(2, c.getValue(1), 0);
+    }
+
+    @Test
+    public void tooFewPointsHaveNoPeak() {
+        SharpnessCurve c = new SharpnessCurve(4);
+        c.add(0, 1);
+        c.add(1, 2);
+        assertTrue(Double.isNaN(c.getPeakDistance()));
+    }
+
+    @Test
+    public void offGridPeak() {
+        // peak between sweep positions, both ways of a back and forth sweep
+        for(double peak : new double[] { 1.23, 3.17, 6.05 }) {
+            SharpnessCurve c = new SharpnessCurve(51);
+            for(int i = 0; i <= 100; i++) {
+                float p = (i <= 50 ? i : 100 - i) * 0.2f;
+                c.add(p, lorentz(p, peak));
+            }
+            assertEquals(51, c.size());
+            assertEquals("peak " + peak, peak, c.getPeakDistance(), 0.05);
+        }
+    }
+
+    @Test
+    public void noisyFarEndDoesNotStopClimb() {
+        // flat, noisy near infinity, peak close to macro
+        SharpnessCurve c = new SharpnessCurve(51);
+        long seed = 7;
+        for(int i = 0; i <= 50; i++) {
+            float p = i * 0.2f;
+            seed = seed * 6364136223846793005L + 1442695040888963407L;
+            c.add(p, lorentz(p, 8.9) + (seed >>> 58) - 32);
+        }
+        assertEquals(8.9, c.getPeakDistance(), 0.1);
+    }
+
+    @Test
+    public void firstPeakFromInfinityWins() {
+        SharpnessCurve c = new SharpnessCurve(51);
+        for(int i = 0; i <= 50; i++) {
+            float p = i * 0.2f;
+            c.add(p, 0.8 * lorentz(p, 2.0) + lorentz(p, 7.0));
+        }
+        assertEquals(2.0, c.getPeakDistance(), 0.05);
+    }
+
+    private static double lorentz(double x, double peak) {
+        return 1000 / (1 + Math.pow((x - peak) / 0.8, 2));
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2019, Sony Mobile Communications Inc.
+ * Licensed under the LICENSE.
+ */
+package com.sony.open.cameratest;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SharpnessEngineTest {
+    private static final int width = 64, height = 48;
+    private static final int[] methods = { SharpnessEngine.LAPLACIAN, SharpnessEngine.TENENGRAD };
+
+    @Test
+    public void sharperEdgeScoresHigher() {
+        for(int method : methods) {
+            SharpnessEngine engine = new SharpnessEngine(method, 2);
+            try {
+                // ramps from 16 pixels wide down to a hard edge
+                double last = -1;
+                for(int ramp = 16; ramp >= 1; ramp /= 2) {
+                    double s = engine.measure(edge(ramp, width, 1), width, height, width, 1);
+                    assertTrue("method " + method + ", ramp " + ramp + ": " + s + " after " + last, s > last);
+                    last = s;
+                }
+            } finally {
+                engine.release();
+            }
+        }
+    }
+
+    @Test
+    public void roiIsClampedToBorder() {
+        for(int method : methods) {
+            SharpnessEngine engine = new SharpnessEngine(method, 3);
+            try {
+                // exactly sized plane, a kernel past the border would read out of bounds
+                ByteBuffer plane = edge(1, width, 1);
+                double full = engine.measure(plane, width, height, width, 1);
+
+                engine.setRoi(-0.5f, -0.5f, 1.5f, 1.5f);
+                assertEquals(full, engine.measure(plane, width, height, width, 1), 0);
+
+                engine.setRoi(1f / width, 1f / height, (width - 1f) / width, (height - 1f) / height);
+                assertEquals(full, engine.measure(plane, width, height, width, 1), 0);
+            } finally {
+                engine.release();
+            }
+        }
+    }
+
+    @Test
+    public void emptyRoiIsZero() {
+        SharpnessEngine engine = new SharpnessEngine(SharpnessEngine.LAPLACIAN, 2);
+        try {
+            engine.setRoi(0.5f, 0.2f, 0.5f, 0.8f);
+            assertEquals(0, engine.measure(edge(1, width, 1), width, height, width, 1), 0);
+
+            // the next frame is measured normally again
+            engine.setRoi(0, 0, 1, 1);
+            assertTrue(engine.measure(edge(1, width, 1), width, height, width, 1) > 0);
+        } finally {
+            engine.release();
+        }
+    }
+
+    @Test
+    public void threadsAgree() {
+        for(int method : methods) {
+            ByteBuffer plane = noise(2 * width + 16, 2);
+            SharpnessEngine single = new SharpnessEngine(method, 1);
+            double expected = single.measure(plane, width, height, 2 * width + 16, 2);
+            single.release();
+
+            for(int threads = 2; threads <= 7; threads++) {
+                SharpnessEngine engine = new SharpnessEngine(method, threads);
+                try {
+                    for(int i = 0; i < 3; i++) {
+                        assertEquals("method " + method + ", " + threads + " threads",
+                                expected, engine.measure(plane, width, height, 2 * width + 16, 2), expected * 1e-12);
+                    }
+                } finally {
+                    engine.release();
+                }
+            }
+        }
+    }
+
+    /* ============================================================== */
+
+    // dark left, bright right, linear ramp of the given width in the middle
+    private static ByteBuffer edge(int ramp, int rowStride, int pixelStride) {
+        ByteBuffer b = ByteBuffer.allocate(rowStride * height);
+        int start = width / 2 - ramp / 2;
+        for(int y = 0; y < height; y++) {
+            for(int x = 0; x < width; x++) {
+                int v = x < start ? 0 : (x >= start + ramp ? 255 : 255 * (x - start + 1) / (ramp + 1));
+                b.put(y * rowStride + x * pixelStride, (byte)v);
+            }
+        }
+        return b;
+    }
+
+    private static ByteBuffer noise(int rowStride, int pixelStride) {
+        ByteBuffer b = ByteBuffer.allocate(rowStride * height);
+        long seed = 12345;
+        for(int y = 0; y < height; y++) {
+            for(int x = 0; x < width; x++) {
+                seed = seed * 6364136223846793005L + 1442695040888963407L;
+                b.put(y * rowStride + x * pixelStride, (byte)(seed >>> 56));
+            }
+        }
+        return b;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2019, Sony Mobile Communications Inc.
+ * Licensed under the LICENSE.
+ */
+package com.sony.open.cameratest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class YuvConverterTest {
+    private static final int width = 4, height = 4, padding = 8;
+
+    // one colour per 2x2 block: full range BT.601 Y, U, V and the RGB it stands for
+    private static final int[][] yuv = { { 128, 128, 128 }, { 76, 85, 255 }, { 150, 44, 21 }, { 29, 255, 107 } };
+    private static final int[][] rgb = { { 128, 128, 128 }, { 255, 0, 0 }, { 0, 255, 0 }, { 0, 0, 255 } };
+
+    private YuvConverter converter;
+
+    @Before
+    public void setUp() {
+        converter = new YuvConverter(2);
+    }
+
+    @After
+    public void tearDown() {
+        converter.release();
+    }
+
+    @Test
+    public void planar() {
+        // I420: Y, then U and V as separate quarter size planes
+        ByteBuffer y = ByteBuffer.allocate(width * height), u = ByteBuffer.allocate(width * height / 4), v = ByteBuffer.allocate(width * height / 4);
+        fill(y, u, v, width, 1, width / 2, 1);
+        check(converter.convert(y, u, v, width, height, width, 1, width / 2, 1));
+    }
+
+    @Test
+    public void semiPlanar() {
+        // NV12: U and V interleaved in one plane, V starts one byte after U
+        ByteBuffer y = ByteBuffer.allocate(width * height), uv = ByteBuffer.allocate(width * height / 2);
+        ByteBuffer u = uv.duplicate(), v = slice(uv, 1);
+        fill(y, u, v, width, 1, width, 2);
+        check(converter.convert(y, u, v, width, height, width, 1, width, 2));
+    }
+
+    @Test
+    public void padded() {
+        // rows padded with garbage, Y with a pixel stride of 2
+        int yRowStride = 2 * width + padding, uvRowStride = width + padding;
+        ByteBuffer y  = garbage(yRowStride * height);
+        ByteBuffer uv = garbage(uvRowStride * height / 2);
+        ByteBuffer u = uv.duplicate(), v = slice(uv, 1);
+        fill(y, u, v, yRowStride, 2, uvRowStride, 2);
+        check(converter.convert(y, u, v, width, height, yRowStride, 2, uvRowStride, 2));
+    }
+
+    @Test
+    public void layoutsAgree() {
+        ByteBuffer y = ByteBuffer.allocate(width * height), u = ByteBuffer.allocate(width * height / 4), v = ByteBuffer.allocate(width * height / 4);
+        fill(y, u, v, width, 1, width / 2, 1);
+        int[] planar = Arrays.copyOf(converter.convert(y, u, v, width, height, width, 1, width / 2, 1), width * height);
+
+        int yRowStride = width + padding, uvRowStride = width + padding;
+        ByteBuffer py = garbage(yRowStride * height), puv = garbage(uvRowStride * height / 2);
+        ByteBuffer pu = puv.duplicate(), pv = slice(puv, 1);
+        fill(py, pu, pv, yRowStride, 1, uvRowStride, 2);
+        int[] padded = Arrays.copyOf(converter.convert(py, pu, pv, width, height, yRowStride, 1, uvRowStride, 2), width * height);
+
+        assertArrayEquals(planar, padded);
+    }
+
+    /* ============================================================== */
+
+    // 2x2 blocks in reading order
+    private static int block(int row, int col) {
+        return (row / 2) * (width / 2) + col / 2;
+    }
+
+    private static void fill(ByteBuffer y, ByteBuffer u, ByteBuffer v, int yRowStride, int yPixelStride, int uvRowStride, int uvPixelStride) {
+        for(int row = 0; row < height; row++) {
+            for(int col = 0; col < width; col++) {
+                y.put(row * yRowStride + col * yPixelStride, (byte)yuv[block(row, col)][0]);
+            }
+        }
+        for(int row = 0; row < height / 2; row++) {
+            for(int col = 0; col < width / 2; col++) {
+                int i = row * uvRowStride + col * uvPixelStride;
+                u.put(i, (byte)yuv[block(2 * row, 2 * col)][1]);
+                v.put(i, (byte)yuv[block(2 * row, 2 * col)][2]);
+            }
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer b, int offset) {
+        ByteBuffer d = b.duplicate();
+        d.position(offset);
+        return d.slice();
+    }
+
+    private static ByteBuffer garbage(int size) {
+        ByteBuffer b = ByteBuffer.allocate(size);
+        for(int i = 0; i < size; i++) {
+            b.put(i, (byte)(i * 37 + 11));
+        }
+        return b;
+    }
+
+    // every pixel within rounding of its block's colour
+    private static void check(int[] argb) {
+        for(int row = 0; row < height; row++) {
+            for(int col = 0; col < width; col++) {
+                int p = argb[row * width + col];
+                int[] expected = rgb[block(row, col)];
+                String at = "pixel " + col + "," + row;
+                assertEquals(at + " alpha", 0xff, p >>> 24);
+                assertEquals(at + " red",   expected[0], (p >> 16) & 0xff, 2);
+                assertEquals(at + " green", expected[1], (p >> 8) & 0xff, 2);
+                assertEquals(at + " blue",  expected[2], p & 0xff, 2);
+            }
+        }
+    }
+}